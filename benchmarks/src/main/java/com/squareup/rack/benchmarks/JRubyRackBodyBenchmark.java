@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.benchmarks;
+
+import com.google.common.io.ByteStreams;
+import com.squareup.rack.jruby.JRubyRackBody;
+import com.squareup.rack.jruby.JRubyRackBodyIterator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.jruby.embed.ScriptingContainer;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares writing a Ruby response body through an external enumerator ({@code to_enum} and
+ * {@code next}) against calling its {@code each} method with a Java block.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JRubyRackBodyBenchmark {
+  private static final OutputStream NULL_OUTPUT_STREAM = ByteStreams.nullOutputStream();
+
+  @Param({ "1", "16", "256" })
+  public int chunks;
+
+  private IRubyObject body;
+
+  @Setup public void setUp() {
+    ScriptingContainer ruby = new ScriptingContainer();
+    ruby.put("chunks", chunks);
+    body = ruby.parse("Array.new(chunks) { |i| \"chunk #{i} \" * 8 }").run();
+  }
+
+  @Benchmark public void enumerator() throws IOException {
+    JRubyRackBodyIterator iterator = new JRubyRackBodyIterator(body);
+    while (iterator.hasNext()) {
+      NULL_OUTPUT_STREAM.write(iterator.next());
+    }
+  }
+
+  @Benchmark public void each() throws IOException {
+    new JRubyRackBody(body).writeTo(NULL_OUTPUT_STREAM);
+  }
+}
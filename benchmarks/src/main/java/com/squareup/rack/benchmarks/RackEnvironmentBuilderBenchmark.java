@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.benchmarks;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import com.squareup.rack.servlet.HttpHeaderKeys;
+import com.squareup.rack.servlet.RackEnvironmentBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import static com.squareup.rack.RackEnvironment.CONTENT_LENGTH;
+import static com.squareup.rack.RackEnvironment.CONTENT_TYPE;
+import static com.squareup.rack.RackEnvironment.HTTP_HEADER_PREFIX;
+
+/**
+ * <p>Compares turning a typical browser request's headers into Rack environment entries the way
+ * {@link RackEnvironmentBuilder} used to, upper-casing and rewriting every name into a multimap,
+ * with {@link HttpHeaderKeys} and the builder as it is now.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RackEnvironmentBuilderBenchmark {
+  private static final Joiner COMMA = Joiner.on(',');
+  private static final CharMatcher DASH = CharMatcher.is('-');
+
+  private static final ListMultimap<String, String> HEADERS =
+      ImmutableListMultimap.<String, String>builder()
+          .put("Host", "example.com")
+          .put("Connection", "keep-alive")
+          .put("Cache-Control", "max-age=0")
+          .put("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8")
+          .put("User-Agent", "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_8_4) AppleWebKit/537.36")
+          .put("Accept-Encoding", "gzip,deflate,sdch")
+          .put("Accept-Language", "en-US,en;q=0.8")
+          .put("Cookie", "_session_id=8f2a1c; remember_token=bb3e")
+          .put("If-None-Match", "\"737060cd8c284d8af7ad3082f209582d\"")
+          .put("X-Forwarded-For", "192.168.0.1")
+          .put("X-Forwarded-Proto", "https")
+          .put("X-Request-Start", "t=1372700873.123")
+          .build();
+
+  private HttpServletRequest request;
+  private RackEnvironmentBuilder builder;
+
+  @Setup public void setUp() {
+    request = newRequest(HEADERS);
+    builder = new RackEnvironmentBuilder();
+  }
+
+  @Benchmark public Map<String, String> legacyHeaders() {
+    ImmutableListMultimap.Builder<String, String> headers = ImmutableListMultimap.builder();
+
+    Enumeration<String> names = request.getHeaderNames();
+    while (names.hasMoreElements()) {
+      String name = names.nextElement();
+      headers.putAll(legacyRackKey(name), Collections.list(request.getHeaders(name)));
+    }
+
+    ImmutableMap.Builder<String, String> content = ImmutableMap.builder();
+    for (Map.Entry<String, Collection<String>> header : headers.build().asMap().entrySet()) {
+      content.put(header.getKey(), COMMA.join(header.getValue()));
+    }
+    return content.build();
+  }
+
+  @Benchmark public int translatedKeys() {
+    int hash = 0;
+    Enumeration<String> names = request.getHeaderNames();
+    while (names.hasMoreElements()) {
+      hash += HttpHeaderKeys.rackKey(names.nextElement()).hashCode();
+    }
+    return hash;
+  }
+
+  @Benchmark public int legacyKeys() {
+    int hash = 0;
+    Enumeration<String> names = request.getHeaderNames();
+    while (names.hasMoreElements()) {
+      hash += legacyRackKey(names.nextElement()).hashCode();
+    }
+    return hash;
+  }
+
+  @Benchmark public Object buildAndReadOneHeader() {
+    return builder.build(request).get("HTTP_ACCEPT");
+  }
+
+  @Benchmark public int buildAndReadEverything() {
+    return builder.build(request).entrySet().size();
+  }
+
+  private static String legacyRackKey(String headerName) {
+    String transformed = DASH.replaceFrom(headerName.toUpperCase(), "_");
+
+    if (transformed.equals(CONTENT_LENGTH) || transformed.equals(CONTENT_TYPE)) {
+      return transformed;
+    } else {
+      return HTTP_HEADER_PREFIX + transformed;
+    }
+  }
+
+  /**
+   * Answers just enough of {@link HttpServletRequest} for {@link RackEnvironmentBuilder}.
+   */
+  private static HttpServletRequest newRequest(final ListMultimap<String, String> headers) {
+    InvocationHandler handler = new InvocationHandler() {
+      @Override public Object invoke(Object proxy, Method method, Object[] args)
+          throws IOException {
+        String name = method.getName();
+        if (name.equals("getHeaderNames")) {
+          return Collections.enumeration(headers.keySet());
+        } else if (name.equals("getHeaders")) {
+          return Collections.enumeration(headers.get((String) args[0]));
+        } else if (name.equals("getAttributeNames")) {
+          return Collections.enumeration(Collections.<String>emptyList());
+        } else if (name.equals("getMethod")) {
+          return "GET";
+        } else if (name.equals("getServletPath")) {
+          return "";
+        } else if (name.equals("getPathInfo")) {
+          return "/";
+        } else if (name.equals("getServerName")) {
+          return "example.com";
+        } else if (name.equals("getServerPort")) {
+          return 443;
+        } else if (name.equals("getScheme")) {
+          return "https";
+        } else if (name.equals("getInputStream")) {
+          return new EmptyServletInputStream();
+        }
+        return null;
+      }
+    };
+
+    return (HttpServletRequest) Proxy.newProxyInstance(
+        HttpServletRequest.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class},
+        handler);
+  }
+
+  private static class EmptyServletInputStream extends ServletInputStream {
+    private final InputStream delegate = new ByteArrayInputStream(new byte[0]);
+
+    @Override public int read() throws IOException {
+      return delegate.read();
+    }
+
+    @Override public boolean isFinished() {
+      return true;
+    }
+
+    @Override public boolean isReady() {
+      return true;
+    }
+
+    @Override public void setReadListener(ReadListener readListener) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.benchmarks;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.squareup.rack.ExecutorRackApplication;
+import com.squareup.rack.RackApplication;
+import com.squareup.rack.RackEnvironment;
+import com.squareup.rack.RackResponse;
+import com.squareup.rack.VirtualThreads;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * <p>Measures how long it takes to serve a burst of concurrent requests to a Rack application that
+ * spends all of its time blocked on a downstream call, when those requests run on a fixed pool of
+ * platform threads versus one virtual thread apiece.</p>
+ *
+ * <p>The {@code virtual} executor requires Java 21 or later.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class VirtualThreadsBenchmark {
+  private static final int PLATFORM_THREADS = 200;
+  private static final long DOWNSTREAM_LATENCY_MILLIS = 20;
+
+  @Param({ "platform", "virtual" })
+  public String executor;
+
+  @Param({ "100", "1000", "10000" })
+  public int concurrency;
+
+  private ExecutorService executorService;
+  private ExecutorRackApplication application;
+  private RackEnvironment environment;
+
+  @Setup public void setUp() {
+    if (executor.equals("virtual")) {
+      executorService = VirtualThreads.newVirtualThreadPerTaskExecutor();
+    } else {
+      executorService = Executors.newFixedThreadPool(PLATFORM_THREADS);
+    }
+
+    application = new ExecutorRackApplication(new BlockingRackApplication(), executorService);
+    environment = new RackEnvironment(ImmutableMap.<String, Object>of());
+  }
+
+  @TearDown public void tearDown() {
+    executorService.shutdownNow();
+  }
+
+  @Benchmark public List<RackResponse> burst() throws ExecutionException, InterruptedException {
+    List<ListenableFuture<RackResponse>> responses =
+        new ArrayList<ListenableFuture<RackResponse>>(concurrency);
+
+    for (int i = 0; i < concurrency; i++) {
+      responses.add(application.call(environment));
+    }
+
+    return Futures.allAsList(responses).get();
+  }
+
+  private static class BlockingRackApplication implements RackApplication {
+    @Override public RackResponse call(RackEnvironment environment) {
+      try {
+        Thread.sleep(DOWNSTREAM_LATENCY_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      Iterator<byte[]> body = Collections.<byte[]>emptyList().iterator();
+      return new RackResponse(200, ImmutableMap.<String, String>of(), body);
+    }
+  }
+}
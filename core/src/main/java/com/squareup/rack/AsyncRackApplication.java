@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A Rack application that responds asynchronously.
+ *
+ * @see RackApplication
+ * @see ExecutorRackApplication
+ */
+public interface AsyncRackApplication {
+  /**
+   * Begins processing a single HTTP request.
+   *
+   * @param environment the HTTP request environment.
+   * @return the eventual HTTP response.
+   */
+  ListenableFuture<RackResponse> call(RackEnvironment environment);
+}
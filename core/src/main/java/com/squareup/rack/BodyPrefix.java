@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack;
+
+import com.google.common.collect.Iterators;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+
+/**
+ * <p>The start of a {@link RackBody}, read into memory up to a limit.</p>
+ *
+ * <p>Pulls chunks from the body until it ends or the bytes read pass the limit, so that a large or
+ * endless body is never held whole. A body that ended within the limit is complete, and has been
+ * closed. Otherwise, {@link #remainder()} replays what was read and then passes the rest of the
+ * body through.</p>
+ */
+final class BodyPrefix {
+  private final RackBody body;
+  private final Iterator<byte[]> rest;
+  private final ByteArrayOutputStream bytes;
+  private final boolean complete;
+
+  private BodyPrefix(RackBody body, Iterator<byte[]> rest, ByteArrayOutputStream bytes,
+      boolean complete) {
+    this.body = body;
+    this.rest = rest;
+    this.bytes = bytes;
+    this.complete = complete;
+  }
+
+  /**
+   * @param body the body to read from.
+   * @param limit the most bytes to hold once the body is known to be complete.
+   * @return the bytes read, with the rest of the body.
+   */
+  static BodyPrefix read(RackBody body, long limit) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Iterator<byte[]> iterator;
+    try {
+      iterator = body.iterator();
+      while (bytes.size() <= limit && iterator.hasNext()) {
+        byte[] chunk = iterator.next();
+        bytes.write(chunk, 0, chunk.length);
+      }
+    } catch (RuntimeException e) {
+      body.close();
+      throw e;
+    }
+
+    boolean complete = bytes.size() <= limit;
+    if (complete) {
+      body.close();
+    }
+    return new BodyPrefix(body, iterator, bytes, complete);
+  }
+
+  /**
+   * @return true if the whole body was read within the limit.
+   */
+  boolean isComplete() {
+    return complete;
+  }
+
+  /**
+   * @return the bytes read.
+   */
+  byte[] toByteArray() {
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @return a body replaying the bytes read, then the rest of the original body. Only for bodies
+   * that aren't complete.
+   */
+  RackBody remainder() {
+    return new Remainder();
+  }
+
+  private class Remainder implements RackBody {
+    @Override public Iterator<byte[]> iterator() {
+      return Iterators.concat(Iterators.singletonIterator(bytes.toByteArray()), rest);
+    }
+
+    @Override public void writeTo(OutputStream outputStream) throws IOException {
+      try {
+        bytes.writeTo(outputStream);
+        while (rest.hasNext()) {
+          outputStream.write(rest.next());
+        }
+      } finally {
+        body.close();
+      }
+    }
+
+    @Override public void writeTo(WritableByteChannel channel) throws IOException {
+      try {
+        write(channel, ByteBuffer.wrap(bytes.toByteArray()));
+        while (rest.hasNext()) {
+          write(channel, ByteBuffer.wrap(rest.next()));
+        }
+      } finally {
+        body.close();
+      }
+    }
+
+    @Override public void close() {
+      body.close();
+    }
+
+    private void write(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+}
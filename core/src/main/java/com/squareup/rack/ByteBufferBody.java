@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack;
+
+import com.google.common.collect.AbstractIterator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+
+/**
+ * <p>A {@link RackBody} made of {@link ByteBuffer}s, heap or direct.</p>
+ *
+ * <p>Writes the remaining contents of each buffer, leaving the buffers themselves untouched. Onto a
+ * {@link GatheringByteChannel}, writes them all in as few calls as the channel allows.</p>
+ */
+public class ByteBufferBody implements SizedBody {
+  private static final int COPY_BUFFER_SIZE = 8192;
+
+  private final ByteBuffer[] buffers;
+  private final long length;
+
+  /**
+   * Creates a {@link RackBody} with the given contents.
+   *
+   * @param buffers the body contents, in order.
+   */
+  public ByteBufferBody(ByteBuffer... buffers) {
+    this.buffers = new ByteBuffer[buffers.length];
+    long length = 0;
+    for (int i = 0; i < buffers.length; i++) {
+      this.buffers[i] = buffers[i].duplicate();
+      length += buffers[i].remaining();
+    }
+    this.length = length;
+  }
+
+  @Override public long getLength() {
+    return length;
+  }
+
+  @Override public Iterator<byte[]> iterator() {
+    return new AbstractIterator<byte[]>() {
+      private int index;
+
+      @Override protected byte[] computeNext() {
+        if (index == buffers.length) {
+          return endOfData();
+        }
+        ByteBuffer buffer = buffers[index++];
+        byte[] chunk = new byte[buffer.remaining()];
+        buffer.get(chunk);
+        return chunk;
+      }
+    };
+  }
+
+  @Override public void writeTo(OutputStream outputStream) throws IOException {
+    byte[] copyBuffer = null;
+
+    for (ByteBuffer buffer : buffers) {
+      if (buffer.hasArray()) {
+        outputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+            buffer.remaining());
+        buffer.position(buffer.limit());
+        continue;
+      }
+
+      if (copyBuffer == null) {
+        copyBuffer = new byte[COPY_BUFFER_SIZE];
+      }
+      while (buffer.hasRemaining()) {
+        int length = Math.min(buffer.remaining(), copyBuffer.length);
+        buffer.get(copyBuffer, 0, length);
+        outputStream.write(copyBuffer, 0, length);
+      }
+    }
+  }
+
+  @Override public void writeTo(WritableByteChannel channel) throws IOException {
+    if (channel instanceof GatheringByteChannel) {
+      GatheringByteChannel gatheringChannel = (GatheringByteChannel) channel;
+      int first = 0;
+      while (first < buffers.length) {
+        gatheringChannel.write(buffers, first, buffers.length - first);
+        while (first < buffers.length && !buffers[first].hasRemaining()) {
+          first++;
+        }
+      }
+      return;
+    }
+
+    for (ByteBuffer buffer : buffers) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+
+  @Override public void close() {
+  }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.squareup.rack.servlet.HttpHeaderKeys;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Caches a {@link RackApplication}'s responses in memory, as a shared HTTP cache would.</p>
+ *
+ * <p>Caches responses to {@code GET} and {@code HEAD} requests, keyed on the request method, URL
+ * scheme, host, port, path, query string and the values of a configured set of request headers.
+ * Requests carrying an {@code Authorization} header bypass the cache.</p>
+ *
+ * <p>Stores responses whose {@code Cache-Control} header grants a freshness lifetime with
+ * {@code s-maxage} or {@code max-age} (the former taking precedence), and doesn't forbid storage
+ * with {@code private}, {@code no-store} or {@code no-cache}. Responses that set cookies, that vary
+ * on request headers outside the configured set, or whose bodies are larger than the maximum entry
+ * size are passed on without being stored. Bodies of unknown length are read only up to the
+ * maximum entry size; beyond it, the rest streams through to the client.</p>
+ *
+ * <p>Fresh responses are served straight from the cache, with an {@code Age} header. Once stale,
+ * a response may still be served for the number of seconds its {@code stale-while-revalidate}
+ * directive allows, while a fresh copy is fetched in the background on the given executor. After
+ * that, the next request fetches a fresh copy itself, and the stale response is dropped. No
+ * response is kept for longer than a day, whatever lifetime it grants itself.</p>
+ *
+ * <p>Bodies are stored as single buffers, on or off the Java heap. Entries are weighed by the size
+ * of their key, headers and body, and evicted least-recently-used first once their total size
+ * reaches the maximum.</p>
+ */
+public class CachingRackApplication implements RackApplication {
+  private static final Logger LOG = LoggerFactory.getLogger(CachingRackApplication.class);
+  private static final long MAXIMUM_LIFETIME_SECONDS = 24 * 60 * 60;
+
+  private final RackApplication rackApplication;
+  private final Executor revalidationExecutor;
+  private final ImmutableList<String> varyHeaders;
+  private final ImmutableList<String> varyKeys;
+  private final long maximumEntrySize;
+  private final boolean offHeap;
+  private final Ticker ticker;
+  private final Cache<String, Entry> cache;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong staleHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong revalidations = new AtomicLong();
+
+  /**
+   * Creates a cache in front of the given application, keyed on method and URL alone, storing
+   * bodies on the heap.
+   *
+   * @param rackApplication the application whose responses to cache.
+   * @param maximumSize the total size of the cached responses, in bytes.
+   * @param revalidationExecutor fetches fresh copies of stale responses in the background.
+   */
+  public CachingRackApplication(RackApplication rackApplication, long maximumSize,
+      Executor revalidationExecutor) {
+    this(rackApplication, maximumSize, revalidationExecutor, ImmutableList.<String>of(), false);
+  }
+
+  /**
+   * Creates a cache in front of the given application.
+   *
+   * @param rackApplication the application whose responses to cache.
+   * @param maximumSize the total size of the cached responses, in bytes. No single body larger
+   * than an eighth of this is stored.
+   * @param revalidationExecutor fetches fresh copies of stale responses in the background.
+   * @param varyHeaders the request headers, such as {@code Accept-Encoding}, whose values are part
+   * of the cache key. Responses that vary on other headers aren't stored.
+   * @param offHeap true to store bodies in direct buffers, outside the Java heap.
+   */
+  public CachingRackApplication(RackApplication rackApplication, long maximumSize,
+      Executor revalidationExecutor, Iterable<String> varyHeaders, boolean offHeap) {
+    this(rackApplication, maximumSize, revalidationExecutor, varyHeaders, offHeap,
+        Ticker.systemTicker());
+  }
+
+  CachingRackApplication(RackApplication rackApplication, long maximumSize,
+      Executor revalidationExecutor, Iterable<String> varyHeaders, boolean offHeap,
+      Ticker ticker) {
+    checkArgument(maximumSize >= 0, "maximumSize must not be negative, but was %s", maximumSize);
+
+    this.rackApplication = checkNotNull(rackApplication);
+    this.revalidationExecutor = checkNotNull(revalidationExecutor);
+    this.varyHeaders = ImmutableList.copyOf(varyHeaders);
+    this.maximumEntrySize = Math.min(maximumSize / 8, Integer.MAX_VALUE);
+    this.offHeap = offHeap;
+    this.ticker = checkNotNull(ticker);
+
+    ImmutableList.Builder<String> keys = ImmutableList.builder();
+    for (String header : this.varyHeaders) {
+      keys.add(HttpHeaderKeys.rackKey(header));
+    }
+    this.varyKeys = keys.build();
+
+    this.cache = CacheBuilder.newBuilder()
+        .maximumWeight(maximumSize)
+        .weigher(new Weigher<String, Entry>() {
+          @Override public int weigh(String key, Entry entry) {
+            return (int) Math.min(key.length() + entry.size, Integer.MAX_VALUE);
+          }
+        })
+        .expireAfterWrite(MAXIMUM_LIFETIME_SECONDS, TimeUnit.SECONDS)
+        .ticker(ticker)
+        .removalListener(new RemovalListener<String, Entry>() {
+          @Override public void onRemoval(RemovalNotification<String, Entry> notification) {
+            if (notification.wasEvicted()) {
+              evictions.incrementAndGet();
+            }
+          }
+        })
+        .build();
+  }
+
+  @Override public RackResponse call(RackEnvironment environment) {
+    String key = cacheKey(environment);
+    if (key == null) {
+      return rackApplication.call(environment);
+    }
+
+    Entry entry = cache.getIfPresent(key);
+    long now = ticker.read();
+
+    if (entry != null && now < entry.freshUntil) {
+      hits.incrementAndGet();
+      return entry.toResponse(now);
+    }
+
+    if (entry != null && now < entry.staleUntil) {
+      staleHits.incrementAndGet();
+      revalidate(key, entry, environment);
+      return entry.toResponse(now);
+    }
+
+    if (entry != null) {
+      cache.invalidate(key);
+    }
+    misses.incrementAndGet();
+    return fetch(key, environment);
+  }
+
+  /**
+   * @return the number of requests answered with a fresh cached response.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of requests answered with a stale cached response while it was revalidated.
+   */
+  public long getStaleHitCount() {
+    return staleHits.get();
+  }
+
+  /**
+   * @return the number of cacheable requests passed on to the application.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of responses evicted to make room for others.
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * @return the number of background revalidations started.
+   */
+  public long getRevalidationCount() {
+    return revalidations.get();
+  }
+
+  /**
+   * @return the number of responses cached.
+   */
+  public long getEntryCount() {
+    return cache.size();
+  }
+
+  /**
+   * Discards every cached response.
+   */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * @return the cache key for the request, or null if it bypasses the cache.
+   */
+  private String cacheKey(RackEnvironment environment) {
+    Object method = environment.get(RackEnvironment.REQUEST_METHOD);
+    if (!"GET".equals(method) && !"HEAD".equals(method)) {
+      return null;
+    }
+    if (environment.get("HTTP_AUTHORIZATION") != null) {
+      return null;
+    }
+
+    StringBuilder key = new StringBuilder()
+        .append(method).append(' ')
+        .append(environment.get(RackEnvironment.RACK_URL_SCHEME)).append("://")
+        .append(environment.get("HTTP_HOST")).append('|')
+        .append(environment.get(RackEnvironment.SERVER_NAME)).append(':')
+        .append(environment.get(RackEnvironment.SERVER_PORT))
+        .append(environment.get(RackEnvironment.SCRIPT_NAME))
+        .append(environment.get(RackEnvironment.PATH_INFO))
+        .append('?')
+        .append(environment.get(RackEnvironment.QUERY_STRING));
+    for (String varyKey : varyKeys) {
+      Object value = environment.get(varyKey);
+      key.append('\n');
+      if (value != null) {
+        key.append(value);
+      }
+    }
+    return key.toString();
+  }
+
+  private RackResponse fetch(String key, RackEnvironment environment) {
+    RackResponse response = rackApplication.call(environment);
+    Freshness freshness = freshness(response);
+    if (freshness == null) {
+      cache.invalidate(key);
+      return response;
+    }
+
+    RackBody body = response.getRackBody();
+    if (exceedsMaximumEntrySize(body)) {
+      cache.invalidate(key);
+      return response;
+    }
+
+    BodyPrefix prefix = BodyPrefix.read(body, maximumEntrySize);
+    if (!prefix.isComplete()) {
+      cache.invalidate(key);
+      return new RackResponse(response.getStatus(), response.getHeaders(), prefix.remainder());
+    }
+
+    long now = ticker.read();
+    Entry entry = new Entry(response, toBuffer(prefix.toByteArray()), now, freshness);
+    cache.put(key, entry);
+    return entry.toResponse(now);
+  }
+
+  private void revalidate(final String key, final Entry entry, RackEnvironment environment) {
+    if (!entry.revalidating.compareAndSet(false, true)) {
+      return;
+    }
+
+    // The request's own environment won't outlive it, so the application gets a detached copy.
+    final RackEnvironment detached = detach(environment);
+    try {
+      revalidationExecutor.execute(new Runnable() {
+        @Override public void run() {
+          revalidations.incrementAndGet();
+          try {
+            fetch(key, detached).getRackBody().close();
+          } catch (RuntimeException e) {
+            LOG.warn("Error revalidating " + key, e);
+          } finally {
+            entry.revalidating.set(false);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      entry.revalidating.set(false);
+    }
+  }
+
+  private static RackEnvironment detach(RackEnvironment environment) {
+    Map<String, Object> contents = new HashMap<String, Object>(environment);
+    contents.remove(RackEnvironment.MINECART_HTTP_SERVLET_REQUEST);
+    contents.put(RackEnvironment.RACK_INPUT, RackInput.EMPTY);
+    return new RackEnvironment(contents);
+  }
+
+  /**
+   * @return how long the response may be cached, or null if it mustn't be.
+   */
+  private Freshness freshness(RackResponse response) {
+    int status = response.getStatus();
+    if (status != 200 && status != 203 && status != 300 && status != 301 && status != 404
+        && status != 410) {
+      return null;
+    }
+
+    Map<String, String> headers = response.getHeaders();
+    String cacheControl = null;
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      String name = header.getKey().toLowerCase(Locale.US);
+      if (name.equals("set-cookie")) {
+        return null;
+      } else if (name.equals("vary") && !variesOnlyOnKeyedHeaders(header.getValue())) {
+        return null;
+      } else if (name.equals("cache-control")) {
+        cacheControl = header.getValue();
+      } else if (name.equals("content-length") && exceedsMaximumEntrySize(header.getValue())) {
+        return null;
+      }
+    }
+
+    return (cacheControl == null) ? null : Freshness.parse(cacheControl);
+  }
+
+  private boolean variesOnlyOnKeyedHeaders(String vary) {
+    for (String field : vary.split("[,\n]")) {
+      String name = field.trim();
+      if (name.length() == 0) {
+        continue;
+      }
+
+      boolean keyed = false;
+      for (String varyHeader : varyHeaders) {
+        keyed |= varyHeader.equalsIgnoreCase(name);
+      }
+      if (!keyed) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean exceedsMaximumEntrySize(String contentLength) {
+    try {
+      return Long.parseLong(contentLength.trim()) > maximumEntrySize;
+    } catch (NumberFormatException e) {
+      return true;
+    }
+  }
+
+  /**
+   * @return true if the body is known to be too large to store without reading it, so that files
+   * and buffers too large to cache keep their own way of being written.
+   */
+  private boolean exceedsMaximumEntrySize(RackBody body) {
+    if (body instanceof SizedBody) {
+      return ((SizedBody) body).getLength() > maximumEntrySize;
+    }
+    if (body instanceof FileBackedBody) {
+      return ((FileBackedBody) body).getFile().length() > maximumEntrySize;
+    }
+    return false;
+  }
+
+  private ByteBuffer toBuffer(byte[] array) {
+    if (!offHeap) {
+      return ByteBuffer.wrap(array);
+    }
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(array.length);
+    direct.put(array);
+    direct.flip();
+    return direct;
+  }
+
+  /**
+   * The lifetimes granted by a response's {@code Cache-Control} header.
+   */
+  static class Freshness {
+    final long maxAgeSeconds;
+    final long staleWhileRevalidateSeconds;
+
+    Freshness(long maxAgeSeconds, long staleWhileRevalidateSeconds) {
+      this.maxAgeSeconds = maxAgeSeconds;
+      this.staleWhileRevalidateSeconds = staleWhileRevalidateSeconds;
+    }
+
+    /**
+     * @return the lifetimes, or null if the header forbids storing the response or grants it no
+     * lifetime.
+     */
+    static Freshness parse(String cacheControl) {
+      long maxAge = -1;
+      long sharedMaxAge = -1;
+      long staleWhileRevalidate = 0;
+
+      for (String directive : cacheControl.split("[,\n]")) {
+        String trimmed = directive.trim().toLowerCase(Locale.US);
+        if (trimmed.equals("private") || trimmed.startsWith("private=")
+            || trimmed.equals("no-store") || trimmed.equals("no-cache")
+            || trimmed.startsWith("no-cache=")) {
+          return null;
+        } else if (trimmed.startsWith("max-age=")) {
+          maxAge = seconds(trimmed.substring("max-age=".length()));
+        } else if (trimmed.startsWith("s-maxage=")) {
+          sharedMaxAge = seconds(trimmed.substring("s-maxage=".length()));
+        } else if (trimmed.startsWith("stale-while-revalidate=")) {
+          staleWhileRevalidate =
+              Math.max(0, seconds(trimmed.substring("stale-while-revalidate=".length())));
+        }
+      }
+
+      long lifetime = (sharedMaxAge != -1) ? sharedMaxAge : maxAge;
+      return (lifetime > 0) ? new Freshness(lifetime, staleWhileRevalidate) : null;
+    }
+
+    private static long seconds(String value) {
+      try {
+        return Long.parseLong(value.replace("\"", "").trim());
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+  }
+
+  private static class Entry {
+    private final int status;
+    private final Map<String, String> headers;
+    private final ByteBuffer body;
+    private final long storedAt;
+    private final long freshUntil;
+    private final long staleUntil;
+    private final long size;
+    private final AtomicBoolean revalidating = new AtomicBoolean();
+
+    public Entry(RackResponse response, ByteBuffer body, long storedAt, Freshness freshness) {
+      this.status = response.getStatus();
+      this.body = body;
+      this.storedAt = storedAt;
+      long maxAge = Math.min(freshness.maxAgeSeconds, MAXIMUM_LIFETIME_SECONDS);
+      long staleWhileRevalidate =
+          Math.min(freshness.staleWhileRevalidateSeconds, MAXIMUM_LIFETIME_SECONDS - maxAge);
+      this.freshUntil = storedAt + TimeUnit.SECONDS.toNanos(maxAge);
+      this.staleUntil = freshUntil + TimeUnit.SECONDS.toNanos(staleWhileRevalidate);
+
+      Map<String, String> copy = new LinkedHashMap<String, String>();
+      long headerSize = 0;
+      for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+        if (!header.getKey().equalsIgnoreCase("Age")) {
+          copy.put(header.getKey(), header.getValue());
+          headerSize += header.getKey().length() + header.getValue().length();
+        }
+      }
+      this.headers = ImmutableMap.copyOf(copy);
+
+      // Counts at least one, so that even empty responses take up room.
+      this.size = Math.max(1, headerSize + body.capacity());
+    }
+
+    public RackResponse toResponse(long now) {
+      long age = TimeUnit.NANOSECONDS.toSeconds(now - storedAt);
+      Map<String, String> responseHeaders = ImmutableMap.<String, String>builder()
+          .putAll(headers)
+          .put("Age", String.valueOf(age))
+          .build();
+      return new RackResponse(status, responseHeaders, new ByteBufferBody(body));
+    }
+  }
+}
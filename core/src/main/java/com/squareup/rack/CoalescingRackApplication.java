@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Coalesces concurrent identical requests to a {@link RackApplication} into a single call.</p>
+ *
+ * <p>The first request for a key becomes the leader, and calls the application. Requests for the
+ * same key arriving while it does become followers: they wait for the leader's response, and each
+ * receive their own copy of its status, headers and body, rather than calling the application
+ * themselves.</p>
+ *
+ * <p>To be shared, the leader's body is read into memory, up to the maximum shared size; larger
+ * bodies stream on to the leader unshared. Responses that set cookies or carry a {@code Vary}
+ * header aren't shared. Followers call the application themselves
+ * when the leader's response isn't shared, when the leader fails, or when they've waited longer
+ * than the maximum wait.</p>
+ *
+ * <p>Only coalesce requests that are safe to answer with another request's response. The default
+ * key, {@link #METHOD_PATH_AND_QUERY}, coalesces {@code GET} and {@code HEAD} requests without
+ * cookies or credentials, on their URL scheme, host, port, path and query string.</p>
+ */
+public class CoalescingRackApplication implements RackApplication {
+  /**
+   * Keys {@code GET} and {@code HEAD} requests on their method, URL scheme, host, port, path and
+   * query string, and leaves requests carrying a {@code Cookie} or {@code Authorization} header
+   * uncoalesced.
+   */
+  public static final Function<RackEnvironment, String> METHOD_PATH_AND_QUERY =
+      new Function<RackEnvironment, String>() {
+        @Override public String apply(RackEnvironment environment) {
+          Object method = environment.get(RackEnvironment.REQUEST_METHOD);
+          if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return null;
+          }
+          if (environment.get("HTTP_COOKIE") != null
+              || environment.get("HTTP_AUTHORIZATION") != null) {
+            return null;
+          }
+
+          return new StringBuilder()
+              .append(method).append(' ')
+              .append(environment.get(RackEnvironment.RACK_URL_SCHEME)).append("://")
+              .append(environment.get("HTTP_HOST")).append('|')
+              .append(environment.get(RackEnvironment.SERVER_NAME)).append(':')
+              .append(environment.get(RackEnvironment.SERVER_PORT))
+              .append(environment.get(RackEnvironment.SCRIPT_NAME))
+              .append(environment.get(RackEnvironment.PATH_INFO))
+              .append('?')
+              .append(environment.get(RackEnvironment.QUERY_STRING))
+              .toString();
+        }
+      };
+
+  private final RackApplication rackApplication;
+  private final Function<RackEnvironment, String> keyFunction;
+  private final long maximumWaitNanos;
+  private final int maximumSharedBodySize;
+  private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+  private final AtomicLong leaders = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong fallbacks = new AtomicLong();
+
+  /**
+   * Creates a coalescing layer in front of the given application, keying requests with
+   * {@link #METHOD_PATH_AND_QUERY}.
+   *
+   * @param rackApplication the application to call.
+   * @param maximumWait how long a follower may wait for its leader's response.
+   * @param unit the unit of {@code maximumWait}.
+   * @param maximumSharedBodySize the largest body shared with followers, in bytes.
+   */
+  public CoalescingRackApplication(RackApplication rackApplication, long maximumWait,
+      TimeUnit unit, int maximumSharedBodySize) {
+    this(rackApplication, METHOD_PATH_AND_QUERY, maximumWait, unit, maximumSharedBodySize);
+  }
+
+  /**
+   * Creates a coalescing layer in front of the given application.
+   *
+   * @param rackApplication the application to call.
+   * @param keyFunction returns the key on which to coalesce a request, or null to leave it alone.
+   * @param maximumWait how long a follower may wait for its leader's response.
+   * @param unit the unit of {@code maximumWait}.
+   * @param maximumSharedBodySize the largest body shared with followers, in bytes.
+   */
+  public CoalescingRackApplication(RackApplication rackApplication,
+      Function<RackEnvironment, String> keyFunction, long maximumWait, TimeUnit unit,
+      int maximumSharedBodySize) {
+    checkArgument(maximumWait >= 0, "maximumWait must not be negative, but was %s", maximumWait);
+    checkArgument(maximumSharedBodySize >= 0,
+        "maximumSharedBodySize must not be negative, but was %s", maximumSharedBodySize);
+
+    this.rackApplication = checkNotNull(rackApplication);
+    this.keyFunction = checkNotNull(keyFunction);
+    this.maximumWaitNanos = unit.toNanos(maximumWait);
+    this.maximumSharedBodySize = maximumSharedBodySize;
+  }
+
+  @Override public RackResponse call(RackEnvironment environment) {
+    String key = keyFunction.apply(environment);
+    if (key == null) {
+      return rackApplication.call(environment);
+    }
+
+    Flight flight = new Flight();
+    Flight existing = flights.putIfAbsent(key, flight);
+    if (existing != null) {
+      return follow(existing, environment);
+    }
+
+    leaders.incrementAndGet();
+    try {
+      return lead(flight, environment);
+    } finally {
+      flights.remove(key, flight);
+      flight.landed.countDown();
+    }
+  }
+
+  /**
+   * @return the number of requests that called the application on behalf of others.
+   */
+  public long getLeaderCount() {
+    return leaders.get();
+  }
+
+  /**
+   * @return the number of requests answered with a copy of their leader's response.
+   */
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  /**
+   * @return the number of followers that called the application themselves, because their
+   * leader's response wasn't shared, their leader failed, or they gave up waiting.
+   */
+  public long getFallbackCount() {
+    return fallbacks.get();
+  }
+
+  private RackResponse lead(Flight flight, RackEnvironment environment) {
+    RackResponse response = rackApplication.call(environment);
+    if (!isShareable(response)) {
+      return response;
+    }
+
+    RackBody body = response.getRackBody();
+    if (exceedsMaximumSharedBodySize(body)) {
+      return response;
+    }
+
+    BodyPrefix prefix = BodyPrefix.read(body, maximumSharedBodySize);
+    if (!prefix.isComplete()) {
+      return new RackResponse(response.getStatus(), response.getHeaders(), prefix.remainder());
+    }
+
+    SharedResponse shared = new SharedResponse(response, ByteBuffer.wrap(prefix.toByteArray()));
+    flight.response = shared;
+    return shared.copy();
+  }
+
+  private RackResponse follow(Flight flight, RackEnvironment environment) {
+    try {
+      if (flight.landed.await(maximumWaitNanos, TimeUnit.NANOSECONDS)
+          && flight.response != null) {
+        coalesced.incrementAndGet();
+        return flight.response.copy();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    fallbacks.incrementAndGet();
+    return rackApplication.call(environment);
+  }
+
+  private boolean isShareable(RackResponse response) {
+    for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+      String name = header.getKey();
+      if (name.equalsIgnoreCase("Set-Cookie") || name.equalsIgnoreCase("Vary")) {
+        return false;
+      }
+      if (name.equalsIgnoreCase("Content-Length")) {
+        try {
+          if (Long.parseLong(header.getValue().trim()) > maximumSharedBodySize) {
+            return false;
+          }
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean exceedsMaximumSharedBodySize(RackBody body) {
+    if (body instanceof SizedBody) {
+      return ((SizedBody) body).getLength() > maximumSharedBodySize;
+    }
+    if (body instanceof FileBackedBody) {
+      return ((FileBackedBody) body).getFile().length() > maximumSharedBodySize;
+    }
+    return false;
+  }
+
+  /**
+   * A leader's call, which followers wait on.
+   */
+  private static class Flight {
+    private final CountDownLatch landed = new CountDownLatch(1);
+    private volatile SharedResponse response;
+  }
+
+  private static class SharedResponse {
+    private final int status;
+    private final Map<String, String> headers;
+    private final ByteBuffer body;
+
+    public SharedResponse(RackResponse response, ByteBuffer body) {
+      this.status = response.getStatus();
+      this.headers = ImmutableMap.copyOf(response.getHeaders());
+      this.body = body;
+    }
+
+    public RackResponse copy() {
+      return new RackResponse(status, headers, new ByteBufferBody(body));
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Adapts a {@link RackApplication} into an {@link AsyncRackApplication} by calling it on an
+ * {@link Executor}.
+ */
+public class ExecutorRackApplication implements AsyncRackApplication {
+  private final RackApplication rackApplication;
+  private final Executor executor;
+
+  /**
+   * Creates an {@link AsyncRackApplication} that calls the given {@link RackApplication} on the
+   * given {@link Executor}.
+   *
+   * @param rackApplication the application to call.
+   * @param executor runs the calls.
+   */
+  public ExecutorRackApplication(RackApplication rackApplication, Executor executor) {
+    this.rackApplication = checkNotNull(rackApplication);
+    this.executor = checkNotNull(executor);
+  }
+
+  @Override public ListenableFuture<RackResponse> call(final RackEnvironment environment) {
+    ListenableFutureTask<RackResponse> task =
+        ListenableFutureTask.create(new Callable<RackResponse>() {
+          @Override public RackResponse call() {
+            return rackApplication.call(environment);
+          }
+        });
+
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+
+    return task;
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack;
+
+import java.io.File;
+
+/**
+ * <p>A {@link RackBody} whose contents are exactly those of a file on disk, such as a Ruby body
+ * that responds to {@code to_path}.</p>
+ *
+ * <p>Callers may serve the file themselves, as long as they still {@link #close()} the body.</p>
+ */
+public interface FileBackedBody extends RackBody {
+  /**
+   * @return the file holding the body contents.
+   */
+  File getFile();
+}
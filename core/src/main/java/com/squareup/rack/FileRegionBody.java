@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack;
+
+import com.google.common.collect.AbstractIterator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Throwables.propagate;
+
+/**
+ * <p>A {@link RackBody} made of a region of a file.</p>
+ *
+ * <p>Writes onto a channel with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which lets the operating system
+ * copy straight from the file where it can. Closes the file channel when closed.</p>
+ */
+public class FileRegionBody implements RackBody {
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private final FileChannel file;
+  private final long position;
+  private final long count;
+
+  /**
+   * Creates a {@link RackBody} from a region of the given file, taking ownership of the channel.
+   *
+   * @param file the open file.
+   * @param position where the region starts.
+   * @param count the length of the region, in bytes.
+   */
+  public FileRegionBody(FileChannel file, long position, long count) {
+    checkArgument(position >= 0, "position must not be negative, but was %s", position);
+    checkArgument(count >= 0, "count must not be negative, but was %s", count);
+    this.file = file;
+    this.position = position;
+    this.count = count;
+  }
+
+  /**
+   * @return the length of the region, in bytes.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  @Override public Iterator<byte[]> iterator() {
+    return new AbstractIterator<byte[]>() {
+      private long offset;
+
+      @Override protected byte[] computeNext() {
+        if (offset == count) {
+          close();
+          return endOfData();
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, count - offset));
+        try {
+          readFully(chunk, position + offset);
+        } catch (IOException e) {
+          throw propagate(e);
+        }
+        offset += chunk.capacity();
+        return chunk.array();
+      }
+    };
+  }
+
+  @Override public void writeTo(OutputStream outputStream) throws IOException {
+    writeTo(Channels.newChannel(outputStream));
+  }
+
+  @Override public void writeTo(WritableByteChannel channel) throws IOException {
+    try {
+      long offset = 0;
+      while (offset < count) {
+        long transferred = file.transferTo(position + offset, count - offset, channel);
+        if (transferred <= 0) {
+          throw new IOException("File ended " + (count - offset) + " bytes short of its region.");
+        }
+        offset += transferred;
+      }
+    } finally {
+      close();
+    }
+  }
+
+  @Override public void close() {
+    try {
+      file.close();
+    } catch (IOException e) {
+      throw propagate(e);
+    }
+  }
+
+  private void readFully(ByteBuffer chunk, long at) throws IOException {
+    while (chunk.hasRemaining()) {
+      int read = file.read(chunk, at + chunk.position());
+      if (read < 0) {
+        throw new IOException("File ended " + chunk.remaining() + " bytes short of its region.");
+      }
+    }
+  }
+}
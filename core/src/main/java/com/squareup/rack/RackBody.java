@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+
+/**
+ * <p>The HTTP response body of a {@link RackResponse}.</p>
+ *
+ * <p>Offers its contents three ways: pulled one chunk at a time through {@link #iterator()}, or
+ * pushed all at once through {@link #writeTo(OutputStream)} or
+ * {@link #writeTo(WritableByteChannel)}. A body may only be consumed once, by one of these.</p>
+ *
+ * <p>Bodies backed by buffers or files write themselves onto a channel with gathering writes and
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)}, without
+ * first copying into byte arrays.</p>
+ *
+ * <p>Callers should {@link #close()} the body when they're done with it, whether or not they've
+ * consumed it.</p>
+ */
+public interface RackBody extends Iterable<byte[]>, Closeable {
+  /**
+   * Pulls the body contents, one chunk at a time.
+   *
+   * @return an iterator over the body chunks.
+   */
+  Iterator<byte[]> iterator();
+
+  /**
+   * Pushes the entire body contents onto the given stream, then releases the body.
+   *
+   * @param outputStream the destination stream.
+   * @throws IOException
+   */
+  void writeTo(OutputStream outputStream) throws IOException;
+
+  /**
+   * Pushes the entire body contents onto the given channel, then releases the body.
+   *
+   * @param channel the destination channel.
+   * @throws IOException
+   */
+  void writeTo(WritableByteChannel channel) throws IOException;
+
+  /**
+   * Releases the body. Safe to call more than once, and after the body has been consumed.
+   */
+  void close();
+}
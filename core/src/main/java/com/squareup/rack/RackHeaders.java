@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack;
+
+import java.util.Map;
+
+/**
+ * <p>HTTP response headers that can list each of their values individually.</p>
+ *
+ * <p>As a {@link Map}, a header with several values appears once, its values joined with
+ * newlines. {@link #visit(Visitor)} instead hands over each value separately, sparing both sides
+ * the joining and splitting.</p>
+ */
+public interface RackHeaders extends Map<String, String> {
+  /**
+   * Calls the visitor once for each header value, in order.
+   *
+   * @param visitor the recipient of each header name and value.
+   */
+  void visit(Visitor visitor);
+
+  /**
+   * Receives header names and values from {@link RackHeaders#visit(Visitor)}.
+   */
+  interface Visitor {
+    /**
+     * @param name the header name.
+     * @param value a single header value.
+     */
+    void header(String name, String value);
+  }
+}
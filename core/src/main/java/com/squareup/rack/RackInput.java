@@ -15,29 +15,42 @@
  */
 package com.squareup.rack;
 
-import com.google.common.io.ByteStreams;
+import com.google.common.io.InputSupplier;
 import com.squareup.rack.io.ByteArrayBuffer;
+import com.squareup.rack.io.ByteArrayPool;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * <p>Adapts an {@link InputStream} to the required interface for {@code rack.input}.</p>
  *
  * <p>Speaks {@code byte[]}, not {@code String}, because {@code rack.input} is required to have
  * binary encoding.</p>
+ *
+ * <p>Created from an {@link InputSupplier}, opens the stream, and allocates its buffer, only once
+ * the application first reads from it. The buffer is borrowed from
+ * {@link ByteArrayPool#DEFAULT}, and given back on close.</p>
  */
 public class RackInput implements Closeable {
+  /** An input with no bytes, holding no state, shared by requests without a body. */
+  public static final RackInput EMPTY = new EmptyRackInput();
+
   private static final int LINEFEED = 0xA;
   private static final int MAX_LINE_LENGTH = 1024 * 1024;
   private static final int READ_AHEAD_SUGGESTION = 1024 * 1024;
+  private static final int READ_CHUNK_SIZE = 64 * 1024;
+  private static final byte[] NO_BYTES = new byte[0];
 
-  private final InputStream stream;
-  private final ByteArrayBuffer buffer = new ByteArrayBuffer();
+  private InputSupplier<? extends InputStream> streamSupplier;
+  private InputStream stream;
+  private ByteArrayBuffer buffer;
   private int bufferReadHead;
+  private boolean closed;
 
   /**
    * Creates a {@link RackInput} stream that draws from the given {@link InputStream}.
@@ -51,6 +64,20 @@ public class RackInput implements Closeable {
 
     stream = inputStream;
     stream.mark(READ_AHEAD_SUGGESTION);
+    buffer = new ByteArrayBuffer(ByteArrayPool.DEFAULT, 0);
+  }
+
+  /**
+   * Creates a {@link RackInput} stream that draws from the {@link InputStream} the given supplier
+   * opens when the stream is first read.
+   *
+   * @param inputSupplier opens the source stream, which must support mark.
+   */
+  public RackInput(InputSupplier<? extends InputStream> inputSupplier) {
+    streamSupplier = checkNotNull(inputSupplier);
+  }
+
+  private RackInput() {
   }
 
   /**
@@ -60,6 +87,7 @@ public class RackInput implements Closeable {
    * @throws IOException
    */
   public byte[] gets() throws IOException {
+    open();
     return readToLinefeed();
   }
 
@@ -71,6 +99,7 @@ public class RackInput implements Closeable {
    * @throws IOException
    */
   public byte[] read(Integer length) throws IOException {
+    open();
     if (length == null) {
       return readToEof();
     } else {
@@ -84,6 +113,12 @@ public class RackInput implements Closeable {
    * @throws IOException
    */
   public void rewind() throws IOException {
+    if (stream == null && !closed) {
+      // Nothing has been read yet.
+      return;
+    }
+
+    open();
     stream.reset();
     buffer.reset();
     bufferReadHead = 0;
@@ -95,7 +130,36 @@ public class RackInput implements Closeable {
    * @throws IOException
    */
   @Override public void close() throws IOException {
-    stream.close();
+    closed = true;
+    streamSupplier = null;
+    try {
+      if (stream != null) {
+        stream.close();
+      }
+    } finally {
+      if (buffer != null) {
+        buffer.release();
+        buffer = null;
+      }
+    }
+  }
+
+  private void open() throws IOException {
+    if (closed) {
+      throw new IOException("rack.input is closed");
+    }
+    if (stream != null) {
+      return;
+    }
+
+    InputStream inputStream = streamSupplier.getInput();
+    checkState(inputStream.markSupported(),
+        "rack.input must be rewindable, but inputStream doesn't support mark.");
+
+    stream = inputStream;
+    stream.mark(READ_AHEAD_SUGGESTION);
+    buffer = new ByteArrayBuffer(ByteArrayPool.DEFAULT, 0);
+    streamSupplier = null;
   }
 
   private byte[] readToLinefeed() throws IOException {
@@ -131,11 +195,14 @@ public class RackInput implements Closeable {
       compactBuffer(true);
     }
 
-    ByteStreams.copy(stream, buffer);
+    int bytesRead;
+    do {
+      bytesRead = fillBuffer(READ_CHUNK_SIZE);
+    } while (bytesRead != -1);
 
     int length = buffer.getLength();
     if (length == 0) {
-      return new byte[0];
+      return NO_BYTES;
     } else {
       return consumeBytesFromBuffer(length);
     }
@@ -143,7 +210,7 @@ public class RackInput implements Closeable {
 
   private byte[] readTo(int length) throws IOException {
     if (length == 0) {
-      return new byte[0];
+      return NO_BYTES;
     }
 
     if (bufferReadHead > 0) {
@@ -177,12 +244,17 @@ public class RackInput implements Closeable {
     return -1;
   }
 
+  /**
+   * Reads up to length bytes, but no more than a chunk, straight into the end of the buffer.
+   */
   private int fillBuffer(int length) throws IOException {
     compactBuffer(false);
-    byte[] readBuf = new byte[length];
-    int bytesRead = stream.read(readBuf);
+    int bufferLength = buffer.getLength();
+    int chunkLength = Math.min(length, READ_CHUNK_SIZE);
+    buffer.ensureCapacity(bufferLength + chunkLength);
+    int bytesRead = stream.read(buffer.getBuffer(), bufferLength, chunkLength);
     if (bytesRead > 0) {
-      buffer.write(readBuf, 0, bytesRead);
+      buffer.setLength(bufferLength + bytesRead);
     }
     return bytesRead;
   }
@@ -215,4 +287,23 @@ public class RackInput implements Closeable {
       bufferReadHead = 0;
     }
   }
+
+  /**
+   * Reads as an input at EOF, however it's used. Stateless, so safe to share between requests.
+   */
+  private static final class EmptyRackInput extends RackInput {
+    @Override public byte[] gets() {
+      return null;
+    }
+
+    @Override public byte[] read(Integer length) {
+      return (length == null || length == 0) ? NO_BYTES : null;
+    }
+
+    @Override public void rewind() {
+    }
+
+    @Override public void close() {
+    }
+  }
 }
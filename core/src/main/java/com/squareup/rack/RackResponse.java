@@ -15,6 +15,10 @@
  */
 package com.squareup.rack;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -24,7 +28,8 @@ import java.util.Map;
 public class RackResponse {
   private final int status;
   private final Map<String, String> headers;
-  private final Iterator<byte[]> body;
+  private final RackBody body;
+  private Iterator<byte[]> bodyIterator;
 
   /**
    * Creates a {@link RackResponse} with the given contents.
@@ -34,6 +39,17 @@ public class RackResponse {
    * @param body the HTTP response body.
    */
   public RackResponse(int status, Map<String, String> headers, Iterator<byte[]> body) {
+    this(status, headers, new IteratorBody(body));
+  }
+
+  /**
+   * Creates a {@link RackResponse} with the given contents.
+   *
+   * @param status the HTTP status code.
+   * @param headers the HTTP response headers.
+   * @param body the HTTP response body.
+   */
+  public RackResponse(int status, Map<String, String> headers, RackBody body) {
     this.status = status;
     this.headers = headers;
     this.body = body;
@@ -54,9 +70,88 @@ public class RackResponse {
   }
 
   /**
-   * @return the HTTP response body.
+   * Calls the visitor once for each header value, splitting any newline-separated values.
+   *
+   * @param visitor the recipient of each header name and value.
+   */
+  public void visitHeaders(RackHeaders.Visitor visitor) {
+    if (headers instanceof RackHeaders) {
+      ((RackHeaders) headers).visit(visitor);
+      return;
+    }
+
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      visitLines(header.getKey(), header.getValue(), visitor);
+    }
+  }
+
+  // Behaves like value.split("\n"), dropping trailing empty values, without the regex.
+  private static void visitLines(String name, String value, RackHeaders.Visitor visitor) {
+    if (value.length() == 0) {
+      visitor.header(name, value);
+      return;
+    }
+
+    int length = value.length();
+    while (length > 0 && value.charAt(length - 1) == '\n') {
+      length--;
+    }
+
+    int start = 0;
+    while (start < length) {
+      int end = value.indexOf('\n', start);
+      if (end == -1 || end > length) {
+        end = length;
+      }
+      visitor.header(name, value.substring(start, end));
+      start = end + 1;
+    }
+  }
+
+  /**
+   * @return the HTTP response body, as an iterator over its chunks.
    */
   public Iterator<byte[]> getBody() {
+    if (bodyIterator == null) {
+      bodyIterator = body.iterator();
+    }
+    return bodyIterator;
+  }
+
+  /**
+   * @return the HTTP response body, able to write itself directly onto an output stream.
+   */
+  public RackBody getRackBody() {
     return body;
   }
+
+  private static class IteratorBody implements RackBody {
+    private final Iterator<byte[]> iterator;
+
+    public IteratorBody(Iterator<byte[]> iterator) {
+      this.iterator = iterator;
+    }
+
+    @Override public Iterator<byte[]> iterator() {
+      return iterator;
+    }
+
+    @Override public void writeTo(OutputStream outputStream) throws IOException {
+      while (iterator.hasNext()) {
+        outputStream.write(iterator.next());
+      }
+    }
+
+    @Override public void writeTo(WritableByteChannel channel) throws IOException {
+      while (iterator.hasNext()) {
+        ByteBuffer chunk = ByteBuffer.wrap(iterator.next());
+        while (chunk.hasRemaining()) {
+          channel.write(chunk);
+        }
+      }
+    }
+
+    @Override public void close() {
+    }
+  }
 }
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack;
+
+/**
+ * <p>A {@link RackBody} that knows its length before it is written, such as a Ruby Array of
+ * Strings.</p>
+ *
+ * <p>Lets callers send a {@code Content-Length} header rather than chunking the body.</p>
+ */
+public interface SizedBody extends RackBody {
+  /**
+   * @return the length of the body contents in bytes, or -1 if it can't be known without writing
+   * the body.
+   */
+  long getLength();
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.google.common.base.Throwables.propagate;
+
+/**
+ * <p>Creates executors that run each task on its own virtual thread, where the JVM supports them
+ * (Java 21 and later).</p>
+ *
+ * <p>Use with {@link com.squareup.rack.servlet.RackServlet#RackServlet(RackApplication,
+ * java.util.concurrent.Executor)} when your Rack application spends most of its time blocked on
+ * downstream calls. Each request runs on a fresh virtual thread, which JRuby adopts on first use;
+ * you'll need a version of JRuby that itself supports Java 21.</p>
+ */
+public final class VirtualThreads {
+  private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR =
+      findMethod(Executors.class, "newVirtualThreadPerTaskExecutor");
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * @return whether this JVM supports virtual threads.
+   */
+  public static boolean isSupported() {
+    return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+  }
+
+  /**
+   * Creates an executor that starts a new virtual thread for each task.
+   *
+   * @return the executor.
+   * @throws UnsupportedOperationException if this JVM doesn't support virtual threads.
+   */
+  public static ExecutorService newVirtualThreadPerTaskExecutor() {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+    }
+
+    try {
+      return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+    } catch (IllegalAccessException e) {
+      throw propagate(e);
+    } catch (InvocationTargetException e) {
+      throw propagate(e.getCause());
+    }
+  }
+
+  private static Method findMethod(Class<?> klass, String name) {
+    try {
+      return klass.getMethod(name);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
@@ -17,15 +17,25 @@ package com.squareup.rack.io;
 
 import java.io.ByteArrayOutputStream;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 /**
- * An in-memory {@link java.io.OutputStream} that provides access to its internal buffer.
+ * <p>An in-memory {@link java.io.OutputStream} that provides access to its internal buffer.</p>
+ *
+ * <p>Created with a {@link ByteArrayPool}, takes its internal buffer from the pool, grows it by
+ * trading it in for a larger one, and gives it back when released.</p>
  */
 public class ByteArrayBuffer extends ByteArrayOutputStream {
+  private static final byte[] RELEASED = new byte[0];
+
+  private final ByteArrayPool pool;
+
   /**
    * Creates a new buffer with the default initial size.
    */
   public ByteArrayBuffer() {
     super();
+    this.pool = null;
   }
 
   /**
@@ -35,6 +45,64 @@ public class ByteArrayBuffer extends ByteArrayOutputStream {
    */
   public ByteArrayBuffer(int initialSize) {
     super(initialSize);
+    this.pool = null;
+  }
+
+  /**
+   * Creates a new buffer whose internal buffers are taken from the given pool.
+   *
+   * @param pool lends out the internal buffers.
+   * @param initialSize the least initial size of the internal buffer.
+   */
+  public ByteArrayBuffer(ByteArrayPool pool, int initialSize) {
+    super(0);
+    this.pool = checkNotNull(pool);
+    this.buf = pool.take(initialSize);
+  }
+
+  @Override public synchronized void write(int b) {
+    ensureCapacity(count + 1);
+    super.write(b);
+  }
+
+  @Override public synchronized void write(byte[] b, int off, int len) {
+    if (off >= 0 && len >= 0 && off + len >= 0) {
+      ensureCapacity(count + len);
+    }
+    super.write(b, off, len);
+  }
+
+  /**
+   * Grows the internal buffer, if need be, to hold at least the given number of bytes.
+   *
+   * @param minimumCapacity the fewest bytes the internal buffer must hold.
+   */
+  public synchronized void ensureCapacity(int minimumCapacity) {
+    if (minimumCapacity <= buf.length) {
+      return;
+    }
+
+    int capacity = Math.max(minimumCapacity, buf.length << 1);
+    byte[] grown = (pool != null) ? pool.take(capacity) : new byte[capacity];
+    System.arraycopy(buf, 0, grown, 0, count);
+    if (pool != null) {
+      pool.give(buf);
+    }
+    buf = grown;
+  }
+
+  /**
+   * Gives the internal buffer back to the pool, emptying this buffer. Writing afterwards takes a
+   * new one. Does nothing to buffers created without a pool.
+   */
+  public synchronized void release() {
+    if (pool == null || buf == RELEASED) {
+      return;
+    }
+
+    pool.give(buf);
+    buf = RELEASED;
+    count = 0;
   }
 
   /**
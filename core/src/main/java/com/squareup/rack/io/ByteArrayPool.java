@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.io;
+
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Lends out byte arrays for request bodies, so that steady-state request handling allocates
+ * none.</p>
+ *
+ * <p>Arrays come in power-of-two size classes from 1 KiB to 1 MiB. Each thread keeps one array of
+ * each class up to 64 KiB for itself, about 127 KiB in all; beyond that, returned arrays go to a
+ * shared queue per class, bounded by the maximum shared bytes per class. Requests for more than
+ * 1 MiB are allocated exactly and never pooled.</p>
+ *
+ * <p>An array must be returned at most once, and not used after it has been returned.</p>
+ */
+public class ByteArrayPool {
+  /** The pool shared by {@link com.squareup.rack.RackInput}s and their buffers. */
+  public static final ByteArrayPool DEFAULT = new ByteArrayPool();
+
+  /** The default for the most bytes of each size class held in the shared queues. */
+  public static final int DEFAULT_MAXIMUM_SHARED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+  private static final int SMALLEST_CLASS_SHIFT = 10;
+  private static final int LARGEST_CLASS_SHIFT = 20;
+  private static final int LARGEST_THREAD_LOCAL_CLASS_SHIFT = 16;
+  private static final int MAXIMUM_SHARED_ARRAYS_PER_CLASS = 64;
+
+  private final List<BlockingQueue<byte[]>> shared;
+  private final ThreadLocal<byte[][]> local = new ThreadLocal<byte[][]>() {
+    @Override protected byte[][] initialValue() {
+      return new byte[LARGEST_THREAD_LOCAL_CLASS_SHIFT - SMALLEST_CLASS_SHIFT + 1][];
+    }
+  };
+
+  /**
+   * Creates a pool holding up to the default shared bytes per size class.
+   */
+  public ByteArrayPool() {
+    this(DEFAULT_MAXIMUM_SHARED_BYTES_PER_CLASS);
+  }
+
+  /**
+   * @param maximumSharedBytesPerClass the most bytes of each size class held in the shared
+   * queues, besides those each thread keeps. At least one array of each class is held.
+   */
+  public ByteArrayPool(int maximumSharedBytesPerClass) {
+    checkArgument(maximumSharedBytesPerClass >= 0,
+        "maximumSharedBytesPerClass must not be negative, but was %s", maximumSharedBytesPerClass);
+
+    ImmutableList.Builder<BlockingQueue<byte[]>> queues = ImmutableList.builder();
+    for (int shift = SMALLEST_CLASS_SHIFT; shift <= LARGEST_CLASS_SHIFT; shift++) {
+      int capacity = Math.min(MAXIMUM_SHARED_ARRAYS_PER_CLASS,
+          Math.max(1, maximumSharedBytesPerClass >> shift));
+      queues.add(new ArrayBlockingQueue<byte[]>(capacity));
+    }
+    this.shared = queues.build();
+  }
+
+  /**
+   * @param minimumSize the fewest bytes the array must hold.
+   * @return an array of at least the given size, with arbitrary contents.
+   */
+  public byte[] take(int minimumSize) {
+    if (minimumSize > 1 << LARGEST_CLASS_SHIFT) {
+      return new byte[minimumSize];
+    }
+
+    int sizeClass = sizeClass(minimumSize);
+    if (sizeClass <= LARGEST_THREAD_LOCAL_CLASS_SHIFT - SMALLEST_CLASS_SHIFT) {
+      byte[][] slots = local.get();
+      byte[] array = slots[sizeClass];
+      if (array != null) {
+        slots[sizeClass] = null;
+        return array;
+      }
+    }
+
+    byte[] array = shared.get(sizeClass).poll();
+    return (array != null) ? array : new byte[1 << (sizeClass + SMALLEST_CLASS_SHIFT)];
+  }
+
+  /**
+   * Returns an array to the pool. Arrays that aren't of a size class are left to the garbage
+   * collector, as are arrays the pool has no room for.
+   *
+   * @param array an array taken from this pool.
+   */
+  public void give(byte[] array) {
+    int length = array.length;
+    if (length < 1 << SMALLEST_CLASS_SHIFT || length > 1 << LARGEST_CLASS_SHIFT
+        || Integer.bitCount(length) != 1) {
+      return;
+    }
+
+    int sizeClass = sizeClass(length);
+    if (sizeClass <= LARGEST_THREAD_LOCAL_CLASS_SHIFT - SMALLEST_CLASS_SHIFT) {
+      byte[][] slots = local.get();
+      if (slots[sizeClass] == null) {
+        slots[sizeClass] = array;
+        return;
+      }
+    }
+
+    shared.get(sizeClass).offer(array);
+  }
+
+  /**
+   * @return the index of the smallest size class holding the given number of bytes.
+   */
+  private static int sizeClass(int size) {
+    if (size <= 1 << SMALLEST_CLASS_SHIFT) {
+      return 0;
+    }
+    return Integer.SIZE - Integer.numberOfLeadingZeros(size - 1) - SMALLEST_CLASS_SHIFT;
+  }
+}
@@ -31,7 +31,10 @@ import java.nio.channels.FileChannel;
  * <p>Buffers an {@link InputStream}, making it effectively rewindable.</p>
  *
  * <p>Operates in-memory, just like a {@link java.io.BufferedInputStream}, up to a size threshold,
- * then begins buffering to disk once that size threshold is crossed.</p>
+ * then begins buffering to disk once that size threshold is crossed. Told the stream's length up
+ * front, it instead buffers in a single array large enough to hold it, or, beyond the threshold,
+ * goes straight to disk. In-memory buffers are borrowed from {@link ByteArrayPool#DEFAULT}, and
+ * given back on close.</p>
  *
  * <p>As compared with Guava's {@link com.google.common.io.FileBackedOutputStream}, does not require
  * processing the entire stream before offering its contents to client code.</p>
@@ -42,9 +45,11 @@ import java.nio.channels.FileChannel;
  * @see File#createTempFile(String, String)
  */
 public class TempfileBufferedInputStream extends InputStream {
-  private static final int DEFAULT_THRESHOLD = 1024 * 1024;
+  /** The default size threshold beyond which to buffer to disk, in bytes. */
+  public static final int DEFAULT_THRESHOLD = 1024 * 1024;
 
   private final InputStream source;
+  private final byte[] singleByte = new byte[1];
 
   private long readHead;
   private long writeHead;
@@ -72,10 +77,32 @@ public class TempfileBufferedInputStream extends InputStream {
     this.buffer = new MemoryBuffer(threshold);
   }
 
+  /**
+   * Buffers a source InputStream of the given length, in memory if it's within the given size
+   * threshold, and on disk from the start if it isn't.
+   *
+   * @param source the InputStream to buffer.
+   * @param threshold the size threshold beyond which to buffer to disk.
+   * @param expectedLength the length of the source, for example from a {@code Content-Length}
+   * header; or -1 if unknown.
+   * @throws IOException if a temporary file can't be created.
+   */
+  public TempfileBufferedInputStream(InputStream source, int threshold, long expectedLength)
+      throws IOException {
+    Preconditions.checkNotNull(source);
+    this.source = source;
+    if (expectedLength > threshold) {
+      this.buffer = new FileBackedBuffer(null, 0);
+    } else if (expectedLength >= 0) {
+      this.buffer = new MemoryBuffer(threshold, (int) expectedLength);
+    } else {
+      this.buffer = new MemoryBuffer(threshold);
+    }
+  }
+
   @Override public int read() throws IOException {
-    byte[] bytes = new byte[1];
-    int read = read(bytes);
-    return (read > 0) ? bytes[0] & 0xff : -1;
+    int read = read(singleByte, 0, 1);
+    return (read > 0) ? singleByte[0] & 0xff : -1;
   }
 
   @Override public int read(byte[] bytes) throws IOException {
@@ -148,8 +175,12 @@ public class TempfileBufferedInputStream extends InputStream {
     private final int threshold;
 
     public MemoryBuffer(int threshold) {
+      this(threshold, 0);
+    }
+
+    public MemoryBuffer(int threshold, int initialSize) {
       this.threshold = threshold;
-      this.cacheOutputStream = new ByteArrayBuffer();
+      this.cacheOutputStream = new ByteArrayBuffer(ByteArrayPool.DEFAULT, initialSize);
     }
 
     public void replay(byte[] bytes, int offset, int bytesToTransfer) {
@@ -167,13 +198,17 @@ public class TempfileBufferedInputStream extends InputStream {
     }
 
     @Override public Buffer embiggened() throws IOException {
-      return new FileBackedBuffer(cacheOutputStream);
+      Buffer fileBackedBuffer =
+          new FileBackedBuffer(cacheOutputStream.getBuffer(), cacheOutputStream.getLength());
+      cacheOutputStream.release();
+      return fileBackedBuffer;
     }
 
     @Override public void sync() {
     }
 
     @Override public void close() {
+      cacheOutputStream.release();
     }
   }
 
@@ -182,12 +217,14 @@ public class TempfileBufferedInputStream extends InputStream {
     private final FileChannel inputChannel;
     private MappedByteBuffer mappedByteBuffer;
 
-    public FileBackedBuffer(ByteArrayBuffer baos) throws IOException {
+    public FileBackedBuffer(byte[] bytes, int length) throws IOException {
       File tempFile = File.createTempFile("stream-buffer", ".buf");
       try {
         FileOutputStream fileOutputStream = createFileOutputStream(tempFile);
         outputStream = new BufferedOutputStream(fileOutputStream);
-        outputStream.write(baos.getBuffer(), 0, baos.getLength());
+        if (length > 0) {
+          outputStream.write(bytes, 0, length);
+        }
 
         inputChannel = createFileInputStream(tempFile).getChannel();
       } finally {
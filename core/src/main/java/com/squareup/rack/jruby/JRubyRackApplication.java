@@ -17,26 +17,28 @@ package com.squareup.rack.jruby;
 
 import com.squareup.rack.RackApplication;
 import com.squareup.rack.RackEnvironment;
-import com.squareup.rack.RackInput;
+import com.squareup.rack.RackHeaders;
 import com.squareup.rack.RackResponse;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.io.File;
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
+import org.jruby.RubyFixnum;
 import org.jruby.RubyHash;
+import org.jruby.RubyNumeric;
 import org.jruby.internal.runtime.ThreadService;
 import org.jruby.runtime.builtin.IRubyObject;
 
-import static org.jruby.RubyHash.newHash;
-
 /**
- * Adapts a (RubyObject) Rack application into Java-space.
+ * <p>Adapts a (RubyObject) Rack application into Java-space.</p>
+ *
+ * <p>May be called from any thread, including short-lived ones such as virtual threads: JRuby
+ * adopts each calling thread on first use.</p>
  */
 public class JRubyRackApplication implements RackApplication {
   private final IRubyObject application;
   private final Ruby runtime;
   private final ThreadService threadService;
+  private final JRubyRackEnvironmentConverter environmentConverter;
 
   /**
    * <p>Creates a {@link RackApplication} that delegates to the given Ruby Rack application.</p>
@@ -52,6 +54,7 @@ public class JRubyRackApplication implements RackApplication {
     this.application = application;
     this.runtime = application.getRuntime();
     this.threadService = runtime.getThreadService();
+    this.environmentConverter = JRubyRackEnvironmentConverter.forRuntime(runtime);
   }
 
   /**
@@ -61,49 +64,42 @@ public class JRubyRackApplication implements RackApplication {
    * @return the Rack response
    */
   @Override public RackResponse call(RackEnvironment environment) {
-    RubyHash environmentHash = convertToRubyHash(environment.entrySet());
+    RubyHash environmentHash = new JRubyRackEnvironmentHash(environmentConverter, environment);
 
     RubyArray response = callRackApplication(environmentHash);
 
     return convertToJavaRackResponse(response);
   }
 
-  private RubyHash convertToRubyHash(Set<Map.Entry<String, Object>> entries) {
-    RubyHash hash = newHash(runtime);
-
-    for (Map.Entry<String, Object> entry : entries) {
-      String key = entry.getKey();
-      Object value = entry.getValue();
-
-      if (key.equals("rack.input")) {
-        value = new JRubyRackInput(runtime, (RackInput) value);
-      }
-
-      if (key.equals("rack.version")) {
-        value = convertToRubyArray((List<Integer>) value);
-      }
-
-      hash.put(key, value);
-    }
-
-    return hash;
-  }
-
-  private RubyArray convertToRubyArray(List<Integer> list) {
-    RubyArray array = RubyArray.newEmptyArray(runtime);
-    array.addAll(list);
-    return array;
-  }
-
   private RubyArray callRackApplication(RubyHash rubyHash) {
     return (RubyArray) application.callMethod(threadService.getCurrentContext(), "call", rubyHash);
   }
 
   private RackResponse convertToJavaRackResponse(RubyArray response) {
-    int status = Integer.parseInt(response.get(0).toString(), 10);
-    Map headers = (Map) response.get(1);
-    IRubyObject body = (IRubyObject) response.get(2);
+    int status = convertToJavaStatus(response.entry(0));
+    RackHeaders headers = new JRubyRackHeaders(response.entry(1).convertToHash());
+    IRubyObject body = response.entry(2);
 
-    return new RackResponse(status, headers, new JRubyRackBodyIterator(body));
+    return new RackResponse(status, headers, convertToJavaBody(status, body));
+  }
+
+  private JRubyRackBody convertToJavaBody(int status, IRubyObject body) {
+    // Partial responses, like Rack::File's 206s, name the whole file but contain only a range.
+    if (status == 200 && body.respondsTo("to_path")) {
+      IRubyObject path = body.callMethod(threadService.getCurrentContext(), "to_path");
+      return new JRubyRackFileBody(body, new File(path.convertToString().toString()));
+    }
+    // Subclasses may override each, so only plain Arrays are walked directly.
+    if (body instanceof RubyArray && body.getMetaClass() == runtime.getArray()) {
+      return new JRubyRackArrayBody((RubyArray) body);
+    }
+    return new JRubyRackBody(body);
+  }
+
+  private int convertToJavaStatus(IRubyObject status) {
+    if (status instanceof RubyFixnum) {
+      return RubyNumeric.fix2int(status);
+    }
+    return RubyNumeric.num2int(status.callMethod(threadService.getCurrentContext(), "to_i"));
   }
 }
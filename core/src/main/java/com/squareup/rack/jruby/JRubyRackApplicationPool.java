@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.jruby;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.squareup.rack.FileBackedBody;
+import com.squareup.rack.RackApplication;
+import com.squareup.rack.RackBody;
+import com.squareup.rack.RackEnvironment;
+import com.squareup.rack.RackResponse;
+import com.squareup.rack.SizedBody;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jruby.Ruby;
+import org.jruby.embed.ScriptingContainer;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Throwables.propagate;
+
+/**
+ * <p>Spreads requests across a fixed-size pool of JRuby runtimes, each hosting its own instance
+ * of the same Rack application.</p>
+ *
+ * <p>Each request checks out a runtime for its exclusive use, from the start of
+ * {@link #call(RackEnvironment)} until its response body has been consumed or closed. Requests
+ * arriving while every runtime is checked out wait up to a bounded timeout, after which
+ * {@link #call(RackEnvironment)} throws an {@link IllegalStateException}.</p>
+ *
+ * <p>Each {@link ScriptingContainer} must have its own runtime: create them with
+ * {@link org.jruby.embed.LocalContextScope#SINGLETHREAD}, not the default
+ * {@link org.jruby.embed.LocalContextScope#SINGLETON}.</p>
+ */
+public class JRubyRackApplicationPool implements RackApplication {
+  private final List<Member> members;
+  private final BlockingQueue<Member> available;
+  private final long checkoutTimeoutNanos;
+
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final AtomicLong checkouts = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong totalCheckoutNanos = new AtomicLong();
+
+  /**
+   * <p>Boots a pool of runtimes in parallel, each hosting the Rack application returned by
+   * evaluating the given script.</p>
+   *
+   * <p>Blocks until every runtime has booted.</p>
+   *
+   * @param size the number of runtimes.
+   * @param containers creates a new {@link ScriptingContainer}, and runtime, on each call.
+   * @param script Ruby code that evaluates to the Rack application, for example
+   * {@code "Rack::Builder.parse_file('config.ru').first"}.
+   * @param checkoutTimeout how long a request may wait for a runtime.
+   * @param unit the unit of {@code checkoutTimeout}.
+   */
+  public JRubyRackApplicationPool(int size, Supplier<ScriptingContainer> containers,
+      String script, long checkoutTimeout, TimeUnit unit) {
+    checkArgument(size > 0, "size must be positive, but was %s", size);
+    checkNotNull(containers);
+    checkNotNull(script);
+
+    this.members = boot(size, containers, script);
+    this.available = new ArrayBlockingQueue<Member>(size, true, members);
+    this.checkoutTimeoutNanos = unit.toNanos(checkoutTimeout);
+  }
+
+  /**
+   * Checks out a runtime, then calls its Rack application. The runtime is returned to the pool once
+   * the response body has been consumed or closed.
+   *
+   * @param environment the Rack environment
+   * @return the Rack response
+   */
+  @Override public RackResponse call(RackEnvironment environment) {
+    Member member = checkout();
+    long checkedOutAt = System.nanoTime();
+    boolean handedOff = false;
+
+    try {
+      RackResponse response = member.application.call(environment);
+      RackBody rackBody = response.getRackBody();
+      CheckedOutBody body;
+      if (rackBody instanceof FileBackedBody) {
+        body = new CheckedOutFileBody((FileBackedBody) rackBody, member, checkedOutAt);
+      } else if (rackBody instanceof SizedBody) {
+        body = new CheckedOutSizedBody((SizedBody) rackBody, member, checkedOutAt);
+      } else {
+        body = new CheckedOutBody(rackBody, member, checkedOutAt);
+      }
+      handedOff = true;
+      return new RackResponse(response.getStatus(), response.getHeaders(), body);
+    } finally {
+      if (!handedOff) {
+        checkin(member, checkedOutAt);
+      }
+    }
+  }
+
+  /**
+   * Terminates every runtime in the pool. Subsequent calls will fail.
+   */
+  public void terminate() {
+    available.clear();
+    for (Member member : members) {
+      member.container.terminate();
+    }
+  }
+
+  /**
+   * @return the number of runtimes in the pool.
+   */
+  public int getSize() {
+    return members.size();
+  }
+
+  /**
+   * @return the number of runtimes not currently checked out.
+   */
+  public int getAvailableCount() {
+    return available.size();
+  }
+
+  /**
+   * @return the number of requests currently waiting for a runtime.
+   */
+  public int getWaitingCount() {
+    return waiting.get();
+  }
+
+  /**
+   * @return the number of times a runtime has been checked out.
+   */
+  public long getCheckoutCount() {
+    return checkouts.get();
+  }
+
+  /**
+   * @return the number of requests that gave up waiting for a runtime.
+   */
+  public long getTimeoutCount() {
+    return timeouts.get();
+  }
+
+  /**
+   * @param unit the desired unit.
+   * @return the total time requests have spent waiting to check out a runtime.
+   */
+  public long getTotalWaitTime(TimeUnit unit) {
+    return unit.convert(totalWaitNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param unit the desired unit.
+   * @return the total time runtimes have spent checked out, from call until the response body was
+   * released.
+   */
+  public long getTotalCheckoutTime(TimeUnit unit) {
+    return unit.convert(totalCheckoutNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  private Member checkout() {
+    long startedAt = System.nanoTime();
+    Member member;
+
+    waiting.incrementAndGet();
+    try {
+      member = available.poll(checkoutTimeoutNanos, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw propagate(e);
+    } finally {
+      waiting.decrementAndGet();
+      totalWaitNanos.addAndGet(System.nanoTime() - startedAt);
+    }
+
+    if (member == null) {
+      timeouts.incrementAndGet();
+      throw new IllegalStateException("Timed out after "
+          + TimeUnit.NANOSECONDS.toMillis(checkoutTimeoutNanos)
+          + "ms waiting for one of " + members.size() + " JRuby runtimes.");
+    }
+
+    checkouts.incrementAndGet();
+    return member;
+  }
+
+  private void checkin(Member member, long checkedOutAt) {
+    totalCheckoutNanos.addAndGet(System.nanoTime() - checkedOutAt);
+    available.add(member);
+  }
+
+  private static List<Member> boot(int size, final Supplier<ScriptingContainer> containers,
+      final String script) {
+    ExecutorService executor = Executors.newFixedThreadPool(size);
+    List<Future<Member>> futures = new ArrayList<Future<Member>>(size);
+    boolean booted = false;
+
+    try {
+      for (int i = 0; i < size; i++) {
+        futures.add(executor.submit(new Callable<Member>() {
+          @Override public Member call() {
+            ScriptingContainer container = containers.get();
+            IRubyObject application = container.parse(script).run();
+            return new Member(container, application);
+          }
+        }));
+      }
+
+      ImmutableList.Builder<Member> members = ImmutableList.builder();
+      Map<Ruby, Boolean> runtimes = new IdentityHashMap<Ruby, Boolean>();
+      for (Future<Member> future : futures) {
+        Member member = future.get();
+        checkArgument(runtimes.put(member.runtime, true) == null,
+            "Every ScriptingContainer must have its own runtime. "
+                + "Try creating them with LocalContextScope.SINGLETHREAD.");
+        members.add(member);
+      }
+      booted = true;
+      return members.build();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw propagate(e);
+    } catch (ExecutionException e) {
+      throw propagate(e.getCause());
+    } finally {
+      executor.shutdownNow();
+      if (!booted) {
+        terminateBooted(futures);
+      }
+    }
+  }
+
+  /**
+   * Terminates the runtimes that did boot, once every boot has finished, so that a failed pool
+   * doesn't leave them behind. Runtimes shared between containers, like the global one, aren't
+   * the pool's to terminate.
+   */
+  private static void terminateBooted(List<Future<Member>> futures) {
+    List<Member> booted = new ArrayList<Member>(futures.size());
+    Map<Ruby, Integer> containersPerRuntime = new IdentityHashMap<Ruby, Integer>();
+    for (Future<Member> future : futures) {
+      try {
+        Member member = Uninterruptibles.getUninterruptibly(future);
+        Integer count = containersPerRuntime.get(member.runtime);
+        containersPerRuntime.put(member.runtime, (count == null) ? 1 : count + 1);
+        booted.add(member);
+      } catch (ExecutionException e) {
+        // Nothing booted.
+      } catch (CancellationException e) {
+        // Nothing booted.
+      }
+    }
+
+    for (Member member : booted) {
+      if (containersPerRuntime.get(member.runtime) == 1) {
+        member.container.terminate();
+      }
+    }
+  }
+
+  private static class Member {
+    private final ScriptingContainer container;
+    private final JRubyRackApplication application;
+    private final Ruby runtime;
+
+    public Member(ScriptingContainer container, IRubyObject application) {
+      this.container = container;
+      this.application = new JRubyRackApplication(application);
+      this.runtime = application.getRuntime();
+    }
+  }
+
+  /**
+   * Returns its runtime to the pool once the body has been consumed or closed.
+   */
+  private class CheckedOutBody implements RackBody {
+    private final RackBody body;
+    private final Member member;
+    private final long checkedOutAt;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    public CheckedOutBody(RackBody body, Member member, long checkedOutAt) {
+      this.body = body;
+      this.member = member;
+      this.checkedOutAt = checkedOutAt;
+    }
+
+    @Override public Iterator<byte[]> iterator() {
+      final Iterator<byte[]> chunks = body.iterator();
+
+      return new AbstractIterator<byte[]>() {
+        @Override protected byte[] computeNext() {
+          if (chunks.hasNext()) {
+            return chunks.next();
+          }
+          release();
+          return endOfData();
+        }
+      };
+    }
+
+    @Override public void writeTo(OutputStream outputStream) throws IOException {
+      try {
+        body.writeTo(outputStream);
+      } finally {
+        release();
+      }
+    }
+
+    @Override public void writeTo(WritableByteChannel channel) throws IOException {
+      try {
+        body.writeTo(channel);
+      } finally {
+        release();
+      }
+    }
+
+    @Override public void close() {
+      try {
+        body.close();
+      } finally {
+        release();
+      }
+    }
+
+    private void release() {
+      if (released.compareAndSet(false, true)) {
+        checkin(member, checkedOutAt);
+      }
+    }
+  }
+
+  private class CheckedOutFileBody extends CheckedOutBody implements FileBackedBody {
+    private final File file;
+
+    public CheckedOutFileBody(FileBackedBody body, Member member, long checkedOutAt) {
+      super(body, member, checkedOutAt);
+      this.file = body.getFile();
+    }
+
+    @Override public File getFile() {
+      return file;
+    }
+  }
+
+  private class CheckedOutSizedBody extends CheckedOutBody implements SizedBody {
+    private final long length;
+
+    public CheckedOutSizedBody(SizedBody body, Member member, long checkedOutAt) {
+      super(body, member, checkedOutAt);
+      this.length = body.getLength();
+    }
+
+    @Override public long getLength() {
+      return length;
+    }
+  }
+}
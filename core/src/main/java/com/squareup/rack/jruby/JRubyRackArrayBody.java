@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.jruby;
+
+import com.squareup.rack.SizedBody;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import org.jruby.RubyArray;
+import org.jruby.RubyString;
+import org.jruby.util.ByteList;
+
+/**
+ * <p>Adapts a (RubyArray) Rack response body, the most common kind, into Java-space.</p>
+ *
+ * <p>Walks the Array's elements directly rather than calling its {@code each} method, so that no
+ * Ruby block is set up to write it. Knows its length up front when every element is a String.</p>
+ */
+public class JRubyRackArrayBody extends JRubyRackBody implements SizedBody {
+  private final RubyArray array;
+
+  /**
+   * Creates a {@link SizedBody} backed by the given Ruby Array.
+   *
+   * @param array the backing Array.
+   */
+  public JRubyRackArrayBody(RubyArray array) {
+    super(array);
+    this.array = array;
+  }
+
+  @Override public long getLength() {
+    long length = 0;
+    for (int i = 0; i < array.getLength(); i++) {
+      Object chunk = array.eltInternal(i);
+      if (!(chunk instanceof RubyString)) {
+        return -1;
+      }
+      length += ((RubyString) chunk).getByteList().length();
+    }
+    return length;
+  }
+
+  @Override public void writeTo(OutputStream outputStream) throws IOException {
+    try {
+      for (int i = 0; i < array.getLength(); i++) {
+        ByteList chunk = chunk(i);
+        outputStream.write(chunk.unsafeBytes(), chunk.begin(), chunk.length());
+      }
+    } finally {
+      close();
+    }
+  }
+
+  @Override public void writeTo(WritableByteChannel channel) throws IOException {
+    try {
+      for (int i = 0; i < array.getLength(); i++) {
+        ByteList chunk = chunk(i);
+        ByteBuffer buffer = ByteBuffer.wrap(chunk.unsafeBytes(), chunk.begin(), chunk.length());
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+    } finally {
+      close();
+    }
+  }
+
+  private ByteList chunk(int index) {
+    return array.eltInternal(index).convertToString().getByteList();
+  }
+}
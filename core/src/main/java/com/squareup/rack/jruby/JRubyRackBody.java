@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.jruby;
+
+import com.google.common.collect.AbstractIterator;
+import com.squareup.rack.RackBody;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import org.jruby.Ruby;
+import org.jruby.runtime.Arity;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.BlockCallback;
+import org.jruby.runtime.CallBlock;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * <p>Adapts a (RubyObject) Rack response body into Java-space.</p>
+ *
+ * <p>{@link #writeTo(OutputStream)} and {@link #writeTo(WritableByteChannel)} call the body's
+ * {@code each} method with a Java block that writes each chunk straight through, avoiding the
+ * external enumerator (and its helper thread or fiber) that {@link #iterator()} requires. Each
+ * chunk is written from the Ruby String's own backing bytes, without copying them into a new array
+ * first.</p>
+ *
+ * <p>Attempts to close the body after iteration where possible.</p>
+ */
+public class JRubyRackBody implements RackBody {
+  private final IRubyObject body;
+  private boolean closed;
+
+  /**
+   * Creates a {@link RackBody} backed by the given Ruby Enumerable.
+   *
+   * @param body the backing Enumerable.
+   */
+  public JRubyRackBody(IRubyObject body) {
+    this.body = body;
+  }
+
+  @Override public Iterator<byte[]> iterator() {
+    final Iterator<byte[]> chunks = new JRubyRackBodyIterator(body);
+
+    return new AbstractIterator<byte[]>() {
+      @Override protected byte[] computeNext() {
+        if (chunks.hasNext()) {
+          return chunks.next();
+        }
+        // JRubyRackBodyIterator closes the body itself once it runs out.
+        closed = true;
+        return endOfData();
+      }
+    };
+  }
+
+  @Override public void writeTo(final OutputStream outputStream) throws IOException {
+    each(new ChunkWriter() {
+      @Override protected void write(ByteList chunk) throws IOException {
+        outputStream.write(chunk.unsafeBytes(), chunk.begin(), chunk.length());
+      }
+    });
+  }
+
+  @Override public void writeTo(final WritableByteChannel channel) throws IOException {
+    each(new ChunkWriter() {
+      @Override protected void write(ByteList chunk) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk.unsafeBytes(), chunk.begin(), chunk.length());
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+    });
+  }
+
+  private void each(ChunkWriter writer) throws IOException {
+    Ruby runtime = body.getRuntime();
+    ThreadContext threadContext = runtime.getCurrentContext();
+    Block block = CallBlock.newCallClosure(body, runtime.getObject(), Arity.ONE_ARGUMENT, writer,
+        threadContext);
+
+    try {
+      body.callMethod(threadContext, "each", IRubyObject.NULL_ARRAY, block);
+    } catch (ChunkWriteException e) {
+      throw e.getCause();
+    } finally {
+      close();
+    }
+  }
+
+  @Override public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    if (body.respondsTo("close")) {
+      body.callMethod(body.getRuntime().getCurrentContext(), "close");
+    }
+  }
+
+  /**
+   * Writes each chunk straight from the Ruby String's backing bytes. Destinations must not keep
+   * the bytes they are given.
+   */
+  private abstract static class ChunkWriter implements BlockCallback {
+    @Override public IRubyObject call(ThreadContext context, IRubyObject[] args, Block block) {
+      try {
+        write(args[0].convertToString().getByteList());
+      } catch (IOException e) {
+        throw new ChunkWriteException(e);
+      }
+      return context.nil;
+    }
+
+    protected abstract void write(ByteList chunk) throws IOException;
+  }
+
+  /**
+   * Carries an {@link IOException} out through the Ruby {@code each} call.
+   */
+  private static class ChunkWriteException extends RuntimeException {
+    public ChunkWriteException(IOException cause) {
+      super(cause);
+    }
+
+    @Override public IOException getCause() {
+      return (IOException) super.getCause();
+    }
+  }
+}
@@ -25,11 +25,13 @@ import org.jruby.runtime.builtin.IRubyObject;
  * <p>Adapts a (RubyObject) Enumerable into Java-space.</p>
  *
  * <p>Attempts to close the Enumerable after iteration where possible.</p>
+ *
+ * <p>May be created on one thread and iterated on another: looks up the current thread's
+ * {@link ThreadContext} on each step, rather than holding on to the creating thread's.</p>
  */
 public class JRubyRackBodyIterator extends AbstractIterator<byte[]> {
   private final IRubyObject body;
-  private final ThreadContext threadContext;
-  private final RubyEnumerator enumerator;
+  private RubyEnumerator enumerator;
 
   /**
    * Creates a byte array Iterator backed by the given Ruby Enumerable.
@@ -38,20 +40,24 @@ public class JRubyRackBodyIterator extends AbstractIterator<byte[]> {
    */
   public JRubyRackBodyIterator(IRubyObject body) {
     this.body = body;
-    this.threadContext = body.getRuntime().getThreadService().getCurrentContext();
-    this.enumerator = (RubyEnumerator) body.callMethod(threadContext, "to_enum");
   }
 
   @Override protected byte[] computeNext() {
+    ThreadContext threadContext = body.getRuntime().getCurrentContext();
+
+    if (enumerator == null) {
+      enumerator = (RubyEnumerator) body.callMethod(threadContext, "to_enum");
+    }
+
     try {
       return enumerator.callMethod(threadContext, "next").convertToString().getBytes();
     } catch (RaiseException e) {
-      close();
+      close(threadContext);
       return endOfData();
     }
   }
 
-  private void close() {
+  private void close(ThreadContext threadContext) {
     if (body.respondsTo("close")) {
       body.callMethod(threadContext, "close");
     }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.jruby;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
+import com.squareup.rack.RackInput;
+import java.util.List;
+import java.util.Set;
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyString;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import static com.squareup.rack.RackEnvironment.RACK_INPUT;
+import static com.squareup.rack.RackEnvironment.RACK_URL_SCHEME;
+import static com.squareup.rack.RackEnvironment.RACK_VERSION;
+import static com.squareup.rack.RackEnvironment.REQUEST_METHOD;
+import static com.squareup.rack.RackEnvironment.SCRIPT_NAME;
+import static com.squareup.rack.RackEnvironment.SERVER_NAME;
+import static com.squareup.rack.RackEnvironment.SERVER_PORT;
+
+/**
+ * <p>Converts {@link com.squareup.rack.RackEnvironment} keys and values into Ruby objects for one
+ * runtime, reusing what it can from one request to the next.</p>
+ *
+ * <p>Keys are frozen Strings, shared by every environment hash. {@code rack.version} is a frozen
+ * Array. Values of headers that tend to repeat, like {@code HTTP_ACCEPT} and {@code HTTP_HOST},
+ * are copy-on-write views of a cached String, so applications may still modify them. Requests
+ * without a body share one frozen {@code rack.input}.</p>
+ */
+final class JRubyRackEnvironmentConverter {
+  private static final String INTERNAL_VARIABLE = "__rack_servlet_converter__";
+  private static final int MAXIMUM_CACHED_KEYS = 1024;
+  private static final int MAXIMUM_CACHED_VALUES = 256;
+
+  private static final Set<String> REPETITIVE_KEYS = ImmutableSet.of(
+      REQUEST_METHOD, SCRIPT_NAME, SERVER_NAME, SERVER_PORT, RACK_URL_SCHEME,
+      "HTTP_ACCEPT", "HTTP_ACCEPT_ENCODING", "HTTP_ACCEPT_LANGUAGE", "HTTP_CACHE_CONTROL",
+      "HTTP_CONNECTION", "HTTP_HOST", "HTTP_USER_AGENT", "HTTP_X_FORWARDED_PROTO");
+
+  private final Ruby runtime;
+  private final RubyClass environmentClass;
+  private final LoadingCache<String, RubyString> keys;
+  private final LoadingCache<String, RubyString> values;
+  private volatile RackVersion rackVersion;
+  private volatile JRubyRackInput emptyRackInput;
+
+  /**
+   * Returns the converter for the given runtime, creating it on first use.
+   *
+   * @param runtime the Ruby runtime that will host environment hashes.
+   * @return the runtime's converter.
+   */
+  static synchronized JRubyRackEnvironmentConverter forRuntime(Ruby runtime) {
+    RubyClass environmentClass = JRubyRackEnvironmentHash.getEnvironmentClass(runtime);
+
+    JRubyRackEnvironmentConverter converter = (JRubyRackEnvironmentConverter)
+        environmentClass.getInternalVariables().getInternalVariable(INTERNAL_VARIABLE);
+    if (converter == null) {
+      converter = new JRubyRackEnvironmentConverter(runtime, environmentClass);
+      environmentClass.getInternalVariables().setInternalVariable(INTERNAL_VARIABLE, converter);
+    }
+    return converter;
+  }
+
+  private JRubyRackEnvironmentConverter(final Ruby runtime, RubyClass environmentClass) {
+    this.runtime = runtime;
+    this.environmentClass = environmentClass;
+
+    this.keys = CacheBuilder.newBuilder()
+        .maximumSize(MAXIMUM_CACHED_KEYS)
+        .build(new CacheLoader<String, RubyString>() {
+          @Override public RubyString load(String key) {
+            return newFrozenString(key);
+          }
+        });
+
+    this.values = CacheBuilder.newBuilder()
+        .maximumSize(MAXIMUM_CACHED_VALUES)
+        .build(new CacheLoader<String, RubyString>() {
+          @Override public RubyString load(String value) {
+            return newFrozenString(value);
+          }
+        });
+  }
+
+  Ruby getRuntime() {
+    return runtime;
+  }
+
+  RubyClass getEnvironmentClass() {
+    return environmentClass;
+  }
+
+  RubyString convertKey(String key) {
+    return keys.getUnchecked(key);
+  }
+
+  @SuppressWarnings("unchecked")
+  IRubyObject convertValue(String key, Object value) {
+    if (value instanceof String) {
+      if (REPETITIVE_KEYS.contains(key)) {
+        return RubyString.newStringShared(runtime, values.getUnchecked((String) value));
+      }
+      return RubyString.newUnicodeString(runtime, (String) value);
+    }
+
+    if (value instanceof Boolean) {
+      return runtime.newBoolean((Boolean) value);
+    }
+
+    if (key.equals(RACK_INPUT)) {
+      return (value == RackInput.EMPTY)
+          ? convertEmptyRackInput()
+          : new JRubyRackInput(runtime, (RackInput) value);
+    }
+
+    if (key.equals(RACK_VERSION)) {
+      return convertRackVersion((List<Integer>) value);
+    }
+
+    return JavaUtil.convertJavaToUsableRubyObject(runtime, value);
+  }
+
+  private RubyArray convertRackVersion(List<Integer> version) {
+    RackVersion cached = rackVersion;
+    if (cached == null || !cached.version.equals(version)) {
+      RubyArray array = RubyArray.newEmptyArray(runtime);
+      array.addAll(version);
+      array.setFrozen(true);
+      cached = new RackVersion(version, array);
+      rackVersion = cached;
+    }
+    return cached.array;
+  }
+
+  private JRubyRackInput convertEmptyRackInput() {
+    JRubyRackInput cached = emptyRackInput;
+    if (cached == null) {
+      cached = new JRubyRackInput(runtime, RackInput.EMPTY);
+      cached.setFrozen(true);
+      emptyRackInput = cached;
+    }
+    return cached;
+  }
+
+  private RubyString newFrozenString(String string) {
+    RubyString rubyString = RubyString.newUnicodeString(runtime, string);
+    rubyString.setFrozen(true);
+    return rubyString;
+  }
+
+  private static class RackVersion {
+    private final List<Integer> version;
+    private final RubyArray array;
+
+    public RackVersion(List<Integer> version, RubyArray array) {
+      this.version = version;
+      this.array = array;
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.jruby;
+
+import com.squareup.rack.RackEnvironment;
+import java.util.Map;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyModule;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * <p>Adapts a {@link RackEnvironment} into Ruby-space, converting each entry only when it is first
+ * looked up.</p>
+ *
+ * <p>{@code []}, {@code fetch}, {@code key?} and friends convert just the entry asked for. Any
+ * other Hash method, or handing the hash to Java code that walks it, converts every remaining
+ * entry first, so applications see an ordinary Hash either way.</p>
+ */
+public class JRubyRackEnvironmentHash extends RubyHash {
+  private static final ObjectAllocator ALLOCATOR = new ObjectAllocator() {
+    public IRubyObject allocate(Ruby runtime, RubyClass klass) {
+      return new JRubyRackEnvironmentHash(runtime, klass);
+    }
+  };
+
+  // Methods that may only look at the entries they are given: everything else sees them all.
+  private static final String WRAP_EAGER_METHODS = ""
+      + "class RackServlet::Environment\n"
+      + "  lazy = [:[], :fetch, :key?, :has_key?, :include?, :member?, :[]=, :store, :to_hash]\n"
+      + "  eager = Hash.public_instance_methods(false)\n"
+      + "  eager += Enumerable.public_instance_methods(false)\n"
+      + "  eager = eager.map(&:to_sym).uniq + [:dup, :clone] - lazy\n"
+      + "  eager.each do |name|\n"
+      + "    define_method(name) do |*args, &block|\n"
+      + "      __materialize__\n"
+      + "      super(*args, &block)\n"
+      + "    end\n"
+      + "  end\n"
+      + "end\n";
+
+  private final JRubyRackEnvironmentConverter converter;
+  private final RackEnvironment environment;
+  private boolean materialized;
+
+  /**
+   * Looks up, or defines, the {@code RackServlet::Environment} class in the given runtime.
+   *
+   * @param runtime the Ruby runtime that will host environment hashes.
+   * @return the class of environment hashes.
+   */
+  static synchronized RubyClass getEnvironmentClass(Ruby runtime) {
+    RubyModule module = runtime.getOrCreateModule("RackServlet");
+    RubyClass klass = module.getClass("Environment");
+    if (klass == null) {
+      klass = module.defineClassUnder("Environment", runtime.getHash(), ALLOCATOR);
+      klass.defineAnnotatedMethods(JRubyRackEnvironmentHash.class);
+      runtime.evalScriptlet(WRAP_EAGER_METHODS);
+    }
+    return klass;
+  }
+
+  private JRubyRackEnvironmentHash(Ruby runtime, RubyClass klass) {
+    super(runtime, klass);
+    this.converter = null;
+    this.environment = null;
+    this.materialized = true;
+  }
+
+  /**
+   * Creates a Ruby Hash backed by the given {@link RackEnvironment}.
+   *
+   * @param converter the converter for the runtime that will host this instance.
+   * @param environment the backing environment.
+   */
+  JRubyRackEnvironmentHash(JRubyRackEnvironmentConverter converter, RackEnvironment environment) {
+    super(converter.getRuntime(), converter.getEnvironmentClass());
+    this.converter = converter;
+    this.environment = environment;
+  }
+
+  /**
+   * Converts every entry not yet looked up.
+   *
+   * @return nil.
+   */
+  @JRubyMethod(name = "__materialize__") public IRubyObject materialize() {
+    if (!materialized) {
+      materialized = true;
+
+      for (Map.Entry<String, Object> entry : environment.entrySet()) {
+        RubyString key = converter.convertKey(entry.getKey());
+        if (super.internalGetEntry(key) == NO_ENTRY) {
+          internalPut(key, converter.convertValue(entry.getKey(), entry.getValue()), false);
+        }
+      }
+    }
+    return getRuntime().getNil();
+  }
+
+  @Override protected IRubyObject internalGet(IRubyObject key) {
+    IRubyObject value = super.internalGet(key);
+    if (value == null && !materialized && key instanceof RubyString) {
+      value = resolve((RubyString) key);
+    }
+    return value;
+  }
+
+  @Override protected RubyHashEntry internalGetEntry(IRubyObject key) {
+    RubyHashEntry entry = super.internalGetEntry(key);
+    if (entry == NO_ENTRY && !materialized && key instanceof RubyString
+        && resolve((RubyString) key) != null) {
+      entry = super.internalGetEntry(key);
+    }
+    return entry;
+  }
+
+  @Override public RubyHash convertToHash() {
+    materialize();
+    return this;
+  }
+
+  @Override public void visitAll(Visitor visitor) {
+    materialize();
+    super.visitAll(visitor);
+  }
+
+  @Override public int size() {
+    materialize();
+    return super.size();
+  }
+
+  private IRubyObject resolve(RubyString key) {
+    String name = key.asJavaString();
+    Object value = environment.get(name);
+    if (value == null) {
+      return null;
+    }
+
+    IRubyObject rubyValue = converter.convertValue(name, value);
+    internalPut(converter.convertKey(name), rubyValue, false);
+    return rubyValue;
+  }
+}
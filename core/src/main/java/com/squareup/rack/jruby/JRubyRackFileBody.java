@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.jruby;
+
+import com.squareup.rack.FileBackedBody;
+import com.squareup.rack.FileRegionBody;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * <p>Adapts a (RubyObject) Rack response body that responds to {@code to_path}, as
+ * {@code Rack::File} bodies do, into Java-space.</p>
+ *
+ * <p>Writes the file with {@link FileChannel#transferTo(long, long, WritableByteChannel)} rather
+ * than calling the body's {@code each} method, so its contents never pass through the JRuby heap.
+ * Falls back to {@code each} if the file can't be opened. Closes the Ruby body either way.</p>
+ */
+public class JRubyRackFileBody extends JRubyRackBody implements FileBackedBody {
+  private final File file;
+
+  /**
+   * Creates a {@link FileBackedBody} backed by the given Ruby body.
+   *
+   * @param body the backing body.
+   * @param file the file named by the body's {@code to_path}.
+   */
+  public JRubyRackFileBody(IRubyObject body, File file) {
+    super(body);
+    this.file = file;
+  }
+
+  @Override public File getFile() {
+    return file;
+  }
+
+  @Override public void writeTo(OutputStream outputStream) throws IOException {
+    FileChannel channel = open();
+    if (channel == null) {
+      super.writeTo(outputStream);
+      return;
+    }
+    transfer(channel, Channels.newChannel(outputStream));
+  }
+
+  @Override public void writeTo(WritableByteChannel target) throws IOException {
+    FileChannel channel = open();
+    if (channel == null) {
+      super.writeTo(target);
+      return;
+    }
+    transfer(channel, target);
+  }
+
+  private FileChannel open() {
+    try {
+      return new RandomAccessFile(file, "r").getChannel();
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+  }
+
+  private void transfer(FileChannel channel, WritableByteChannel target) throws IOException {
+    try {
+      new FileRegionBody(channel, 0, channel.size()).writeTo(target);
+    } finally {
+      channel.close();
+      close();
+    }
+  }
+}
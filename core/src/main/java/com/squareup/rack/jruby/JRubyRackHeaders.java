@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.jruby;
+
+import com.squareup.rack.RackHeaders;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.jruby.RubyArray;
+import org.jruby.RubyEncoding;
+import org.jruby.RubyHash;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+
+/**
+ * <p>Adapts a (RubyHash) Rack response headers hash into Java-space.</p>
+ *
+ * <p>{@link #visit(Visitor)} walks the hash directly, passing on the elements of Array values
+ * (as in Rack 3) and the lines of newline-separated String values (as in Rack 1) one at a time.
+ * The {@link Map} view, with values joined by newlines, is only built if asked for.</p>
+ */
+class JRubyRackHeaders extends AbstractMap<String, String> implements RackHeaders {
+  private static final int NEWLINE = '\n';
+
+  private final RubyHash headers;
+  private Map<String, String> joined;
+
+  /**
+   * Creates a {@link RackHeaders} backed by the given Ruby Hash.
+   *
+   * @param headers the backing Hash.
+   */
+  public JRubyRackHeaders(RubyHash headers) {
+    this.headers = headers;
+  }
+
+  @Override public void visit(final Visitor visitor) {
+    headers.visitAll(new RubyHash.Visitor() {
+      @Override public void visit(IRubyObject key, IRubyObject value) {
+        String name = key.asJavaString();
+
+        if (value instanceof RubyArray) {
+          RubyArray values = (RubyArray) value;
+          for (int i = 0; i < values.getLength(); i++) {
+            visitor.header(name, values.entry(i).convertToString().toString());
+          }
+        } else {
+          visitLines(name, value.convertToString().getByteList(), visitor);
+        }
+      }
+    });
+  }
+
+  @Override public Set<Entry<String, String>> entrySet() {
+    if (joined == null) {
+      final Map<String, String> map = new LinkedHashMap<String, String>();
+
+      visit(new Visitor() {
+        @Override public void header(String name, String value) {
+          String previous = map.get(name);
+          map.put(name, (previous == null) ? value : previous + "\n" + value);
+        }
+      });
+
+      joined = Collections.unmodifiableMap(map);
+    }
+    return joined.entrySet();
+  }
+
+  // Splits on newlines, dropping trailing empty lines just like String#split.
+  private static void visitLines(String name, ByteList value, Visitor visitor) {
+    int length = value.length();
+    if (length == 0) {
+      visitor.header(name, "");
+      return;
+    }
+
+    while (length > 0 && value.get(length - 1) == NEWLINE) {
+      length--;
+    }
+
+    byte[] bytes = value.unsafeBytes();
+    int start = 0;
+    while (start < length) {
+      int end = value.indexOf(NEWLINE, start);
+      if (end == -1 || end > length) {
+        end = length;
+      }
+      visitor.header(name, RubyEncoding.decodeUTF8(bytes, value.begin() + start, end - start));
+      start = end + 1;
+    }
+  }
+}
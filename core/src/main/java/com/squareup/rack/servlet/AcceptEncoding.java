@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.servlet;
+
+import com.google.common.base.Splitter;
+import java.util.Iterator;
+
+/**
+ * Reads {@code Accept-Encoding} request headers.
+ */
+final class AcceptEncoding {
+  private static final Splitter COMMA = Splitter.on(',').trimResults().omitEmptyStrings();
+  private static final Splitter SEMICOLON = Splitter.on(';').trimResults();
+
+  private AcceptEncoding() {
+  }
+
+  /**
+   * @return true if the Accept-Encoding header lists the encoding with a nonzero quality, or lists
+   * {@code *} with a nonzero quality and doesn't mention the encoding.
+   */
+  static boolean accepts(String acceptEncoding, String encoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+
+    Boolean wildcard = null;
+    for (String coding : COMMA.split(acceptEncoding)) {
+      Iterator<String> parts = SEMICOLON.split(coding).iterator();
+      String name = parts.next();
+
+      if (name.equalsIgnoreCase(encoding)) {
+        return hasNonzeroQuality(parts);
+      } else if (name.equals("*")) {
+        wildcard = hasNonzeroQuality(parts);
+      }
+    }
+    return wildcard != null && wildcard;
+  }
+
+  private static boolean hasNonzeroQuality(Iterator<String> parameters) {
+    while (parameters.hasNext()) {
+      String parameter = parameters.next();
+      if (parameter.startsWith("q=")) {
+        try {
+          return Double.parseDouble(parameter.substring(2)) > 0;
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.servlet;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.squareup.rack.RackBody;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A {@link RackBody} made of other bodies, one after another.
+ */
+class ConcatenatedBody implements RackBody {
+  private final List<RackBody> bodies;
+
+  public ConcatenatedBody(List<RackBody> bodies) {
+    this.bodies = ImmutableList.copyOf(bodies);
+  }
+
+  @Override public Iterator<byte[]> iterator() {
+    return Iterators.concat(Iterators.transform(bodies.iterator(),
+        new Function<RackBody, Iterator<byte[]>>() {
+          @Override public Iterator<byte[]> apply(RackBody body) {
+            return body.iterator();
+          }
+        }));
+  }
+
+  @Override public void writeTo(OutputStream outputStream) throws IOException {
+    try {
+      for (RackBody body : bodies) {
+        body.writeTo(outputStream);
+      }
+    } finally {
+      close();
+    }
+  }
+
+  @Override public void writeTo(WritableByteChannel channel) throws IOException {
+    try {
+      for (RackBody body : bodies) {
+        body.writeTo(channel);
+      }
+    } finally {
+      close();
+    }
+  }
+
+  @Override public void close() {
+    for (RackBody body : bodies) {
+      body.close();
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.servlet;
+
+import com.google.common.base.Splitter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Tags responses with ETags and answers conditional GETs, in place of {@code Rack::ETag} and
+ * {@code Rack::ConditionalGet}.</p>
+ *
+ * <p>Install it by constructing the {@link RackResponsePropagator} with one. For {@code 200}
+ * responses to {@code GET} and {@code HEAD} requests:</p>
+ *
+ * <ul>
+ *   <li>Responses carrying their own {@code ETag} or {@code Last-Modified} header are answered
+ *   with {@code 304 Not Modified} when the request's {@code If-None-Match} or
+ *   {@code If-Modified-Since} header matches, without reading the body.</li>
+ *   <li>Other responses are buffered, up to a maximum size, while an MD5 digest of the body is
+ *   computed as it is written. Bodies that fit are tagged with a strong {@code ETag}, and are
+ *   answered with {@code 304 Not Modified} when {@code If-None-Match} matches. Bodies that don't
+ *   fit are sent untagged as soon as they outgrow the buffer.</li>
+ * </ul>
+ *
+ * <p>Responses marked {@code Cache-Control: no-store}, and {@code text/event-stream} responses
+ * (which must not be held back), are left alone. So are empty bodies in answer to {@code HEAD}
+ * requests, which {@code Rack::Head} may have emptied.</p>
+ */
+public class ConditionalGet {
+  /** The default for the largest body buffered to compute its ETag, in bytes. */
+  public static final int DEFAULT_MAXIMUM_BUFFER_SIZE = 256 * 1024;
+
+  private static final Splitter COMMA = Splitter.on(',').trimResults().omitEmptyStrings();
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final int maximumBufferSize;
+
+  /**
+   * Buffers bodies up to the default size to compute their ETags.
+   */
+  public ConditionalGet() {
+    this(DEFAULT_MAXIMUM_BUFFER_SIZE);
+  }
+
+  /**
+   * @param maximumBufferSize the largest body buffered to compute its ETag, in bytes.
+   */
+  public ConditionalGet(int maximumBufferSize) {
+    checkArgument(maximumBufferSize >= 0, "maximumBufferSize must not be negative, but was %s",
+        maximumBufferSize);
+    this.maximumBufferSize = maximumBufferSize;
+  }
+
+  /**
+   * @return true if the response may be answered with {@code 304 Not Modified}.
+   */
+  boolean appliesTo(HttpServletRequest request, int status) {
+    if (request == null || status != HttpServletResponse.SC_OK) {
+      return false;
+    }
+    String method = request.getMethod();
+    return "GET".equals(method) || "HEAD".equals(method);
+  }
+
+  /**
+   * @return true if the response should be buffered to compute its ETag.
+   */
+  boolean shouldTag(String contentType, String cacheControl) {
+    if (cacheControl != null && cacheControl.toLowerCase(Locale.US).contains("no-store")) {
+      return false;
+    }
+    return contentType == null
+        || !contentType.toLowerCase(Locale.US).startsWith("text/event-stream");
+  }
+
+  /**
+   * @param overflow supplies the stream to write to once the body outgrows the buffer.
+   */
+  TaggingOutputStream newTaggingOutputStream(SpillingOutputStream.Overflow overflow) {
+    return new TaggingOutputStream(maximumBufferSize, overflow);
+  }
+
+  /**
+   * @param etag the response's ETag, or null.
+   * @param lastModified the response's modification date in milliseconds, or -1 if unknown.
+   * @return true if the request's {@code If-None-Match} header, or else its
+   * {@code If-Modified-Since} header, shows that the client's copy is current.
+   */
+  static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String candidate : COMMA.split(ifNoneMatch)) {
+        if (candidate.equals("*") || (etag != null && weakly(candidate).equals(weakly(etag)))) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    if (lastModified == -1) {
+      return false;
+    }
+    long ifModifiedSince = dateHeader(request, "If-Modified-Since");
+    return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+  }
+
+  private static String weakly(String etag) {
+    return etag.startsWith("W/") ? etag.substring(2) : etag;
+  }
+
+  private static long dateHeader(HttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Digests and buffers a body, until it outgrows the buffer; from then on, passes it through to
+   * the stream supplied by an {@link SpillingOutputStream.Overflow}.
+   */
+  static class TaggingOutputStream extends SpillingOutputStream {
+    private final MessageDigest digest;
+
+    TaggingOutputStream(int maximumBufferSize, Overflow overflow) {
+      super(maximumBufferSize, overflow);
+      try {
+        this.digest = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override protected void buffered(byte[] b, int off, int len) {
+      digest.update(b, off, len);
+    }
+
+    /**
+     * @return a strong ETag for the buffered body.
+     */
+    String etag() {
+      byte[] hash = digest.digest();
+      char[] hex = new char[hash.length * 2 + 2];
+      hex[0] = '"';
+      for (int i = 0; i < hash.length; i++) {
+        hex[1 + i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+        hex[2 + i * 2] = HEX_DIGITS[hash[i] & 0xf];
+      }
+      hex[hex.length - 1] = '"';
+      return new String(hex);
+    }
+  }
+}
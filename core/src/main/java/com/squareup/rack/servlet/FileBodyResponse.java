@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.servlet;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.squareup.rack.ByteBufferBody;
+import com.squareup.rack.FileRegionBody;
+import com.squareup.rack.RackBody;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.google.common.base.Throwables.propagate;
+
+/**
+ * <p>Answers a request with a file-backed Rack response, reading the file itself.</p>
+ *
+ * <p>For {@code 200} responses to {@code GET} and {@code HEAD} requests, answers
+ * {@code If-None-Match} and {@code If-Modified-Since} with {@code 304 Not Modified}, and
+ * {@code Range} (honoring {@code If-Range}) with single or {@code multipart/byteranges}
+ * {@code 206 Partial Content} responses. For {@code 206} responses that already carry a
+ * {@code Content-Range}, as {@code Rack::File} sends, serves just that range.</p>
+ */
+class FileBodyResponse {
+  private static final int MAXIMUM_RANGES = 16;
+  private static final String BYTES_UNIT = "bytes=";
+  private static final Splitter COMMA = Splitter.on(',').trimResults().omitEmptyStrings();
+
+  private final File file;
+  private final long length;
+  private final String etag;
+  private final String lastModified;
+  private final String contentType;
+  private final String contentRange;
+  private final ByteBuffer contents;
+
+  /**
+   * @param file the file holding the response body.
+   * @param etag the response's ETag header, or null.
+   * @param lastModified the response's Last-Modified header, or null.
+   * @param contentType the response's Content-Type header, or null.
+   * @param contentRange the response's Content-Range header, or null.
+   */
+  public FileBodyResponse(File file, String etag, String lastModified, String contentType,
+      String contentRange) {
+    this(file, etag, lastModified, contentType, contentRange, null);
+  }
+
+  /**
+   * @param file the file holding the response body.
+   * @param etag the response's ETag header, or null.
+   * @param lastModified the response's Last-Modified header, or null.
+   * @param contentType the response's Content-Type header, or null.
+   * @param contentRange the response's Content-Range header, or null.
+   * @param contents the file's contents, already in memory, or null to read the file.
+   */
+  public FileBodyResponse(File file, String etag, String lastModified, String contentType,
+      String contentRange, ByteBuffer contents) {
+    this.file = file;
+    this.length = (contents == null) ? file.length() : contents.remaining();
+    this.etag = etag;
+    this.lastModified = lastModified;
+    this.contentType = contentType;
+    this.contentRange = contentRange;
+    this.contents = contents;
+  }
+
+  /**
+   * Sets the status and entity headers, then opens the file.
+   *
+   * @param request the request being answered, or null if unknown.
+   * @param response the response, whose other headers have been added but not yet committed.
+   * @param status the Rack response status.
+   * @return the body to write, possibly empty.
+   */
+  public RackBody respond(HttpServletRequest request, HttpServletResponse response, int status) {
+    String method = (request == null) ? null : request.getMethod();
+    boolean get = "GET".equals(method);
+    boolean head = "HEAD".equals(method);
+
+    if (status == HttpServletResponse.SC_PARTIAL_CONTENT && contentRange != null) {
+      ByteRange range = ByteRange.parseContentRange(contentRange);
+      if (range != null) {
+        setContentLength(response, range.length());
+        return head ? empty() : region(range);
+      }
+    }
+
+    if (status == HttpServletResponse.SC_OK && (get || head)) {
+      if (ConditionalGet.isNotModified(request, etag, lastModifiedMillis())) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return empty();
+      }
+
+      response.setHeader("Accept-Ranges", "bytes");
+      List<ByteRange> ranges = get ? requestedRanges(request) : null;
+
+      if (ranges != null && ranges.isEmpty()) {
+        response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        response.setHeader("Content-Range", "bytes */" + length);
+        setContentLength(response, 0);
+        return empty();
+      }
+
+      if (ranges != null && ranges.size() == 1) {
+        ByteRange range = ranges.get(0);
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", range.toContentRange(length));
+        setContentLength(response, range.length());
+        return region(range);
+      }
+
+      if (ranges != null) {
+        return multipartRanges(response, ranges);
+      }
+    }
+
+    setContentLength(response, length);
+    return head ? empty() : region(new ByteRange(0, length - 1));
+  }
+
+  private RackBody multipartRanges(HttpServletResponse response, List<ByteRange> ranges) {
+    String boundary = UUID.randomUUID().toString();
+    List<RackBody> parts = new ArrayList<RackBody>();
+    long total = 0;
+
+    try {
+      for (ByteRange range : ranges) {
+        StringBuilder partHeaders = new StringBuilder()
+            .append("\r\n--").append(boundary).append("\r\n");
+        if (contentType != null) {
+          partHeaders.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        partHeaders.append("Content-Range: ").append(range.toContentRange(length))
+            .append("\r\n\r\n");
+
+        byte[] partHeaderBytes = partHeaders.toString().getBytes(Charsets.US_ASCII);
+        parts.add(new ByteBufferBody(ByteBuffer.wrap(partHeaderBytes)));
+        parts.add(region(range));
+        total += partHeaderBytes.length + range.length();
+      }
+    } catch (RuntimeException e) {
+      // Don't leak the channels opened for the ranges before the one that failed.
+      for (RackBody part : parts) {
+        part.close();
+      }
+      throw e;
+    }
+
+    byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(Charsets.US_ASCII);
+    parts.add(new ByteBufferBody(ByteBuffer.wrap(trailer)));
+    total += trailer.length;
+
+    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    response.setHeader("Content-Type", "multipart/byteranges; boundary=" + boundary);
+    setContentLength(response, total);
+    return new ConcatenatedBody(parts);
+  }
+
+  /**
+   * @return the satisfiable ranges requested, empty if none are satisfiable, or null if the whole
+   * file should be sent.
+   */
+  private List<ByteRange> requestedRanges(HttpServletRequest request) {
+    String range = request.getHeader("Range");
+    if (range == null || !range.startsWith(BYTES_UNIT)) {
+      return null;
+    }
+
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange != null && !ifRangeMatches(ifRange)) {
+      return null;
+    }
+
+    List<ByteRange> ranges = new ArrayList<ByteRange>();
+    int count = 0;
+    for (String spec : COMMA.split(range.substring(BYTES_UNIT.length()))) {
+      if (++count > MAXIMUM_RANGES) {
+        return null;
+      }
+
+      ByteRange byteRange;
+      try {
+        byteRange = ByteRange.parseRangeSpec(spec, length);
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+
+      if (byteRange != null) {
+        ranges.add(byteRange);
+      }
+    }
+    return ranges;
+  }
+
+  private boolean ifRangeMatches(String ifRange) {
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return etag != null && !etag.startsWith("W/") && ifRange.equals(etag);
+    }
+    long date = HttpDates.parse(ifRange);
+    return date != -1 && lastModified != null && date == HttpDates.parse(lastModified);
+  }
+
+  /**
+   * @return the Last-Modified date the application sent, in milliseconds, or -1 if it sent none.
+   * The file's own modification time isn't the application's to vouch for.
+   */
+  private long lastModifiedMillis() {
+    return (lastModified == null) ? -1 : HttpDates.parse(lastModified);
+  }
+
+  private RackBody region(ByteRange range) {
+    if (contents != null) {
+      ByteBuffer slice = contents.duplicate();
+      slice.position(slice.position() + (int) range.first);
+      slice.limit(slice.position() + (int) range.length());
+      return new ByteBufferBody(slice);
+    }
+
+    try {
+      FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+      return new FileRegionBody(channel, range.first, range.length());
+    } catch (FileNotFoundException e) {
+      throw propagate(e);
+    }
+  }
+
+  private static RackBody empty() {
+    return new ByteBufferBody();
+  }
+
+  private static void setContentLength(HttpServletResponse response, long contentLength) {
+    response.setHeader("Content-Length", String.valueOf(contentLength));
+  }
+
+  /**
+   * An inclusive range of byte positions.
+   */
+  static class ByteRange {
+    final long first;
+    final long last;
+
+    ByteRange(long first, long last) {
+      this.first = first;
+      this.last = last;
+    }
+
+    long length() {
+      return last - first + 1;
+    }
+
+    String toContentRange(long completeLength) {
+      return "bytes " + first + "-" + last + "/" + completeLength;
+    }
+
+    /**
+     * @return the range, clamped to the file, or null if it lies entirely outside it.
+     * @throws IllegalArgumentException if the spec is malformed.
+     */
+    static ByteRange parseRangeSpec(String spec, long completeLength) {
+      int dash = spec.indexOf('-');
+      if (dash == -1) {
+        throw new IllegalArgumentException(spec);
+      }
+
+      if (dash == 0) {
+        long suffixLength = Long.parseLong(spec.substring(1));
+        if (suffixLength <= 0 || completeLength == 0) {
+          return null;
+        }
+        return new ByteRange(Math.max(0, completeLength - suffixLength), completeLength - 1);
+      }
+
+      long first = Long.parseLong(spec.substring(0, dash));
+      long last = completeLength - 1;
+      if (dash < spec.length() - 1) {
+        last = Long.parseLong(spec.substring(dash + 1));
+        if (last < first) {
+          throw new IllegalArgumentException(spec);
+        }
+      }
+
+      if (first >= completeLength) {
+        return null;
+      }
+      return new ByteRange(first, Math.min(last, completeLength - 1));
+    }
+
+    /**
+     * @return the range described by a Content-Range header, or null if there isn't one.
+     */
+    static ByteRange parseContentRange(String contentRange) {
+      if (!contentRange.startsWith("bytes ")) {
+        return null;
+      }
+      int dash = contentRange.indexOf('-');
+      int slash = contentRange.indexOf('/');
+      if (dash == -1 || slash < dash) {
+        return null;
+      }
+      try {
+        long first = Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        long last = Long.parseLong(contentRange.substring(dash + 1, slash).trim());
+        return (last < first) ? null : new ByteRange(first, last);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+}
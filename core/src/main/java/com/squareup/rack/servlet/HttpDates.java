@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.servlet;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formats and parses the dates in HTTP headers.
+ */
+final class HttpDates {
+  private static final String HTTP_DATE = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+  private HttpDates() {
+  }
+
+  static String format(long millis) {
+    return httpDateFormat().format(new Date(millis));
+  }
+
+  /**
+   * @return the date in milliseconds, or -1 if it can't be parsed.
+   */
+  static long parse(String date) {
+    try {
+      return httpDateFormat().parse(date).getTime();
+    } catch (ParseException e) {
+      return -1;
+    }
+  }
+
+  private static SimpleDateFormat httpDateFormat() {
+    SimpleDateFormat httpDate = new SimpleDateFormat(HTTP_DATE, Locale.US);
+    httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return httpDate;
+  }
+}
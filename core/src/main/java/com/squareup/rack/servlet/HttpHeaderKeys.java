@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.servlet;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.squareup.rack.RackEnvironment.CONTENT_LENGTH;
+import static com.squareup.rack.RackEnvironment.CONTENT_TYPE;
+import static com.squareup.rack.RackEnvironment.HTTP_HEADER_PREFIX;
+
+/**
+ * <p>Translates HTTP header names into Rack environment keys, such as {@code User-Agent} into
+ * {@code HTTP_USER_AGENT}.</p>
+ *
+ * <p>Standard headers, spelled in their usual or all-lowercase forms, come from a precomputed
+ * table without allocating. Other headers are translated once and kept in a bounded cache.</p>
+ */
+public final class HttpHeaderKeys {
+  private static final CharMatcher DASH = CharMatcher.is('-');
+  private static final int MAXIMUM_CACHED_NAMES = 1024;
+
+  private static final List<String> STANDARD_HEADERS = ImmutableList.of(
+      "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Authorization",
+      "Cache-Control", "Connection", "Content-Encoding", "Content-Length", "Content-MD5",
+      "Content-Type", "Cookie", "Date", "DNT", "Expect", "Forwarded", "From", "Host", "If-Match",
+      "If-Modified-Since", "If-None-Match", "If-Range", "If-Unmodified-Since", "Keep-Alive",
+      "Max-Forwards", "Origin", "Pragma", "Proxy-Authorization", "Range", "Referer", "TE",
+      "Transfer-Encoding", "Upgrade", "Upgrade-Insecure-Requests", "User-Agent", "Via", "Warning",
+      "X-CSRF-Token", "X-Forwarded-For", "X-Forwarded-Host", "X-Forwarded-Port",
+      "X-Forwarded-Proto", "X-Forwarded-Ssl", "X-HTTP-Method-Override", "X-Real-IP",
+      "X-Request-Id", "X-Requested-With");
+
+  private static final Map<String, String> STANDARD_KEYS = standardKeys();
+
+  private static final LoadingCache<String, String> CUSTOM_KEYS = CacheBuilder.newBuilder()
+      .maximumSize(MAXIMUM_CACHED_NAMES)
+      .build(new CacheLoader<String, String>() {
+        @Override public String load(String headerName) {
+          return translate(headerName);
+        }
+      });
+
+  private HttpHeaderKeys() {
+  }
+
+  /**
+   * Returns the Rack environment key for the given HTTP header name.
+   *
+   * <p>{@code Content-Length} and {@code Content-Type} become {@code CONTENT_LENGTH} and
+   * {@code CONTENT_TYPE}; every other header gains an {@code HTTP_} prefix.</p>
+   *
+   * @param headerName the header name, in any capitalization.
+   * @return the corresponding environment key.
+   */
+  public static String rackKey(String headerName) {
+    String key = STANDARD_KEYS.get(headerName);
+    if (key == null) {
+      key = CUSTOM_KEYS.getUnchecked(headerName);
+    }
+    return key;
+  }
+
+  static String translate(String headerName) {
+    String transformed = DASH.replaceFrom(headerName.toUpperCase(), "_");
+
+    if (transformed.equals(CONTENT_LENGTH) || transformed.equals(CONTENT_TYPE)) {
+      return transformed;
+    } else {
+      return HTTP_HEADER_PREFIX + transformed;
+    }
+  }
+
+  private static Map<String, String> standardKeys() {
+    Map<String, String> keys = new HashMap<String, String>();
+    for (String name : STANDARD_HEADERS) {
+      String key = translate(name).intern();
+      keys.put(name, key);
+      keys.put(name.toLowerCase(), key);
+    }
+    return ImmutableMap.copyOf(keys);
+  }
+}
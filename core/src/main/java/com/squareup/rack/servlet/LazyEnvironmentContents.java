@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.servlet;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * <p>The contents of a {@link com.squareup.rack.RackEnvironment}, drawn from an
+ * {@link HttpServletRequest} on demand.</p>
+ *
+ * <p>Holds the fixed Rack and CGI entries up front. Looks up HTTP headers and request attributes
+ * the first time each is asked for, then remembers the answer. Lists every header and attribute
+ * only when asked to iterate over the whole map.</p>
+ *
+ * <p>Where names collide, fixed entries win over headers, and headers win over attributes.</p>
+ */
+class LazyEnvironmentContents extends AbstractMap<String, Object> {
+  private static final Object ABSENT = new Object();
+
+  private final HttpServletRequest request;
+  private final Map<String, Object> fixed;
+  private final Map<String, Object> resolved = new HashMap<String, Object>();
+  private Map<String, String> headerNames;
+  private ListMultimap<String, String> foldedHeaderNames;
+  private Map<String, Object> materialized;
+
+  /**
+   * Creates a map of the given fixed entries, plus the headers and attributes of the given request.
+   *
+   * @param request the source of headers and attributes.
+   * @param fixed entries that don't depend on headers or attributes.
+   */
+  public LazyEnvironmentContents(HttpServletRequest request, Map<String, Object> fixed) {
+    this.request = request;
+    this.fixed = fixed;
+  }
+
+  @Override public Object get(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+
+    Object value = fixed.get(key);
+    if (value != null) {
+      return value;
+    }
+
+    value = resolved.get(key);
+    if (value == null) {
+      value = resolve((String) key);
+      resolved.put((String) key, (value == null) ? ABSENT : value);
+    }
+
+    return (value == ABSENT) ? null : value;
+  }
+
+  @Override public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override public Set<Entry<String, Object>> entrySet() {
+    if (materialized == null) {
+      materialized = materialize();
+    }
+    return materialized.entrySet();
+  }
+
+  private Object resolve(String key) {
+    String name = headerNames().get(key);
+    if (name != null) {
+      return headerValue(key, name);
+    }
+    return request.getAttribute(key);
+  }
+
+  private Map<String, Object> materialize() {
+    Map<String, Object> contents = new LinkedHashMap<String, Object>(fixed);
+
+    for (String key : headerNames().keySet()) {
+      if (!contents.containsKey(key)) {
+        contents.put(key, get(key));
+      }
+    }
+
+    // This will include attributes like javax.servlet.request.X509Certificate
+    Enumeration<String> attributeNames = request.getAttributeNames();
+    while (attributeNames.hasMoreElements()) {
+      String name = attributeNames.nextElement();
+      if (!contents.containsKey(name)) {
+        contents.put(name, request.getAttribute(name));
+      }
+    }
+
+    return Collections.unmodifiableMap(contents);
+  }
+
+  // Most headers arrive under a single name. Names that only differ in capitalization and
+  // punctuation, like X-Forwarded-For and X-Forwarded_For, fold into one key.
+  private Map<String, String> headerNames() {
+    if (headerNames == null) {
+      headerNames = new HashMap<String, String>();
+
+      Enumeration<String> names = request.getHeaderNames();
+      while (names.hasMoreElements()) {
+        String name = names.nextElement();
+        String key = HttpHeaderKeys.rackKey(name);
+        String first = headerNames.put(key, name);
+        if (first != null) {
+          headerNames.put(key, first);
+          if (foldedHeaderNames == null) {
+            foldedHeaderNames = ArrayListMultimap.create();
+          }
+          foldedHeaderNames.put(key, name);
+        }
+      }
+    }
+    return headerNames;
+  }
+
+  private String headerValue(String key, String name) {
+    Enumeration<String> values = request.getHeaders(name);
+    String first = values.hasMoreElements() ? values.nextElement() : "";
+    boolean folded = (foldedHeaderNames != null) && foldedHeaderNames.containsKey(key);
+    if (!values.hasMoreElements() && !folded) {
+      return first;
+    }
+
+    StringBuilder joined = new StringBuilder(first);
+    appendHeaderValues(joined, values);
+    if (folded) {
+      for (String foldedName : foldedHeaderNames.get(key)) {
+        appendHeaderValues(joined, request.getHeaders(foldedName));
+      }
+    }
+    return joined.toString();
+  }
+
+  private static void appendHeaderValues(StringBuilder joined, Enumeration<String> values) {
+    while (values.hasMoreElements()) {
+      joined.append(',').append(values.nextElement());
+    }
+  }
+}
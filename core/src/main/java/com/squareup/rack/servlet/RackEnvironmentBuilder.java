@@ -15,30 +15,24 @@
  */
 package com.squareup.rack.servlet;
 
-import com.google.common.base.CharMatcher;
-import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.InputSupplier;
 import com.squareup.rack.RackEnvironment;
 import com.squareup.rack.RackErrors;
 import com.squareup.rack.RackInput;
 import com.squareup.rack.RackLogger;
 import com.squareup.rack.io.TempfileBufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.Enumeration;
+import java.io.InputStream;
 import java.util.List;
-import java.util.Map;
 import javax.servlet.http.HttpServletRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Strings.nullToEmpty;
-import static com.google.common.base.Throwables.propagate;
-import static com.squareup.rack.RackEnvironment.CONTENT_LENGTH;
-import static com.squareup.rack.RackEnvironment.CONTENT_TYPE;
-import static com.squareup.rack.RackEnvironment.HTTP_HEADER_PREFIX;
 import static com.squareup.rack.RackEnvironment.MINECART_HTTP_SERVLET_REQUEST;
 import static com.squareup.rack.RackEnvironment.PATH_INFO;
 import static com.squareup.rack.RackEnvironment.QUERY_STRING;
@@ -55,13 +49,20 @@ import static com.squareup.rack.RackEnvironment.REQUEST_METHOD;
 import static com.squareup.rack.RackEnvironment.SCRIPT_NAME;
 import static com.squareup.rack.RackEnvironment.SERVER_NAME;
 import static com.squareup.rack.RackEnvironment.SERVER_PORT;
-import static java.util.Collections.list;
 
 /**
  * <p>Transforms an {@link HttpServletRequest} into a {@link RackEnvironment}.</p>
  *
  * <p>Conforms to version 1.2 of the Rack specification</p>.
  *
+ * <p>{@code rack.input} buffers the request body as the application reads it, sized from the
+ * declared {@code Content-Length}: in a single pooled array up to the buffer threshold, and in a
+ * temporary file beyond it. {@link RackServlet} answers requests declaring a body larger
+ * than the maximum body size with {@code 413 Request Entity Too Large}, without calling the
+ * application. Bodies of unknown length, such as chunked ones, are counted as they're buffered
+ * instead: reading past the maximum fails, and the servlet answers 413 in place of the failure
+ * that follows.</p>
+ *
  * @see <a href="http://rack.rubyforge.org/doc/SPEC.html">The Rack Specification</a>
  * @see <a href="https://tools.ietf.org/html/rfc3875#section-4.1.18">RFC 3875, section 4.1.18</a>
  * @see <a href="http://blog.phusion.nl/2013/01/23/the-new-rack-socket-hijacking-api/">The Rack
@@ -77,10 +78,59 @@ public class RackEnvironmentBuilder {
   private static final Logger RACK_ERRORS_LOGGER = LoggerFactory.getLogger(RackErrors.class);
   private static final Logger RACK_LOGGER_LOGGER = LoggerFactory.getLogger(RackLogger.class);
 
-  private static final Joiner COMMA = Joiner.on(',');
-  private static final CharMatcher DASH = CharMatcher.is('-');
+  private static final String BODY_TOO_LARGE =
+      RackEnvironmentBuilder.class.getName() + ".BODY_TOO_LARGE";
+
+  private final int bufferThreshold;
+  private final long maximumBodySize;
+
+  /**
+   * Buffers request bodies in memory up to the {@link TempfileBufferedInputStream}'s default
+   * threshold, and accepts bodies of any size.
+   */
+  public RackEnvironmentBuilder() {
+    this(TempfileBufferedInputStream.DEFAULT_THRESHOLD, Long.MAX_VALUE);
+  }
+
+  /**
+   * @param bufferThreshold the largest request body buffered in memory, in bytes. Larger bodies
+   * are buffered on disk.
+   * @param maximumBodySize the largest request body accepted, in bytes. Declared lengths are
+   * checked before the application is called; bodies of unknown length fail to read once they pass
+   * it.
+   */
+  public RackEnvironmentBuilder(int bufferThreshold, long maximumBodySize) {
+    checkArgument(bufferThreshold >= 0, "bufferThreshold must not be negative, but was %s",
+        bufferThreshold);
+    checkArgument(maximumBodySize >= 0, "maximumBodySize must not be negative, but was %s",
+        maximumBodySize);
+    this.bufferThreshold = bufferThreshold;
+    this.maximumBodySize = maximumBodySize;
+  }
+
+  /**
+   * @return true if the request declares a body larger than the maximum body size.
+   */
+  boolean rejects(HttpServletRequest request) {
+    return request.getContentLengthLong() > maximumBodySize;
+  }
+
+  /**
+   * @return true if reading the request's body failed because it passed the maximum body size.
+   */
+  boolean exceededMaximumBodySize(HttpServletRequest request) {
+    return request.getAttribute(BODY_TOO_LARGE) != null;
+  }
 
   public RackEnvironment build(HttpServletRequest request) {
+    return build(request, null);
+  }
+
+  /**
+   * @param body the request's body, already read and rewound; or null to read it from the request
+   * as the application asks for it.
+   */
+  RackEnvironment build(HttpServletRequest request, TempfileBufferedInputStream body) {
     ImmutableMap.Builder<String, Object> content = ImmutableMap.builder();
 
     content.put(REQUEST_METHOD, request.getMethod());
@@ -91,7 +141,7 @@ public class RackEnvironmentBuilder {
     content.put(SERVER_PORT, String.valueOf(request.getServerPort()));
     content.put(RACK_VERSION, VERSION_1_2);
     content.put(RACK_URL_SCHEME, request.getScheme().toLowerCase());
-    content.put(RACK_INPUT, rackInput(request));
+    content.put(RACK_INPUT, (body == null) ? rackInput(request) : new RackInput(body));
     content.put(RACK_ERRORS, new RackErrors(RACK_ERRORS_LOGGER));
     content.put(RACK_LOGGER, new RackLogger(RACK_LOGGER_LOGGER));
     content.put(RACK_MULTITHREAD, true);
@@ -102,48 +152,83 @@ public class RackEnvironmentBuilder {
     // Extra things we add that aren't in the Rack specification:
     content.put(MINECART_HTTP_SERVLET_REQUEST, request);
 
-    // HTTP headers; Multimap acrobatics ensure we normalize capitalization and
-    // punctuation differences early
-    Enumeration<String> headerNames = request.getHeaderNames();
-
-    ImmutableListMultimap.Builder<String, Object> headers = ImmutableListMultimap.builder();
+    // HTTP headers and request attributes are looked up on demand.
+    return new RackEnvironment(new LazyEnvironmentContents(request, content.build()));
+  }
 
-    while (headerNames.hasMoreElements()) {
-      String name = headerNames.nextElement();
-      headers.putAll(rackHttpHeaderKey(name), list(request.getHeaders(name)));
+  /**
+   * @return a stream that buffers the request's body as it's read from the given source: in a
+   * single array sized from its declared length up to the buffer threshold, and on disk beyond it.
+   * Bodies of unknown length fail to read once they pass the maximum body size.
+   */
+  TempfileBufferedInputStream bufferBody(HttpServletRequest request, InputStream source)
+      throws IOException {
+    long contentLength = request.getContentLengthLong();
+    if (contentLength < 0) {
+      source = new LimitedInputStream(request, source);
     }
+    return new TempfileBufferedInputStream(source, bufferThreshold, contentLength);
+  }
 
-    for (Map.Entry<String, Collection<Object>> header : headers.build().asMap().entrySet()) {
-      content.put(header.getKey(), COMMA.join(header.getValue()));
+  /**
+   * @return the shared empty input for requests declaring an empty body; otherwise an input that
+   * buffers the body once the application first reads it. Bodies of unknown length, such as
+   * HTTP/2 bodies sent without a {@code Content-Length}, may still be there.
+   */
+  private RackInput rackInput(final HttpServletRequest request) {
+    if (request.getContentLengthLong() == 0) {
+      return RackInput.EMPTY;
     }
 
-    // Request attributes
-    // This will include attributes like javax.servlet.request.X509Certificate
-    Enumeration<String> attributeNames = request.getAttributeNames();
+    return new RackInput(new InputSupplier<InputStream>() {
+      @Override public InputStream getInput() throws IOException {
+        return bufferBody(request, request.getInputStream());
+      }
+    });
+  }
 
-    while (attributeNames.hasMoreElements()) {
-      String name = attributeNames.nextElement();
-      content.put(name, request.getAttribute(name));
+  /**
+   * Counts the bytes of a body of unknown length as they're read, failing once they pass the
+   * maximum body size, and marking the request so that {@link RackServlet} answers 413.
+   */
+  private class LimitedInputStream extends FilterInputStream {
+    private final HttpServletRequest request;
+    private long count;
+
+    LimitedInputStream(HttpServletRequest request, InputStream body) {
+      super(body);
+      this.request = request;
     }
 
-    return new RackEnvironment(content.build());
-  }
+    @Override public int read() throws IOException {
+      int read = super.read();
+      if (read != -1) {
+        count(1);
+      }
+      return read;
+    }
 
-  private RackInput rackInput(HttpServletRequest request) {
-    try {
-      return new RackInput(new TempfileBufferedInputStream(request.getInputStream()));
-    } catch (IOException e) {
-      throw propagate(e);
+    @Override public int read(byte[] bytes, int offset, int length) throws IOException {
+      int read = super.read(bytes, offset, length);
+      if (read > 0) {
+        count(read);
+      }
+      return read;
     }
-  }
 
-  private String rackHttpHeaderKey(String headerName) {
-    String transformed = DASH.replaceFrom(headerName.toUpperCase(), "_");
+    @Override public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count(skipped);
+      return skipped;
+    }
 
-    if (transformed.equals(CONTENT_LENGTH) || transformed.equals(CONTENT_TYPE)) {
-      return transformed;
-    } else {
-      return HTTP_HEADER_PREFIX + transformed;
+    private void count(long read) throws IOException {
+      count += read;
+      if (count > maximumBodySize) {
+        request.setAttribute(BODY_TOO_LARGE, Boolean.TRUE);
+        throw new IOException(
+            "Request body is larger than the maximum of " + maximumBodySize + " bytes.");
+      }
     }
   }
 }
@@ -16,72 +16,519 @@
 package com.squareup.rack.servlet;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.squareup.rack.FileBackedBody;
+import com.squareup.rack.RackBody;
+import com.squareup.rack.RackHeaders;
 import com.squareup.rack.RackResponse;
+import com.squareup.rack.SizedBody;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.Map;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Set;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
 /**
- * Writes a {@link RackResponse} onto an {@link HttpServletResponse}.
+ * <p>Writes a {@link RackResponse} onto an {@link HttpServletResponse}.</p>
+ *
+ * <p>Honors {@code X-Sendfile} (and lighttpd's {@code X-Lighttpd-Send-File}) headers itself,
+ * as a front-end server would: rather than passing the header on, it closes the Rack body unread
+ * and sends the named file instead. {@code X-Accel-Redirect} names a URI only nginx can resolve,
+ * so it is passed on untouched.</p>
+ *
+ * <p>Given the request, serves file-backed bodies (see {@link FileBackedBody}) itself, answering
+ * range and conditional requests without reading the Rack body.</p>
+ *
+ * <p>Constructed with a {@link ResponseCompression}, also compresses eligible response bodies as
+ * they are written. Constructed with a {@link ConditionalGet}, also tags responses with ETags and
+ * answers conditional GETs. Constructed with a {@link WritePolicy}, also defers committing the
+ * headers and coalesces small body chunks as that policy dictates.</p>
+ *
+ * <p>Sends a {@code Content-Length} header for bodies that know their length up front (see
+ * {@link SizedBody}), such as Ruby Arrays, and for bodies buffered to compute their ETags, so that
+ * they aren't chunked. Constructed with a maximum measured size, also buffers other bodies up to
+ * that size to measure them.</p>
+ *
+ * <p>Constructed with a {@link ResponsePipeline}, writes streamed bodies on another thread while
+ * the Rack body produces the next chunks.</p>
  */
 public class RackResponsePropagator {
   private static final String RACK_INTERNAL_HEADER_PREFIX = "rack.";
+  private static final String CONTENT_LENGTH = "Content-Length";
+  private static final Set<String> SENDFILE_HEADERS =
+      ImmutableSet.of("x-sendfile", "x-lighttpd-send-file");
+
+  private final ResponseCompression compression;
+  private final ConditionalGet conditionalGet;
+  private final WritePolicy writePolicy;
+  private final int maximumMeasuredSize;
+  private final ResponsePipeline pipeline;
+
+  /**
+   * Creates a propagator that writes response bodies as they are.
+   */
+  public RackResponsePropagator() {
+    this(null, null);
+  }
+
+  /**
+   * Creates a propagator that compresses eligible response bodies.
+   *
+   * @param compression decides which responses to compress, and compresses them; or null to leave
+   * response bodies as they are.
+   */
+  public RackResponsePropagator(ResponseCompression compression) {
+    this(compression, null);
+  }
+
+  /**
+   * Creates a propagator that compresses eligible response bodies, and answers conditional GETs.
+   *
+   * @param compression decides which responses to compress, and compresses them; or null to leave
+   * response bodies as they are.
+   * @param conditionalGet tags responses with ETags and answers conditional GETs; or null to leave
+   * that to the Rack application.
+   */
+  public RackResponsePropagator(ResponseCompression compression, ConditionalGet conditionalGet) {
+    this(compression, conditionalGet, WritePolicy.IMMEDIATE);
+  }
+
+  /**
+   * Creates a propagator that compresses eligible response bodies, answers conditional GETs, and
+   * commits and writes responses as the given policy dictates.
+   *
+   * @param compression decides which responses to compress, and compresses them; or null to leave
+   * response bodies as they are.
+   * @param conditionalGet tags responses with ETags and answers conditional GETs; or null to leave
+   * that to the Rack application.
+   * @param writePolicy decides when to commit the headers and write body chunks.
+   */
+  public RackResponsePropagator(ResponseCompression compression, ConditionalGet conditionalGet,
+      WritePolicy writePolicy) {
+    this(compression, conditionalGet, writePolicy, 0);
+  }
+
+  /**
+   * Creates a propagator that compresses eligible response bodies, answers conditional GETs,
+   * commits and writes responses as the given policy dictates, and buffers bodies of unknown
+   * length up to the given size to send their {@code Content-Length}.
+   *
+   * @param compression decides which responses to compress, and compresses them; or null to leave
+   * response bodies as they are.
+   * @param conditionalGet tags responses with ETags and answers conditional GETs; or null to leave
+   * that to the Rack application.
+   * @param writePolicy decides when to commit the headers and write body chunks.
+   * @param maximumMeasuredSize the largest body buffered to measure its length, in bytes; or 0 to
+   * stream bodies of unknown length as they come. Larger bodies are sent chunked as soon as they
+   * outgrow the buffer.
+   */
+  public RackResponsePropagator(ResponseCompression compression, ConditionalGet conditionalGet,
+      WritePolicy writePolicy, int maximumMeasuredSize) {
+    this(compression, conditionalGet, writePolicy, maximumMeasuredSize, null);
+  }
+
+  /**
+   * Creates a propagator that compresses eligible response bodies, answers conditional GETs,
+   * commits and writes responses as the given policy dictates, buffers bodies of unknown length
+   * up to the given size to send their {@code Content-Length}, and writes streamed bodies through
+   * the given pipeline.
+   *
+   * @param compression decides which responses to compress, and compresses them; or null to leave
+   * response bodies as they are.
+   * @param conditionalGet tags responses with ETags and answers conditional GETs; or null to leave
+   * that to the Rack application.
+   * @param writePolicy decides when to commit the headers and write body chunks.
+   * @param maximumMeasuredSize the largest body buffered to measure its length, in bytes; or 0 to
+   * stream bodies of unknown length as they come. Larger bodies are sent chunked as soon as they
+   * outgrow the buffer.
+   * @param pipeline writes streamed bodies on another thread; or null to write them on the
+   * request thread.
+   */
+  public RackResponsePropagator(ResponseCompression compression, ConditionalGet conditionalGet,
+      WritePolicy writePolicy, int maximumMeasuredSize, ResponsePipeline pipeline) {
+    checkArgument(maximumMeasuredSize >= 0,
+        "maximumMeasuredSize must not be negative, but was %s", maximumMeasuredSize);
+    this.compression = compression;
+    this.conditionalGet = conditionalGet;
+    this.writePolicy = checkNotNull(writePolicy);
+    this.maximumMeasuredSize = maximumMeasuredSize;
+    this.pipeline = pipeline;
+  }
 
   public void propagate(RackResponse rackResponse, HttpServletResponse response) {
-    propagateStatus(rackResponse, response);
-    propagateHeaders(rackResponse, response);
-    propagateBody(rackResponse, response);
+    propagate(rackResponse, null, response);
+  }
+
+  /**
+   * Writes the Rack response, answering range and conditional requests for file-backed bodies,
+   * and conditional GETs if configured to.
+   *
+   * @param rackResponse the response to write.
+   * @param request the request being answered.
+   * @param response the servlet response.
+   */
+  public void propagate(RackResponse rackResponse, HttpServletRequest request,
+      HttpServletResponse response) {
+    RackBody fileBody = null;
+    ResponseWriter writer = null;
+
+    try {
+      propagateStatus(rackResponse, response);
+      HeaderPropagator headers = propagateHeaders(rackResponse, response);
+      writer = new ResponseWriter(rackResponse.getStatus(), request, response, headers);
+
+      File file = fileToSend(rackResponse, headers);
+      if (file != null) {
+        fileBody = new FileBodyResponse(file, headers.etag, headers.lastModified,
+            headers.contentType, headers.contentRange)
+            .respond(request, response, rackResponse.getStatus());
+        writer.write(fileBody, false);
+      } else if (conditionalGet != null
+          && conditionalGet.appliesTo(request, rackResponse.getStatus())) {
+        propagateConditionally(rackResponse.getRackBody(), request, response, headers, writer);
+      } else {
+        writer.write(rackResponse.getRackBody(), true);
+      }
+    } catch (IOException e) {
+      Throwables.propagate(e);
+    } finally {
+      if (writer != null) {
+        writer.release();
+      }
+
+      try {
+        rackResponse.getRackBody().close();
+      } finally {
+        if (fileBody != null) {
+          fileBody.close();
+        }
+      }
+    }
   }
 
   private void propagateStatus(RackResponse rackResponse, HttpServletResponse response) {
     response.setStatus(rackResponse.getStatus());
   }
 
-  private void propagateHeaders(RackResponse rackResponse, HttpServletResponse response) {
-    for (Map.Entry<String, String> header : rackResponse.getHeaders().entrySet()) {
-      if (shouldPropagateHeaderToClient(header)) {
-        for (String val : header.getValue().split("\n")) {
-          response.addHeader(header.getKey(), val);
-        }
+  private HeaderPropagator propagateHeaders(RackResponse rackResponse,
+      HttpServletResponse response) {
+    HeaderPropagator headers = new HeaderPropagator(response);
+    rackResponse.visitHeaders(headers);
+    return headers;
+  }
+
+  private File fileToSend(RackResponse rackResponse, HeaderPropagator headers) {
+    if (headers.sendfilePath != null) {
+      File sendfile = new File(headers.sendfilePath);
+      if (!sendfile.isFile()) {
+        throw Throwables.propagate(new FileNotFoundException(headers.sendfilePath));
       }
+      return sendfile;
     }
 
-    try {
-      response.flushBuffer();
-    } catch (IOException e) {
-      Throwables.propagate(e);
+    if (rackResponse.getRackBody() instanceof FileBackedBody) {
+      File file = ((FileBackedBody) rackResponse.getRackBody()).getFile();
+      if (file.isFile()) {
+        return file;
+      }
     }
+
+    return null;
   }
 
-  private boolean shouldPropagateHeaderToClient(Map.Entry<String, String> header) {
-    return !header.getKey().startsWith(RACK_INTERNAL_HEADER_PREFIX);
+  /**
+   * Answers conditional GETs, computing an ETag for the body if the response lacks validators.
+   */
+  private void propagateConditionally(RackBody body, HttpServletRequest request,
+      HttpServletResponse response, HeaderPropagator headers, final ResponseWriter writer)
+      throws IOException {
+    if (headers.etag != null || headers.lastModified != null) {
+      long lastModified =
+          (headers.lastModified == null) ? -1 : HttpDates.parse(headers.lastModified);
+      if (ConditionalGet.isNotModified(request, headers.etag, lastModified)) {
+        notModified(response, writer);
+      } else {
+        writer.write(body, true);
+      }
+      return;
+    }
+
+    if (!conditionalGet.shouldTag(headers.contentType, headers.cacheControl)) {
+      writer.write(body, true);
+      return;
+    }
+
+    ConditionalGet.TaggingOutputStream tagging = conditionalGet.newTaggingOutputStream(
+        new SpillingOutputStream.Overflow() {
+          @Override public OutputStream overflow() throws IOException {
+            return writer.open(true);
+          }
+        });
+    body.writeTo(tagging);
+    if (tagging.isOverflowed()) {
+      writer.finish();
+      return;
+    }
+
+    // Rack::Head empties the bodies of HEAD responses; an ETag for the empty body would be wrong.
+    if (tagging.size() > 0 || !"HEAD".equals(request.getMethod())) {
+      headers.etag = tagging.etag();
+      response.setHeader("ETag", headers.etag);
+      if (ConditionalGet.isNotModified(request, headers.etag, -1)) {
+        notModified(response, writer);
+        return;
+      }
+    }
+
+    writer.setKnownLength(tagging.size());
+    tagging.writeBufferTo(writer.open(true));
+    writer.finish();
+  }
+
+  private void notModified(HttpServletResponse response, ResponseWriter writer)
+      throws IOException {
+    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    writer.open(false);
+    writer.finish();
   }
 
-  private void propagateBody(RackResponse rackResponse, HttpServletResponse response) {
-    ServletOutputStream outputStream = null;
+  /**
+   * @return the encoding to compress the body with, or null to leave it alone.
+   */
+  private String negotiateCompression(int status, HttpServletRequest request,
+      HttpServletResponse response, HeaderPropagator headers, String contentLength) {
+    if (compression == null || !compression.isCompressible(request, status,
+        headers.contentType, headers.contentEncoding, contentLength, headers.cacheControl)) {
+      return null;
+    }
 
-    try {
+    if (!headers.variesOnAcceptEncoding) {
+      response.addHeader("Vary", "Accept-Encoding");
+    }
+
+    String encoding = compression.negotiate(request);
+    if (encoding != null) {
+      response.setHeader("Content-Encoding", encoding);
+      if (headers.etag != null && !headers.etag.startsWith("W/")) {
+        response.setHeader("ETag", "W/" + headers.etag);
+      }
+    }
+    return encoding;
+  }
+
+  /**
+   * Commits the response headers and opens the body, compressing it where appropriate.
+   */
+  private class ResponseWriter {
+    private final int status;
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private final HeaderPropagator headers;
+    private ServletOutputStream outputStream;
+    private ResponseCompression.CompressingOutputStream compressed;
+    private WritePolicy.PolicyOutputStream policed;
+    private long knownLength = -1;
+
+    public ResponseWriter(int status, HttpServletRequest request, HttpServletResponse response,
+        HeaderPropagator headers) {
+      this.status = status;
+      this.request = request;
+      this.response = response;
+      this.headers = headers;
+    }
+
+    /**
+     * Adds the remaining headers and flushes them, unless the write policy defers that.
+     *
+     * @param transform true if the body is the Rack body, to be compressed where appropriate and
+     * described by the Rack response's Content-Length; false if the headers already describe it.
+     * @return the stream to write the body to.
+     */
+    public OutputStream open(boolean transform) throws IOException {
+      String contentEncoding = null;
+      if (transform) {
+        String contentLength = headers.contentLength;
+        if (contentLength == null && knownLength != -1 && mayDescribeLength()) {
+          contentLength = Long.toString(knownLength);
+        }
+        contentEncoding = negotiateCompression(status, request, response, headers, contentLength);
+        if (contentLength != null && contentEncoding == null) {
+          response.addHeader(CONTENT_LENGTH, contentLength);
+        }
+      }
+
+      if (writePolicy.isImmediate()) {
+        response.flushBuffer();
+      }
       outputStream = response.getOutputStream();
-    } catch (IOException e) {
-      Throwables.propagate(e);
+
+      OutputStream out = outputStream;
+      if (contentEncoding != null) {
+        compressed = compression.compress(out, contentEncoding);
+        out = compressed;
+      }
+      if (!writePolicy.isImmediate()) {
+        policed = writePolicy.newOutputStream(out, response);
+        out = policed;
+      }
+      return out;
     }
 
-    Iterator<byte[]> body = rackResponse.getBody();
+    public void write(RackBody body, boolean transform) throws IOException {
+      if (transform && headers.contentLength == null) {
+        if (body instanceof SizedBody) {
+          knownLength = ((SizedBody) body).getLength();
+        } else if (shouldMeasure()) {
+          measure(body);
+          return;
+        }
+      }
 
-    while (body.hasNext()) {
-      try {
-        outputStream.write(body.next());
-      } catch (IOException e) {
-        Throwables.propagate(e);
+      OutputStream out = open(transform);
+      // Sized bodies are already in memory; there is nothing to overlap with writing them.
+      if (pipeline != null && transform && !(body instanceof SizedBody)) {
+        pipeline.writeTo(body, out);
+      } else {
+        body.writeTo(out);
       }
+      finish();
     }
 
-    try {
+    /**
+     * Notes the length of the Rack body, for open to describe.
+     */
+    public void setKnownLength(long knownLength) {
+      this.knownLength = knownLength;
+    }
+
+    /**
+     * Buffers the body to measure it, sending it chunked if it outgrows the buffer.
+     */
+    private void measure(RackBody body) throws IOException {
+      SpillingOutputStream measuring = new SpillingOutputStream(maximumMeasuredSize,
+          new SpillingOutputStream.Overflow() {
+            @Override public OutputStream overflow() throws IOException {
+              return open(true);
+            }
+          });
+      body.writeTo(measuring);
+
+      if (!measuring.isOverflowed()) {
+        knownLength = measuring.size();
+        measuring.writeBufferTo(open(true));
+      }
+      finish();
+    }
+
+    private boolean shouldMeasure() {
+      // Event streams must not be held back.
+      return maximumMeasuredSize > 0 && mayDescribeLength() && (headers.contentType == null
+          || !headers.contentType.toLowerCase(Locale.US).startsWith("text/event-stream"));
+    }
+
+    /**
+     * @return false if the response must not carry a Content-Length, or if the body to hand isn't
+     * the one it would describe, as with {@code HEAD} requests.
+     */
+    private boolean mayDescribeLength() {
+      return headers.transferEncoding == null
+          && status >= 200
+          && status != HttpServletResponse.SC_NO_CONTENT
+          && status != HttpServletResponse.SC_NOT_MODIFIED
+          && (request == null || !"HEAD".equals(request.getMethod()));
+    }
+
+    /**
+     * Writes out anything still held back, once the body has been written.
+     */
+    public void finish() throws IOException {
+      if (policed != null) {
+        policed.finish();
+      }
+      if (compressed != null) {
+        compressed.finish();
+      }
       outputStream.flush();
-    } catch (IOException e) {
-      Throwables.propagate(e);
+    }
+
+    public void release() {
+      if (policed != null) {
+        policed.release();
+      }
+      if (compressed != null) {
+        compressed.release();
+      }
+    }
+  }
+
+  /**
+   * Adds each header to the servlet response, holding back any sendfile header and
+   * Content-Length, and noting the headers that describe a file-backed body or decide whether to
+   * compress.
+   */
+  private static class HeaderPropagator implements RackHeaders.Visitor {
+    private final HttpServletResponse response;
+    private String sendfilePath;
+    private String contentLength;
+    private String contentType;
+    private String contentRange;
+    private String etag;
+    private String lastModified;
+    private String contentEncoding;
+    private String cacheControl;
+    private String transferEncoding;
+    private boolean variesOnAcceptEncoding;
+
+    public HeaderPropagator(HttpServletResponse response) {
+      this.response = response;
+    }
+
+    @Override public void header(String name, String value) {
+      if (name.startsWith(RACK_INTERNAL_HEADER_PREFIX)) {
+        return;
+      }
+
+      if (name.equalsIgnoreCase(CONTENT_LENGTH)) {
+        contentLength = value;
+      } else if (SENDFILE_HEADERS.contains(name.toLowerCase(Locale.US))) {
+        sendfilePath = value;
+      } else {
+        if (name.equalsIgnoreCase("Content-Type")) {
+          contentType = value;
+        } else if (name.equalsIgnoreCase("Content-Range")) {
+          contentRange = value;
+        } else if (name.equalsIgnoreCase("ETag")) {
+          etag = value;
+        } else if (name.equalsIgnoreCase("Last-Modified")) {
+          lastModified = value;
+        } else if (name.equalsIgnoreCase("Content-Encoding")) {
+          contentEncoding = value;
+        } else if (name.equalsIgnoreCase("Cache-Control")) {
+          cacheControl = value;
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+          transferEncoding = value;
+        } else if (name.equalsIgnoreCase("Vary")) {
+          variesOnAcceptEncoding |= variesOnAcceptEncoding(value);
+        }
+        response.addHeader(name, value);
+      }
+    }
+
+    private static boolean variesOnAcceptEncoding(String vary) {
+      for (String field : vary.split(",")) {
+        String trimmed = field.trim();
+        if (trimmed.equals("*") || trimmed.equalsIgnoreCase("Accept-Encoding")) {
+          return true;
+        }
+      }
+      return false;
     }
   }
 }
@@ -15,14 +15,26 @@
  */
 package com.squareup.rack.servlet;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.squareup.rack.AsyncRackApplication;
+import com.squareup.rack.ExecutorRackApplication;
 import com.squareup.rack.RackApplication;
 import com.squareup.rack.RackEnvironment;
 import com.squareup.rack.RackResponse;
+import com.squareup.rack.io.TempfileBufferedInputStream;
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * <p>Hosts a {@link RackApplication}.</p>
@@ -30,11 +42,31 @@ import javax.servlet.http.HttpServletResponse;
  * <p>Since RackServlet lacks a zero-argument constructor, you'll need to manually instantiate and
  * install it in your container, rather than declaring it in a {@code web.xml} file. See our
  * examples for concrete code.</p>
+ *
+ * <p>By default, RackServlet calls the Rack application and writes its response on the container's
+ * request thread. Constructed with an {@link Executor} or an {@link AsyncRackApplication}, it
+ * instead puts the request into asynchronous mode, returning the container's thread as soon as the
+ * Rack environment has been built. The response is written on whichever thread completes the
+ * application's future. Asynchronous mode requires installing the servlet with async support
+ * enabled; where that's missing, RackServlet waits for the future on the request thread.</p>
+ *
+ * <p>Constructed with a {@link RequestBodyPreReader}, RackServlet also reads eligible request
+ * bodies without blocking before calling the application, in either mode.</p>
+ *
+ * <p>Constructed with a {@link ResponseDrain}, RackServlet writes each response into memory, then
+ * puts the request into asynchronous mode, if it isn't already, and drains the response to the
+ * client without blocking, so that the application is released before a slow client has read
+ * it.</p>
  */
 public class RackServlet extends HttpServlet {
+  private static final Logger LOG = LoggerFactory.getLogger(RackServlet.class);
+
   private final RackEnvironmentBuilder rackEnvironmentBuilder;
   private final RackApplication rackApplication;
+  private final AsyncRackApplication asyncRackApplication;
   private final RackResponsePropagator rackResponsePropagator;
+  private final RequestBodyPreReader requestBodyPreReader;
+  private final ResponseDrain responseDrain;
 
   /**
    * Creates a servlet hosting the given {@link RackApplication}.
@@ -45,6 +77,26 @@ public class RackServlet extends HttpServlet {
     this(new RackEnvironmentBuilder(), rackApplication, new RackResponsePropagator());
   }
 
+  /**
+   * Creates a servlet hosting the given {@link RackApplication} in asynchronous mode, calling it
+   * on the given {@link Executor}.
+   *
+   * @param rackApplication the application to host.
+   * @param executor runs the application, separately from the container's request threads.
+   */
+  public RackServlet(RackApplication rackApplication, Executor executor) {
+    this(new ExecutorRackApplication(rackApplication, executor));
+  }
+
+  /**
+   * Creates a servlet hosting the given {@link AsyncRackApplication} in asynchronous mode.
+   *
+   * @param asyncRackApplication the application to host.
+   */
+  public RackServlet(AsyncRackApplication asyncRackApplication) {
+    this(new RackEnvironmentBuilder(), asyncRackApplication, new RackResponsePropagator());
+  }
+
   /**
    * Creates a servlet hosting the given {@link RackApplication} and that uses the given
    * collaborators to translate between the Servlet and Rack environments.
@@ -56,20 +108,365 @@ public class RackServlet extends HttpServlet {
   public RackServlet(RackEnvironmentBuilder rackEnvironmentBuilder,
       RackApplication rackApplication,
       RackResponsePropagator rackResponsePropagator) {
+    this(rackEnvironmentBuilder, rackApplication, rackResponsePropagator, null);
+  }
+
+  /**
+   * Creates a servlet hosting the given {@link RackApplication}, reading eligible request bodies
+   * before calling it, and that uses the given collaborators to translate between the Servlet and
+   * Rack environments.
+   *
+   * @param rackEnvironmentBuilder turns {@link HttpServletRequest}s into {@link RackEnvironment}s.
+   * @param rackApplication the application to host.
+   * @param rackResponsePropagator writes {@link RackResponse}s onto {@link HttpServletResponse}s.
+   * @param requestBodyPreReader reads request bodies without blocking before the application is
+   * called; or null to leave the application to read them.
+   */
+  public RackServlet(RackEnvironmentBuilder rackEnvironmentBuilder,
+      RackApplication rackApplication,
+      RackResponsePropagator rackResponsePropagator,
+      RequestBodyPreReader requestBodyPreReader) {
+    this(rackEnvironmentBuilder, rackApplication, rackResponsePropagator, requestBodyPreReader,
+        null);
+  }
+
+  /**
+   * Creates a servlet hosting the given {@link RackApplication}, reading eligible request bodies
+   * before calling it and draining its responses without blocking, and that uses the given
+   * collaborators to translate between the Servlet and Rack environments.
+   *
+   * @param rackEnvironmentBuilder turns {@link HttpServletRequest}s into {@link RackEnvironment}s.
+   * @param rackApplication the application to host.
+   * @param rackResponsePropagator writes {@link RackResponse}s onto {@link HttpServletResponse}s.
+   * @param requestBodyPreReader reads request bodies without blocking before the application is
+   * called; or null to leave the application to read them.
+   * @param responseDrain holds responses in memory and writes them without blocking; or null to
+   * write them as the application produces them.
+   */
+  public RackServlet(RackEnvironmentBuilder rackEnvironmentBuilder,
+      RackApplication rackApplication,
+      RackResponsePropagator rackResponsePropagator,
+      RequestBodyPreReader requestBodyPreReader,
+      ResponseDrain responseDrain) {
+    this.rackEnvironmentBuilder = rackEnvironmentBuilder;
+    this.rackApplication = checkNotNull(rackApplication);
+    this.asyncRackApplication = null;
+    this.rackResponsePropagator = rackResponsePropagator;
+    this.requestBodyPreReader = requestBodyPreReader;
+    this.responseDrain = responseDrain;
+  }
+
+  /**
+   * Creates a servlet hosting the given {@link AsyncRackApplication} in asynchronous mode, and that
+   * uses the given collaborators to translate between the Servlet and Rack environments.
+   *
+   * @param rackEnvironmentBuilder turns {@link HttpServletRequest}s into {@link RackEnvironment}s.
+   * @param asyncRackApplication the application to host.
+   * @param rackResponsePropagator writes {@link RackResponse}s onto {@link HttpServletResponse}s.
+   */
+  public RackServlet(RackEnvironmentBuilder rackEnvironmentBuilder,
+      AsyncRackApplication asyncRackApplication,
+      RackResponsePropagator rackResponsePropagator) {
+    this(rackEnvironmentBuilder, asyncRackApplication, rackResponsePropagator, null);
+  }
+
+  /**
+   * Creates a servlet hosting the given {@link AsyncRackApplication} in asynchronous mode, reading
+   * eligible request bodies before calling it, and that uses the given collaborators to translate
+   * between the Servlet and Rack environments.
+   *
+   * @param rackEnvironmentBuilder turns {@link HttpServletRequest}s into {@link RackEnvironment}s.
+   * @param asyncRackApplication the application to host.
+   * @param rackResponsePropagator writes {@link RackResponse}s onto {@link HttpServletResponse}s.
+   * @param requestBodyPreReader reads request bodies without blocking before the application is
+   * called; or null to leave the application to read them.
+   */
+  public RackServlet(RackEnvironmentBuilder rackEnvironmentBuilder,
+      AsyncRackApplication asyncRackApplication,
+      RackResponsePropagator rackResponsePropagator,
+      RequestBodyPreReader requestBodyPreReader) {
+    this(rackEnvironmentBuilder, asyncRackApplication, rackResponsePropagator,
+        requestBodyPreReader, null);
+  }
+
+  /**
+   * Creates a servlet hosting the given {@link AsyncRackApplication} in asynchronous mode, reading
+   * eligible request bodies before calling it and draining its responses without blocking, and
+   * that uses the given collaborators to translate between the Servlet and Rack environments.
+   *
+   * @param rackEnvironmentBuilder turns {@link HttpServletRequest}s into {@link RackEnvironment}s.
+   * @param asyncRackApplication the application to host.
+   * @param rackResponsePropagator writes {@link RackResponse}s onto {@link HttpServletResponse}s.
+   * @param requestBodyPreReader reads request bodies without blocking before the application is
+   * called; or null to leave the application to read them.
+   * @param responseDrain holds responses in memory and writes them without blocking; or null to
+   * write them as the application produces them.
+   */
+  public RackServlet(RackEnvironmentBuilder rackEnvironmentBuilder,
+      AsyncRackApplication asyncRackApplication,
+      RackResponsePropagator rackResponsePropagator,
+      RequestBodyPreReader requestBodyPreReader,
+      ResponseDrain responseDrain) {
     this.rackEnvironmentBuilder = rackEnvironmentBuilder;
-    this.rackApplication = rackApplication;
+    this.rackApplication = null;
+    this.asyncRackApplication = checkNotNull(asyncRackApplication);
     this.rackResponsePropagator = rackResponsePropagator;
+    this.requestBodyPreReader = requestBodyPreReader;
+    this.responseDrain = responseDrain;
   }
 
   @Override protected void service(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException {
+    if (rackEnvironmentBuilder.rejects(request)) {
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+    } else if (requestBodyPreReader != null && request.isAsyncSupported()
+        && requestBodyPreReader.appliesTo(request)) {
+      serviceAfterReadingBody(request, response);
+    } else if (asyncRackApplication == null) {
+      serviceSynchronously(request, response);
+    } else if (request.isAsyncSupported()) {
+      serviceAsynchronously(request, response);
+    } else {
+      serviceAsynchronouslyWithoutContainerSupport(request, response);
+    }
+  }
+
+  private void serviceSynchronously(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
     RackEnvironment rackEnvironment = rackEnvironmentBuilder.build(request);
 
     try {
       RackResponse rackResponse = rackApplication.call(rackEnvironment);
-      rackResponsePropagator.propagate(rackResponse, response);
+      if (responseDrain != null && request.isAsyncSupported()) {
+        propagateThenDrain(rackResponse, request, response);
+      } else {
+        rackResponsePropagator.propagate(rackResponse, request, response);
+      }
+    } catch (RuntimeException e) {
+      if (!sendBodyTooLarge(request, response)) {
+        throw e;
+      }
     } finally {
       rackEnvironment.closeRackInput();
     }
   }
+
+  private void propagateThenDrain(RackResponse rackResponse, HttpServletRequest request,
+      HttpServletResponse response) {
+    ResponseDrain.HeldResponse heldResponse = responseDrain.hold(response);
+
+    try {
+      rackResponsePropagator.propagate(rackResponse, request, heldResponse);
+    } catch (RuntimeException e) {
+      heldResponse.release();
+      throw e;
+    }
+
+    if (heldResponse.isHolding()) {
+      final AsyncContext asyncContext = startAsync(request, response);
+      heldResponse.drain(request, new Runnable() {
+        @Override public void run() {
+          asyncContext.complete();
+        }
+      });
+    }
+  }
+
+  private void serviceAsynchronously(HttpServletRequest request, HttpServletResponse response) {
+    RackEnvironment rackEnvironment = rackEnvironmentBuilder.build(request);
+    callAsynchronously(request, rackEnvironment, startAsync(request, response));
+  }
+
+  private void serviceAfterReadingBody(final HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    final AsyncContext asyncContext = startAsync(request, response);
+
+    requestBodyPreReader.read(request, rackEnvironmentBuilder, new RequestBodyPreReader.Callback() {
+      @Override public void read(TempfileBufferedInputStream body) {
+        RackEnvironment rackEnvironment;
+        try {
+          rackEnvironment = rackEnvironmentBuilder.build(request, body);
+        } catch (RuntimeException e) {
+          fail(request, (HttpServletResponse) asyncContext.getResponse(), e);
+          asyncContext.complete();
+          return;
+        }
+
+        if (asyncRackApplication == null) {
+          callOnThisThread(request, rackEnvironment, asyncContext);
+        } else {
+          callAsynchronously(request, rackEnvironment, asyncContext);
+        }
+      }
+
+      @Override public void failed(Throwable t) {
+        try {
+          fail(request, (HttpServletResponse) asyncContext.getResponse(), t);
+        } finally {
+          asyncContext.complete();
+        }
+      }
+    });
+  }
+
+  private AsyncContext startAsync(HttpServletRequest request, HttpServletResponse response) {
+    AsyncContext asyncContext = request.startAsync(request, response);
+
+    // Synchronous Rack calls aren't subject to a timeout, so neither are asynchronous ones.
+    asyncContext.setTimeout(0);
+    return asyncContext;
+  }
+
+  private void callOnThisThread(HttpServletRequest request, RackEnvironment rackEnvironment,
+      AsyncContext asyncContext) {
+    RackResponse rackResponse;
+    try {
+      rackResponse = rackApplication.call(rackEnvironment);
+    } catch (RuntimeException e) {
+      try {
+        fail(request, (HttpServletResponse) asyncContext.getResponse(), e);
+      } finally {
+        finish(rackEnvironment, asyncContext);
+      }
+      return;
+    }
+
+    propagateThenFinish(rackResponse, request, rackEnvironment, asyncContext);
+  }
+
+  private void callAsynchronously(final HttpServletRequest request,
+      final RackEnvironment rackEnvironment, final AsyncContext asyncContext) {
+    ListenableFuture<RackResponse> rackResponse;
+    try {
+      rackResponse = asyncRackApplication.call(rackEnvironment);
+    } catch (RuntimeException e) {
+      rackResponse = Futures.immediateFailedFuture(e);
+    }
+
+    Futures.addCallback(rackResponse, new FutureCallback<RackResponse>() {
+      @Override public void onSuccess(RackResponse rackResponse) {
+        propagateThenFinish(rackResponse, request, rackEnvironment, asyncContext);
+      }
+
+      @Override public void onFailure(Throwable t) {
+        try {
+          fail(request, (HttpServletResponse) asyncContext.getResponse(), t);
+        } finally {
+          finish(rackEnvironment, asyncContext);
+        }
+      }
+    });
+  }
+
+  /**
+   * Writes the response, then closes rack.input and completes the request: straight away, or,
+   * with a drain, once the held response has been written.
+   */
+  private void propagateThenFinish(RackResponse rackResponse, HttpServletRequest request,
+      RackEnvironment rackEnvironment, final AsyncContext asyncContext) {
+    HttpServletResponse asyncResponse = (HttpServletResponse) asyncContext.getResponse();
+    ResponseDrain.HeldResponse heldResponse = null;
+    boolean draining = false;
+
+    try {
+      if (responseDrain == null) {
+        rackResponsePropagator.propagate(rackResponse, request, asyncResponse);
+      } else {
+        heldResponse = responseDrain.hold(asyncResponse);
+        rackResponsePropagator.propagate(rackResponse, request, heldResponse);
+        draining = heldResponse.isHolding();
+      }
+    } catch (RuntimeException e) {
+      if (heldResponse != null) {
+        heldResponse.release();
+      }
+      fail(request, asyncResponse, e);
+    } finally {
+      if (draining) {
+        closeRackInput(rackEnvironment);
+      } else {
+        finish(rackEnvironment, asyncContext);
+      }
+    }
+
+    if (draining) {
+      heldResponse.drain(request, new Runnable() {
+        @Override public void run() {
+          asyncContext.complete();
+        }
+      });
+    }
+  }
+
+  private void serviceAsynchronouslyWithoutContainerSupport(HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    RackEnvironment rackEnvironment = rackEnvironmentBuilder.build(request);
+
+    try {
+      RackResponse rackResponse = Futures.getUnchecked(asyncRackApplication.call(rackEnvironment));
+      rackResponsePropagator.propagate(rackResponse, request, response);
+    } catch (RuntimeException e) {
+      if (!sendBodyTooLarge(request, response)) {
+        throw e;
+      }
+    } finally {
+      rackEnvironment.closeRackInput();
+    }
+  }
+
+  private void fail(HttpServletRequest request, HttpServletResponse response, Throwable t) {
+    try {
+      if (sendBodyTooLarge(request, response)) {
+        return;
+      }
+    } catch (IOException e) {
+      LOG.debug("Error sending error response.", e);
+      return;
+    }
+
+    LOG.error("Error processing Rack request.", t);
+
+    if (!response.isCommitted()) {
+      try {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      } catch (IOException e) {
+        LOG.debug("Error sending error response.", e);
+      }
+    }
+  }
+
+  /**
+   * Answers {@code 413 Request Entity Too Large} in place of a failure that followed reading a
+   * body of unknown length past the maximum body size.
+   *
+   * @return true if the failure was one of those, and so has been answered.
+   */
+  private boolean sendBodyTooLarge(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    if (!rackEnvironmentBuilder.exceededMaximumBodySize(request)) {
+      return false;
+    }
+
+    LOG.debug("Request body larger than the maximum body size.");
+    if (!response.isCommitted()) {
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+    }
+    return true;
+  }
+
+  private void finish(RackEnvironment rackEnvironment, AsyncContext asyncContext) {
+    try {
+      closeRackInput(rackEnvironment);
+    } finally {
+      asyncContext.complete();
+    }
+  }
+
+  private void closeRackInput(RackEnvironment rackEnvironment) {
+    try {
+      rackEnvironment.closeRackInput();
+    } catch (IOException e) {
+      LOG.debug("Error closing rack.input.", e);
+    }
+  }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.servlet;
+
+import com.squareup.rack.io.TempfileBufferedInputStream;
+import java.io.IOException;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Reads request bodies without blocking before the Rack application is called, so that slow
+ * uploads hold neither a container thread nor an application thread while they trickle in.</p>
+ *
+ * <p>Install it by constructing the {@link RackServlet} with one, and the servlet with async
+ * support enabled, in a Servlet 3.1 container. Requests whose {@code Content-Length} is no larger
+ * than the maximum size are put into asynchronous mode; a {@link ReadListener} spools their bodies
+ * into a {@link TempfileBufferedInputStream} as the bytes arrive, buffered in memory or on disk as
+ * the {@link RackEnvironmentBuilder} buffers {@code rack.input}, and the application is called
+ * once the whole body has been read. The application then reads {@code rack.input} from the
+ * spool.</p>
+ *
+ * <p>Larger bodies, and bodies of unknown length, are read by the application as they arrive, as
+ * before: once a request's input is non-blocking, it can't be read blockingly.</p>
+ */
+public class RequestBodyPreReader {
+  /** The default for the largest body read before calling the application, in bytes. */
+  public static final long DEFAULT_MAXIMUM_SIZE = 1024 * 1024;
+
+  private static final int READ_BUFFER_SIZE = 8192;
+
+  private final long maximumSize;
+
+  /**
+   * Reads bodies up to the default size before calling the application.
+   */
+  public RequestBodyPreReader() {
+    this(DEFAULT_MAXIMUM_SIZE);
+  }
+
+  /**
+   * @param maximumSize the largest body read before calling the application, in bytes. Bodies
+   * beyond the {@link RackEnvironmentBuilder}'s buffer threshold are spooled to disk.
+   */
+  public RequestBodyPreReader(long maximumSize) {
+    checkArgument(maximumSize > 0, "maximumSize must be positive, but was %s", maximumSize);
+    this.maximumSize = maximumSize;
+  }
+
+  /**
+   * @return true if the request's body should be read before calling the application.
+   */
+  boolean appliesTo(HttpServletRequest request) {
+    long contentLength = request.getContentLengthLong();
+    return contentLength > 0 && contentLength <= maximumSize;
+  }
+
+  /**
+   * Starts reading the request's body without blocking. The request must be in asynchronous mode.
+   *
+   * @param rackEnvironmentBuilder buffers the body, as it would for {@code rack.input}.
+   * @param callback called, on a container thread, once the body has been read or has failed.
+   */
+  void read(HttpServletRequest request, RackEnvironmentBuilder rackEnvironmentBuilder,
+      Callback callback) throws IOException {
+    ServletInputStream inputStream = request.getInputStream();
+    inputStream.setReadListener(new Spooler(inputStream,
+        rackEnvironmentBuilder.bufferBody(request, inputStream), callback));
+  }
+
+  /**
+   * Receives a pre-read body.
+   */
+  interface Callback {
+    /**
+     * @param body the whole body, rewound to its start.
+     */
+    void read(TempfileBufferedInputStream body);
+
+    void failed(Throwable t);
+  }
+
+  /**
+   * Reads through a {@link TempfileBufferedInputStream}, which keeps what it reads, for as long as
+   * the servlet input stream has bytes ready.
+   */
+  private static class Spooler implements ReadListener {
+    private final ServletInputStream inputStream;
+    private final TempfileBufferedInputStream spool;
+    private final Callback callback;
+    private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+    public Spooler(ServletInputStream inputStream, TempfileBufferedInputStream spool,
+        Callback callback) {
+      this.inputStream = inputStream;
+      this.spool = spool;
+      this.callback = callback;
+    }
+
+    @Override public void onDataAvailable() throws IOException {
+      while (inputStream.isReady() && !inputStream.isFinished()) {
+        if (spool.read(buffer) == -1) {
+          return;
+        }
+      }
+    }
+
+    @Override public void onAllDataRead() throws IOException {
+      spool.reset();
+      callback.read(spool);
+    }
+
+    @Override public void onError(Throwable t) {
+      try {
+        spool.close();
+      } catch (IOException ignored) {
+        // The request has failed already.
+      }
+      callback.failed(t);
+    }
+  }
+}
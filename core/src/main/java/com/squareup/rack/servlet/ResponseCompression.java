@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.servlet;
+
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Compresses Rack response bodies as they stream, in place of {@code Rack::Deflater}.</p>
+ *
+ * <p>Install it by constructing the {@link RackResponsePropagator} with one. Compresses responses
+ * with a body and a {@code Content-Type}, using {@code gzip} or else {@code deflate}, as the
+ * request's {@code Accept-Encoding} allows. Leaves alone responses that are already encoded, are
+ * marked {@code Cache-Control: no-transform}, declare a {@code Content-Length} below the minimum
+ * size, or have a content type that is already compressed (images, audio, video, archives, fonts)
+ * or must not be held back ({@code text/event-stream}). Responses without a
+ * {@code Content-Length} are compressed whatever their size.</p>
+ *
+ * <p>Compressed responses lose their {@code Content-Length}, gain {@code Content-Encoding}, and
+ * have a strong {@code ETag} weakened. Every response that would be compressed for some client
+ * gains {@code Vary: Accept-Encoding}.</p>
+ *
+ * <p>{@link Deflater}s and their output buffers are pooled, so that a busy server doesn't
+ * allocate (and finalize) a new one for every response.</p>
+ */
+public class ResponseCompression {
+  /** The default for the smallest body compressed, in bytes. */
+  public static final long DEFAULT_MINIMUM_SIZE = 1024;
+
+  /** The default for how many idle deflaters are kept for reuse. */
+  public static final int DEFAULT_MAXIMUM_POOLED = 64;
+
+  static final String GZIP = "gzip";
+  static final String DEFLATE = "deflate";
+
+  private static final int BUFFER_SIZE = 8192;
+  private static final Set<String> INCOMPRESSIBLE_TYPE_PREFIXES =
+      ImmutableSet.of("image/", "audio/", "video/", "font/");
+  private static final Set<String> INCOMPRESSIBLE_TYPES = ImmutableSet.of(
+      "application/gzip",
+      "application/x-gzip",
+      "application/zip",
+      "application/x-bzip2",
+      "application/x-7z-compressed",
+      "application/x-rar-compressed",
+      "application/pdf",
+      "application/octet-stream",
+      "application/font-woff",
+      "text/event-stream");
+  private static final Set<String> COMPRESSIBLE_TYPES = ImmutableSet.of("image/svg+xml");
+
+  private final int level;
+  private final long minimumSize;
+  private final BlockingQueue<Compressor> gzipPool;
+  private final BlockingQueue<Compressor> deflatePool;
+
+  /**
+   * Compresses at the default level, with the default minimum size and pool size.
+   */
+  public ResponseCompression() {
+    this(Deflater.DEFAULT_COMPRESSION, DEFAULT_MINIMUM_SIZE, DEFAULT_MAXIMUM_POOLED);
+  }
+
+  /**
+   * @param level the compression level, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}.
+   * @param minimumSize the smallest {@code Content-Length} worth compressing, in bytes.
+   * @param maximumPooled how many idle deflaters to keep, for each encoding.
+   */
+  public ResponseCompression(int level, long minimumSize, int maximumPooled) {
+    checkArgument(level == Deflater.DEFAULT_COMPRESSION || (level >= 0 && level <= 9),
+        "level must be between 0 and 9, but was %s", level);
+    checkArgument(maximumPooled > 0, "maximumPooled must be positive, but was %s", maximumPooled);
+
+    this.level = level;
+    this.minimumSize = minimumSize;
+    this.gzipPool = new ArrayBlockingQueue<Compressor>(maximumPooled);
+    this.deflatePool = new ArrayBlockingQueue<Compressor>(maximumPooled);
+  }
+
+  /**
+   * @return true if the response is one to compress, for clients that accept it.
+   */
+  boolean isCompressible(HttpServletRequest request, int status, String contentType,
+      String contentEncoding, String contentLength, String cacheControl) {
+    if (request == null || "HEAD".equals(request.getMethod())) {
+      return false;
+    }
+
+    if (status < HttpServletResponse.SC_OK
+        || status == HttpServletResponse.SC_NO_CONTENT
+        || status == HttpServletResponse.SC_RESET_CONTENT
+        || status == HttpServletResponse.SC_PARTIAL_CONTENT
+        || status == HttpServletResponse.SC_NOT_MODIFIED) {
+      return false;
+    }
+
+    if (contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity")) {
+      return false;
+    }
+
+    if (cacheControl != null && cacheControl.toLowerCase(Locale.US).contains("no-transform")) {
+      return false;
+    }
+
+    if (contentLength != null) {
+      try {
+        if (Long.parseLong(contentLength.trim()) < minimumSize) {
+          return false;
+        }
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+
+    return contentType != null && isCompressibleType(contentType);
+  }
+
+  /**
+   * @return the encoding to use, or null if the client accepts neither.
+   */
+  String negotiate(HttpServletRequest request) {
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    if (AcceptEncoding.accepts(acceptEncoding, GZIP)) {
+      return GZIP;
+    } else if (AcceptEncoding.accepts(acceptEncoding, DEFLATE)) {
+      return DEFLATE;
+    }
+    return null;
+  }
+
+  /**
+   * @return a stream compressing onto the given stream. Call {@link CompressingOutputStream#finish}
+   * once the body has been written, and {@link CompressingOutputStream#release} in any case.
+   */
+  CompressingOutputStream compress(OutputStream outputStream, String encoding) throws IOException {
+    boolean gzip = GZIP.equals(encoding);
+    BlockingQueue<Compressor> pool = gzip ? gzipPool : deflatePool;
+
+    Compressor compressor = pool.poll();
+    if (compressor == null) {
+      // gzip wraps a raw deflate stream in its own header and trailer; deflate means zlib.
+      compressor = new Compressor(new Deflater(level, gzip), new byte[BUFFER_SIZE]);
+    }
+    return new CompressingOutputStream(outputStream, compressor, pool, gzip);
+  }
+
+  private static boolean isCompressibleType(String contentType) {
+    int semicolon = contentType.indexOf(';');
+    String mimeType = (semicolon == -1 ? contentType : contentType.substring(0, semicolon))
+        .trim().toLowerCase(Locale.US);
+
+    if (COMPRESSIBLE_TYPES.contains(mimeType)) {
+      return true;
+    }
+    if (INCOMPRESSIBLE_TYPES.contains(mimeType)) {
+      return false;
+    }
+    for (String prefix : INCOMPRESSIBLE_TYPE_PREFIXES) {
+      if (mimeType.startsWith(prefix)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A deflater and the buffer it deflates into.
+   */
+  private static class Compressor {
+    private final Deflater deflater;
+    private final byte[] buffer;
+
+    public Compressor(Deflater deflater, byte[] buffer) {
+      this.deflater = deflater;
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * Deflates onto an underlying stream, in gzip or zlib format, with a pooled deflater.
+   */
+  static class CompressingOutputStream extends OutputStream {
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0,
+        0, 0, 0};
+
+    private final OutputStream out;
+    private final Compressor compressor;
+    private final BlockingQueue<Compressor> pool;
+    private final CRC32 crc;
+    private final byte[] single = new byte[1];
+    private boolean released;
+
+    CompressingOutputStream(OutputStream out, Compressor compressor,
+        BlockingQueue<Compressor> pool, boolean gzip) throws IOException {
+      this.out = out;
+      this.compressor = compressor;
+      this.pool = pool;
+      this.crc = gzip ? new CRC32() : null;
+
+      if (gzip) {
+        out.write(GZIP_HEADER);
+      }
+    }
+
+    @Override public void write(int b) throws IOException {
+      single[0] = (byte) b;
+      write(single, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return;
+      }
+      if (crc != null) {
+        crc.update(b, off, len);
+      }
+
+      Deflater deflater = compressor.deflater;
+      deflater.setInput(b, off, len);
+      while (!deflater.needsInput()) {
+        deflate();
+      }
+    }
+
+    /**
+     * Writes out the rest of the compressed stream, leaving the underlying stream open.
+     */
+    public void finish() throws IOException {
+      Deflater deflater = compressor.deflater;
+      deflater.finish();
+      while (!deflater.finished()) {
+        deflate();
+      }
+
+      if (crc != null) {
+        writeIntLittleEndian(crc.getValue());
+        writeIntLittleEndian(deflater.getBytesRead());
+      }
+    }
+
+    /**
+     * Returns the deflater to the pool. Safe to call more than once.
+     */
+    public void release() {
+      if (released) {
+        return;
+      }
+      released = true;
+
+      compressor.deflater.reset();
+      if (!pool.offer(compressor)) {
+        compressor.deflater.end();
+      }
+    }
+
+    /**
+     * Sync-flushes the deflater, so that the client can decode everything written so far, then
+     * flushes the underlying stream.
+     */
+    @Override public void flush() throws IOException {
+      if (!released && !compressor.deflater.finished()) {
+        byte[] buffer = compressor.buffer;
+        int length;
+        do {
+          length = compressor.deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+          if (length > 0) {
+            out.write(buffer, 0, length);
+          }
+        } while (length == buffer.length);
+      }
+      out.flush();
+    }
+
+    private void deflate() throws IOException {
+      byte[] buffer = compressor.buffer;
+      int length = compressor.deflater.deflate(buffer, 0, buffer.length);
+      if (length > 0) {
+        out.write(buffer, 0, length);
+      }
+    }
+
+    private void writeIntLittleEndian(long value) throws IOException {
+      out.write((int) (value & 0xff));
+      out.write((int) ((value >> 8) & 0xff));
+      out.write((int) ((value >> 16) & 0xff));
+      out.write((int) ((value >> 24) & 0xff));
+    }
+  }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.servlet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Throwables.propagate;
+
+/**
+ * <p>Holds responses in memory while they are written, so that the Rack application, and the
+ * JRuby runtime it was checked out of, are released before a slow client has read a byte.</p>
+ *
+ * <p>Install it by constructing the {@link RackServlet} with one, and the servlet with async
+ * support enabled, in a Servlet 3.1 container. Each response is written into pooled pages, then
+ * drained to the client through a {@link WriteListener}, without blocking any thread; the request
+ * completes once the client has taken the whole body. Held responses without a
+ * {@code Content-Length} are given one.</p>
+ *
+ * <p>Bodies larger than the maximum body size, and bodies that would take the bytes held across
+ * all requests beyond the maximum in flight, are written to the client as they come instead, as
+ * they would be without a drain.</p>
+ */
+public class ResponseDrain {
+  /** The default for the largest body held in memory, in bytes. */
+  public static final int DEFAULT_MAXIMUM_BODY_SIZE = 1024 * 1024;
+
+  /** The default for the most bytes held across all requests. */
+  public static final long DEFAULT_MAXIMUM_BYTES_IN_FLIGHT = 64 * 1024 * 1024;
+
+  private static final int PAGE_SIZE = 16 * 1024;
+  private static final int MAXIMUM_POOLED_PAGES = 256;
+
+  private final int maximumBodySize;
+  private final long maximumBytesInFlight;
+  private final AtomicLong bytesInFlight = new AtomicLong();
+  private final BlockingQueue<byte[]> pages = new ArrayBlockingQueue<byte[]>(MAXIMUM_POOLED_PAGES);
+
+  /**
+   * Holds bodies up to the default sizes.
+   */
+  public ResponseDrain() {
+    this(DEFAULT_MAXIMUM_BODY_SIZE, DEFAULT_MAXIMUM_BYTES_IN_FLIGHT);
+  }
+
+  /**
+   * @param maximumBodySize the largest body held in memory, in bytes.
+   * @param maximumBytesInFlight the most bytes held across all requests. Memory is reserved in
+   * pages of 16 KiB.
+   */
+  public ResponseDrain(int maximumBodySize, long maximumBytesInFlight) {
+    checkArgument(maximumBodySize >= 0, "maximumBodySize must not be negative, but was %s",
+        maximumBodySize);
+    checkArgument(maximumBytesInFlight >= 0,
+        "maximumBytesInFlight must not be negative, but was %s", maximumBytesInFlight);
+    this.maximumBodySize = maximumBodySize;
+    this.maximumBytesInFlight = maximumBytesInFlight;
+  }
+
+  /**
+   * @return the bytes currently reserved for held responses.
+   */
+  public long getBytesInFlight() {
+    return bytesInFlight.get();
+  }
+
+  /**
+   * @return a response that holds what is written to it, until drained.
+   */
+  HeldResponse hold(HttpServletResponse response) {
+    return new HeldResponse(response);
+  }
+
+  private byte[] takePage() {
+    while (true) {
+      long reserved = bytesInFlight.get();
+      if (reserved + PAGE_SIZE > maximumBytesInFlight) {
+        return null;
+      }
+      if (bytesInFlight.compareAndSet(reserved, reserved + PAGE_SIZE)) {
+        break;
+      }
+    }
+
+    byte[] page = pages.poll();
+    return (page != null) ? page : new byte[PAGE_SIZE];
+  }
+
+  private void returnPage(byte[] page) {
+    pages.offer(page);
+    bytesInFlight.addAndGet(-PAGE_SIZE);
+  }
+
+  /**
+   * Holds the body written to it in pages, until it is drained or outgrows the drain's limits.
+   */
+  class HeldResponse extends HttpServletResponseWrapper {
+    private final List<byte[]> held = new ArrayList<byte[]>();
+    private int lastPageCount;
+    private long size;
+    private boolean holding = true;
+    private ServletOutputStream outputStream;
+
+    HeldResponse(HttpServletResponse response) {
+      super(response);
+    }
+
+    @Override public ServletOutputStream getOutputStream() throws IOException {
+      if (outputStream == null) {
+        outputStream = new HoldingOutputStream();
+      }
+      return outputStream;
+    }
+
+    @Override public void flushBuffer() throws IOException {
+      if (!holding) {
+        super.flushBuffer();
+      }
+    }
+
+    @Override public void resetBuffer() {
+      if (holding) {
+        discard();
+      }
+      super.resetBuffer();
+    }
+
+    @Override public void reset() {
+      if (holding) {
+        discard();
+      }
+      super.reset();
+    }
+
+    /**
+     * @return true if the whole body written so far is held in memory.
+     */
+    boolean isHolding() {
+      return holding;
+    }
+
+    /**
+     * Writes the held body to the client without blocking, then runs the callback, on whichever
+     * thread finishes the write. Runs the callback straight away if nothing is held.
+     *
+     * @param request the request being answered, for deciding whether to add a Content-Length.
+     * @param done run once the body has been written, or writing it has failed.
+     */
+    void drain(HttpServletRequest request, final Runnable done) {
+      if (!holding) {
+        done.run();
+        return;
+      }
+
+      if (mayDescribeLength(request)) {
+        setHeader("Content-Length", Long.toString(size));
+      }
+
+      final ServletOutputStream out;
+      try {
+        out = super.getOutputStream();
+      } catch (IOException e) {
+        release();
+        done.run();
+        return;
+      }
+
+      out.setWriteListener(new WriteListener() {
+        private int index;
+        private boolean finished;
+
+        @Override public void onWritePossible() throws IOException {
+          while (!finished && out.isReady()) {
+            if (index == held.size()) {
+              finished();
+              return;
+            }
+            byte[] page = held.get(index);
+            int length = (index == held.size() - 1) ? lastPageCount : PAGE_SIZE;
+            index++;
+            out.write(page, 0, length);
+          }
+        }
+
+        @Override public void onError(Throwable t) {
+          finished();
+        }
+
+        private void finished() {
+          if (!finished) {
+            finished = true;
+            release();
+            done.run();
+          }
+        }
+      });
+    }
+
+    /**
+     * Returns the held pages to the pool. Safe to call more than once.
+     */
+    void release() {
+      discard();
+      holding = false;
+    }
+
+    private boolean mayDescribeLength(HttpServletRequest request) {
+      int status = getStatus();
+      return !containsHeader("Content-Length")
+          && !containsHeader("Transfer-Encoding")
+          && status >= 200
+          && status != SC_NO_CONTENT
+          && status != SC_NOT_MODIFIED
+          && !"HEAD".equals(request.getMethod());
+    }
+
+    private void discard() {
+      for (byte[] page : held) {
+        returnPage(page);
+      }
+      held.clear();
+      lastPageCount = 0;
+      size = 0;
+    }
+
+    /**
+     * Writes what is held to the client, and lets everything after it through.
+     */
+    private void stopHolding() throws IOException {
+      holding = false;
+      ServletOutputStream out = super.getOutputStream();
+      for (int i = 0; i < held.size(); i++) {
+        out.write(held.get(i), 0, (i == held.size() - 1) ? lastPageCount : PAGE_SIZE);
+      }
+      discard();
+    }
+
+    private class HoldingOutputStream extends ServletOutputStream {
+      @Override public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override public void write(byte[] b, int off, int len) throws IOException {
+        if (holding && size + len > maximumBodySize) {
+          stopHolding();
+        }
+
+        while (holding && len > 0) {
+          if (held.isEmpty() || lastPageCount == PAGE_SIZE) {
+            byte[] page = takePage();
+            if (page == null) {
+              stopHolding();
+              break;
+            }
+            held.add(page);
+            lastPageCount = 0;
+          }
+
+          int count = Math.min(len, PAGE_SIZE - lastPageCount);
+          System.arraycopy(b, off, held.get(held.size() - 1), lastPageCount, count);
+          lastPageCount += count;
+          size += count;
+          off += count;
+          len -= count;
+        }
+
+        if (!holding && len > 0) {
+          HeldResponse.super.getOutputStream().write(b, off, len);
+        }
+      }
+
+      @Override public void flush() throws IOException {
+        if (!holding) {
+          HeldResponse.super.getOutputStream().flush();
+        }
+      }
+
+      @Override public boolean isReady() {
+        return holding || underlying().isReady();
+      }
+
+      @Override public void setWriteListener(WriteListener writeListener) {
+        if (holding) {
+          throw new IllegalStateException("The response is held in memory until the application "
+              + "returns, and written without blocking by ResponseDrain; it can't take a "
+              + "WriteListener until it stops holding.");
+        }
+        underlying().setWriteListener(writeListener);
+      }
+
+      private ServletOutputStream underlying() {
+        try {
+          return HeldResponse.super.getOutputStream();
+        } catch (IOException e) {
+          throw propagate(e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.servlet;
+
+import com.google.common.base.Throwables;
+import com.squareup.rack.RackBody;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Overlaps producing a response body with writing it to the client.</p>
+ *
+ * <p>Install it by constructing the {@link RackResponsePropagator} with one. The request thread
+ * enumerates the Rack body, as before, but hands each chunk to a bounded queue rather than
+ * writing it; a thread from the given executor drains the queue onto the servlet response. Once
+ * the queue holds the maximum number of bytes, the request thread waits for the writer to catch
+ * up.</p>
+ *
+ * <p>The request thread doesn't return until the writer has written the whole body, or given up:
+ * if writing fails, the next chunk the body yields fails with the same exception; if the body
+ * fails, the chunks still queued are discarded.</p>
+ *
+ * <p>The executor must run tasks on threads other than the caller's, and shouldn't be the one
+ * running requests: a queued writer would never drain its queue. Should it reject a task, the
+ * body is written on the request thread instead.</p>
+ */
+public class ResponsePipeline {
+  /** The default for the most bytes queued between the body and the writer. */
+  public static final int DEFAULT_MAXIMUM_QUEUED_BYTES = 256 * 1024;
+
+  private final Executor executor;
+  private final int maximumQueuedBytes;
+
+  /**
+   * Creates a pipeline queueing up to the default number of bytes.
+   *
+   * @param executor runs the writers.
+   */
+  public ResponsePipeline(Executor executor) {
+    this(executor, DEFAULT_MAXIMUM_QUEUED_BYTES);
+  }
+
+  /**
+   * @param executor runs the writers.
+   * @param maximumQueuedBytes the most bytes queued between the body and the writer. A single
+   * larger chunk is still queued, once the queue is empty.
+   */
+  public ResponsePipeline(Executor executor, int maximumQueuedBytes) {
+    checkArgument(maximumQueuedBytes > 0, "maximumQueuedBytes must be positive, but was %s",
+        maximumQueuedBytes);
+    this.executor = checkNotNull(executor);
+    this.maximumQueuedBytes = maximumQueuedBytes;
+  }
+
+  /**
+   * Writes the body onto the stream from another thread, returning once it is all written.
+   *
+   * @param body the body to write, on this thread.
+   * @param outputStream the stream to write it to, on the writer's thread.
+   */
+  void writeTo(RackBody body, OutputStream outputStream) throws IOException {
+    Pipe pipe = new Pipe(outputStream);
+    try {
+      executor.execute(pipe);
+    } catch (RejectedExecutionException e) {
+      body.writeTo(outputStream);
+      return;
+    }
+
+    boolean produced = false;
+    try {
+      body.writeTo(pipe);
+      produced = true;
+    } finally {
+      pipe.end(produced);
+    }
+    pipe.rethrowFailure();
+  }
+
+  /**
+   * Queues the chunks written to it, and writes them onto the output stream when run.
+   */
+  private class Pipe extends OutputStream implements Runnable {
+    private final OutputStream out;
+    private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+    private int queuedBytes;
+    private boolean ended;
+    private boolean aborted;
+    private boolean drained;
+    private Throwable failure;
+
+    public Pipe(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override public synchronized void write(byte[] b, int off, int len) throws IOException {
+      while (failure == null && queuedBytes > 0 && queuedBytes + len > maximumQueuedBytes) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+      rethrowFailure();
+
+      // Bodies may reuse the bytes they write, so the queue keeps its own copy.
+      byte[] chunk = new byte[len];
+      System.arraycopy(b, off, chunk, 0, len);
+      chunks.add(chunk);
+      queuedBytes += len;
+      notifyAll();
+    }
+
+    @Override public void run() {
+      try {
+        byte[] chunk;
+        while ((chunk = take()) != null) {
+          out.write(chunk);
+          synchronized (this) {
+            queuedBytes -= chunk.length;
+            notifyAll();
+          }
+        }
+      } catch (Throwable t) {
+        synchronized (this) {
+          failure = t;
+        }
+      } finally {
+        synchronized (this) {
+          drained = true;
+          chunks.clear();
+          notifyAll();
+        }
+      }
+    }
+
+    /**
+     * @return the next chunk to write, or null once the body has ended or been abandoned.
+     */
+    private synchronized byte[] take() throws InterruptedException {
+      while (chunks.isEmpty() && !ended) {
+        wait();
+      }
+      return (aborted || chunks.isEmpty()) ? null : chunks.removeFirst();
+    }
+
+    /**
+     * Marks the end of the body, and waits for the writer to write what's queued, or to discard
+     * it if the body failed.
+     */
+    public synchronized void end(boolean produced) {
+      ended = true;
+      aborted = !produced;
+      notifyAll();
+
+      boolean interrupted = false;
+      while (!drained) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    public synchronized void rethrowFailure() throws IOException {
+      if (failure != null) {
+        Throwables.propagateIfPossible(failure, IOException.class);
+        throw Throwables.propagate(failure);
+      }
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffers a body until it outgrows the buffer; from then on, passes it through to the stream
+ * supplied by an {@link Overflow}.
+ */
+class SpillingOutputStream extends OutputStream {
+  private final int maximumBufferSize;
+  private final Overflow overflow;
+  private byte[] buffer = new byte[0];
+  private int count;
+  private OutputStream overflowed;
+
+  SpillingOutputStream(int maximumBufferSize, Overflow overflow) {
+    this.maximumBufferSize = maximumBufferSize;
+    this.overflow = overflow;
+  }
+
+  @Override public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override public void write(byte[] b, int off, int len) throws IOException {
+    if (overflowed != null) {
+      overflowed.write(b, off, len);
+      return;
+    }
+
+    if (count + len > maximumBufferSize) {
+      overflowed = overflow.overflow();
+      overflowed.write(buffer, 0, count);
+      overflowed.write(b, off, len);
+      buffer = null;
+      return;
+    }
+
+    buffered(b, off, len);
+    ensureCapacity(count + len);
+    System.arraycopy(b, off, buffer, count, len);
+    count += len;
+  }
+
+  /**
+   * Called with each write that fits in the buffer, before it is buffered.
+   */
+  protected void buffered(byte[] b, int off, int len) {
+  }
+
+  /**
+   * @return true if the body outgrew the buffer, and has been passed through.
+   */
+  boolean isOverflowed() {
+    return overflowed != null;
+  }
+
+  /**
+   * @return the number of bytes buffered.
+   */
+  int size() {
+    return count;
+  }
+
+  /**
+   * Writes the buffered body to the given stream.
+   */
+  void writeBufferTo(OutputStream outputStream) throws IOException {
+    outputStream.write(buffer, 0, count);
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= buffer.length) {
+      return;
+    }
+    int newLength = Math.max(capacity, Math.max(256, buffer.length * 2));
+    newLength = Math.min(maximumBufferSize, newLength);
+    byte[] grown = new byte[newLength];
+    System.arraycopy(buffer, 0, grown, 0, count);
+    buffer = grown;
+  }
+
+  /**
+   * Supplies the stream for a body that has outgrown its buffer.
+   */
+  interface Overflow {
+    OutputStream overflow() throws IOException;
+  }
+}
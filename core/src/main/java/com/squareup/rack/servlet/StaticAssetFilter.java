@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.servlet;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.squareup.rack.RackBody;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.regex.Pattern;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Serves static files straight from a directory, in front of a {@link RackServlet}.</p>
+ *
+ * <p>Answers {@code GET} and {@code HEAD} requests whose paths start with one of the configured
+ * prefixes and name a regular file beneath the directory, passing every other request down the
+ * filter chain to the Rack application. The request path, relative to the context, is resolved
+ * against the directory as-is: a request for {@code /assets/app.js} serves
+ * {@code <directory>/assets/app.js}.</p>
+ *
+ * <p>Where the client accepts them, serves precompressed siblings in preference to the file
+ * itself: {@code app.js.br} for Brotli, then {@code app.js.gz} for gzip. Like the file, a sibling
+ * is served only if it lies beneath the directory once symbolic links are followed. Responses
+ * carry a strong {@code ETag} and a {@code Last-Modified} date derived from the file served, and
+ * answer conditional and range requests.</p>
+ *
+ * <p>Files up to a configurable size are memory-mapped and kept in a cache bounded by their total
+ * size, so that hot files are served without touching the file system beyond a {@code stat}.
+ * Cached files are reloaded whenever their size or modification time changes.</p>
+ */
+public class StaticAssetFilter implements Filter {
+  /** The default for the total size of the cache, in bytes. */
+  public static final long DEFAULT_MAXIMUM_CACHE_SIZE = 64 * 1024 * 1024;
+
+  /** The default for the largest file that may be cached, in bytes. */
+  public static final long DEFAULT_MAXIMUM_CACHED_FILE_SIZE = 1024 * 1024;
+
+  private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+  private static final Pattern DOT_DOT = Pattern.compile("(^|[/\\\\])\\.\\.([/\\\\]|$)");
+
+  private final File directory;
+  private final String canonicalDirectory;
+  private final ImmutableList<String> pathPrefixes;
+  private final long maximumCachedFileSize;
+  private final Cache<File, CachedFile> cache;
+  private ServletContext servletContext;
+
+  /**
+   * Creates a filter serving files from the given directory, with the default cache sizes.
+   *
+   * @param directory the directory holding the files.
+   * @param pathPrefixes the request paths to serve, for example {@code "/assets/"}.
+   */
+  public StaticAssetFilter(File directory, String... pathPrefixes) {
+    this(directory, ImmutableList.copyOf(pathPrefixes), DEFAULT_MAXIMUM_CACHE_SIZE,
+        DEFAULT_MAXIMUM_CACHED_FILE_SIZE);
+  }
+
+  /**
+   * Creates a filter serving files from the given directory.
+   *
+   * @param directory the directory holding the files.
+   * @param pathPrefixes the request paths to serve, for example {@code "/assets/"}.
+   * @param maximumCacheSize the total size of the files kept in memory, in bytes.
+   * @param maximumCachedFileSize the largest file kept in memory, in bytes. Larger files are read
+   * from disk on each request.
+   */
+  public StaticAssetFilter(File directory, Iterable<String> pathPrefixes, long maximumCacheSize,
+      long maximumCachedFileSize) {
+    checkArgument(directory.isDirectory(), "%s is not a directory", directory);
+    checkArgument(maximumCacheSize >= 0, "maximumCacheSize must not be negative");
+    checkArgument(maximumCachedFileSize <= Integer.MAX_VALUE,
+        "maximumCachedFileSize must fit in a ByteBuffer");
+
+    this.directory = directory;
+    this.canonicalDirectory = canonicalPath(directory) + File.separator;
+    this.pathPrefixes = ImmutableList.copyOf(checkNotNull(pathPrefixes));
+    this.maximumCachedFileSize = maximumCachedFileSize;
+    this.cache = CacheBuilder.newBuilder()
+        .maximumWeight(maximumCacheSize)
+        .weigher(new Weigher<File, CachedFile>() {
+          @Override public int weigh(File file, CachedFile cachedFile) {
+            return cachedFile.contents.remaining();
+          }
+        })
+        .build();
+  }
+
+  @Override public void init(FilterConfig filterConfig) {
+    this.servletContext = filterConfig.getServletContext();
+  }
+
+  @Override public void doFilter(ServletRequest request, ServletResponse response,
+      FilterChain chain) throws IOException, ServletException {
+    if (!(request instanceof HttpServletRequest) || !serve((HttpServletRequest) request,
+        (HttpServletResponse) response)) {
+      chain.doFilter(request, response);
+    }
+  }
+
+  @Override public void destroy() {
+    cache.invalidateAll();
+  }
+
+  private boolean serve(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    String method = request.getMethod();
+    if (!"GET".equals(method) && !"HEAD".equals(method)) {
+      return false;
+    }
+
+    File file = resolve(pathOf(request));
+    if (file == null || !file.isFile()) {
+      return false;
+    }
+
+    File served = file;
+    String contentEncoding = null;
+    boolean hasVariants = false;
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+
+    for (String encoding : new String[] {"br", "gzip"}) {
+      File variant = new File(file.getPath() + ("br".equals(encoding) ? ".br" : ".gz"));
+      if (variant.isFile() && isWithinDirectory(variant)) {
+        hasVariants = true;
+        if (contentEncoding == null && AcceptEncoding.accepts(acceptEncoding, encoding)) {
+          served = variant;
+          contentEncoding = encoding;
+        }
+      }
+    }
+
+    long lastModified = served.lastModified();
+    long length = served.length();
+    String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length)
+        + (contentEncoding == null ? "" : "-" + contentEncoding) + "\"";
+    String lastModifiedHeader = HttpDates.format(lastModified);
+    String contentType = contentTypeOf(file);
+
+    response.setHeader("Content-Type", contentType);
+    response.setHeader("ETag", etag);
+    response.setHeader("Last-Modified", lastModifiedHeader);
+    if (hasVariants) {
+      response.setHeader("Vary", "Accept-Encoding");
+    }
+    if (contentEncoding != null) {
+      response.setHeader("Content-Encoding", contentEncoding);
+    }
+
+    RackBody body = new FileBodyResponse(served, etag, lastModifiedHeader, contentType, null,
+        contents(served, lastModified, length))
+        .respond(request, response, HttpServletResponse.SC_OK);
+    try {
+      body.writeTo(response.getOutputStream());
+    } finally {
+      body.close();
+    }
+    return true;
+  }
+
+  /**
+   * @return the file named by the path, or null if the path isn't served or escapes the directory.
+   */
+  private File resolve(String path) {
+    boolean served = false;
+    for (String prefix : pathPrefixes) {
+      if (path.startsWith(prefix)) {
+        served = true;
+        break;
+      }
+    }
+
+    if (!served || path.contains("\0") || DOT_DOT.matcher(path).find()) {
+      return null;
+    }
+
+    File file = new File(directory, path);
+    return isWithinDirectory(file) ? file : null;
+  }
+
+  /**
+   * @return true if the file, once symbolic links are followed, is inside the directory.
+   */
+  private boolean isWithinDirectory(File file) {
+    try {
+      return file.getCanonicalPath().startsWith(canonicalDirectory);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return the file's contents, from the cache, or null if it's too large to cache.
+   */
+  private ByteBuffer contents(File file, long lastModified, long length) throws IOException {
+    if (length > maximumCachedFileSize) {
+      return null;
+    }
+
+    CachedFile cachedFile = cache.getIfPresent(file);
+    if (cachedFile == null || cachedFile.lastModified != lastModified
+        || cachedFile.contents.remaining() != length) {
+      cachedFile = new CachedFile(lastModified, map(file, length));
+      cache.put(file, cachedFile);
+    }
+    return cachedFile.contents.duplicate();
+  }
+
+  private String contentTypeOf(File file) {
+    String name = file.getName();
+    String contentType = (servletContext == null) ? null : servletContext.getMimeType(name);
+    return (contentType == null) ? DEFAULT_CONTENT_TYPE : contentType;
+  }
+
+  private static ByteBuffer map(File file, long length) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  private static String pathOf(HttpServletRequest request) {
+    String path = request.getRequestURI().substring(request.getContextPath().length());
+    try {
+      return URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+    } catch (IllegalArgumentException e) {
+      return "";
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String canonicalPath(File file) {
+    try {
+      return file.getCanonicalPath();
+    } catch (IOException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private static class CachedFile {
+    private final long lastModified;
+    private final ByteBuffer contents;
+
+    public CachedFile(long lastModified, ByteBuffer contents) {
+      this.lastModified = lastModified;
+      this.contents = contents;
+    }
+  }
+}
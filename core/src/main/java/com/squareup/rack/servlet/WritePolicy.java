@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.rack.servlet;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletResponse;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Decides when {@link RackResponsePropagator} commits response headers and writes body
+ * chunks.</p>
+ *
+ * <p>{@link #IMMEDIATE}, the default, flushes the headers before the body and writes each chunk
+ * to the container as the Rack body yields it.</p>
+ *
+ * <p>Other policies hold the headers back until the body's first bytes are flushed, or until the
+ * commit delay has passed without any, so that headers and body can share a packet. Chunks
+ * smaller than the coalescing threshold are gathered into a pooled buffer of that size and written
+ * together once it fills. Gathered chunks are flushed once no more have arrived for the idle
+ * delay, so that streaming bodies still stream; so are the headers once the commit delay passes,
+ * so that slow bodies still send their headers early.</p>
+ *
+ * <p>The delays are measured on a single daemon thread per policy. Share one policy between
+ * propagators.</p>
+ */
+public class WritePolicy {
+  /** Flushes headers before the body, and writes each chunk as it comes. */
+  public static final WritePolicy IMMEDIATE = new WritePolicy();
+
+  private static final int MAXIMUM_POOLED_BUFFERS = 64;
+
+  private final long commitDelayNanos;
+  private final int coalescingThreshold;
+  private final long idleFlushNanos;
+  private final ScheduledExecutorService scheduler;
+  private final BlockingQueue<byte[]> buffers;
+
+  private WritePolicy() {
+    this.commitDelayNanos = 0;
+    this.coalescingThreshold = 0;
+    this.idleFlushNanos = 0;
+    this.scheduler = null;
+    this.buffers = null;
+  }
+
+  /**
+   * Creates a policy that defers commits and coalesces small chunks.
+   *
+   * @param commitDelay how long to hold back the headers while waiting for body bytes.
+   * @param coalescingThreshold the size of the buffer gathering small chunks, in bytes. Chunks
+   * this size or larger are written straight through.
+   * @param idleFlush how long gathered chunks may wait for more before being flushed.
+   * @param unit the unit of {@code commitDelay} and {@code idleFlush}.
+   */
+  public WritePolicy(long commitDelay, int coalescingThreshold, long idleFlush, TimeUnit unit) {
+    this(commitDelay, coalescingThreshold, idleFlush, unit,
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("rack-write-policy-%d")
+            .setDaemon(true)
+            .build()));
+  }
+
+  /**
+   * Creates a policy that defers commits and coalesces small chunks, measuring delays on the given
+   * scheduler.
+   *
+   * @param commitDelay how long to hold back the headers while waiting for body bytes.
+   * @param coalescingThreshold the size of the buffer gathering small chunks, in bytes. Chunks
+   * this size or larger are written straight through.
+   * @param idleFlush how long gathered chunks may wait for more before being flushed.
+   * @param unit the unit of {@code commitDelay} and {@code idleFlush}.
+   * @param scheduler runs the delayed flushes.
+   */
+  public WritePolicy(long commitDelay, int coalescingThreshold, long idleFlush, TimeUnit unit,
+      ScheduledExecutorService scheduler) {
+    checkArgument(commitDelay > 0, "commitDelay must be positive, but was %s", commitDelay);
+    checkArgument(coalescingThreshold >= 0,
+        "coalescingThreshold must not be negative, but was %s", coalescingThreshold);
+    checkArgument(idleFlush > 0, "idleFlush must be positive, but was %s", idleFlush);
+
+    this.commitDelayNanos = unit.toNanos(commitDelay);
+    this.coalescingThreshold = coalescingThreshold;
+    this.idleFlushNanos = unit.toNanos(idleFlush);
+    this.scheduler = checkNotNull(scheduler);
+    this.buffers = new ArrayBlockingQueue<byte[]>(MAXIMUM_POOLED_BUFFERS);
+  }
+
+  /**
+   * @return true if headers are flushed before the body, and chunks written as they come.
+   */
+  boolean isImmediate() {
+    return scheduler == null;
+  }
+
+  /**
+   * @param outputStream the stream onto which to write the body.
+   * @param response the response whose headers to commit once the commit delay passes.
+   * @return a stream applying this policy.
+   */
+  PolicyOutputStream newOutputStream(OutputStream outputStream, HttpServletResponse response) {
+    return new PolicyOutputStream(outputStream, response);
+  }
+
+  private byte[] takeBuffer() {
+    byte[] buffer = buffers.poll();
+    return (buffer != null) ? buffer : new byte[coalescingThreshold];
+  }
+
+  private void returnBuffer(byte[] buffer) {
+    buffers.offer(buffer);
+  }
+
+  /**
+   * Gathers small chunks, and flushes them, and the headers, once they've waited long enough. The
+   * scheduler thread and the writing thread take turns under the stream's lock.
+   */
+  class PolicyOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final HttpServletResponse response;
+    private final ScheduledFuture<?> commitTask;
+    private ScheduledFuture<?> idleFlushTask;
+    private byte[] buffer;
+    private int count;
+    private long lastWriteNanos;
+    private boolean flushed;
+    private boolean finished;
+    private boolean released;
+    private IOException failure;
+
+    PolicyOutputStream(OutputStream out, HttpServletResponse response) {
+      this.out = out;
+      this.response = response;
+      this.commitTask = scheduler.schedule(new Runnable() {
+        @Override public void run() {
+          commitIfIdle();
+        }
+      }, commitDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override public synchronized void write(byte[] b, int off, int len) throws IOException {
+      rethrowFailure();
+      lastWriteNanos = System.nanoTime();
+
+      if (len >= coalescingThreshold) {
+        drain();
+        out.write(b, off, len);
+        scheduleIdleFlush();
+        return;
+      }
+
+      if (buffer == null) {
+        buffer = takeBuffer();
+      } else if (count + len > buffer.length) {
+        drain();
+      }
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+      scheduleIdleFlush();
+    }
+
+    /**
+     * Writes out and flushes anything gathered.
+     */
+    @Override public synchronized void flush() throws IOException {
+      rethrowFailure();
+      drain();
+      out.flush();
+      flushed = true;
+    }
+
+    /**
+     * Writes out anything gathered, once the body has been written, and stops the timers. Timers
+     * already waiting on the stream's lock do nothing once it returns, leaving the stream to the
+     * writing thread.
+     */
+    public synchronized void finish() throws IOException {
+      finished = true;
+      rethrowFailure();
+      cancelTimers();
+      drain();
+    }
+
+    /**
+     * Stops the timers and returns the buffer to the pool. Safe to call more than once.
+     */
+    public synchronized void release() {
+      if (released) {
+        return;
+      }
+      released = true;
+
+      cancelTimers();
+      if (buffer != null) {
+        returnBuffer(buffer);
+        buffer = null;
+      }
+    }
+
+    private void drain() throws IOException {
+      if (count > 0) {
+        out.write(buffer, 0, count);
+        count = 0;
+      }
+    }
+
+    private void scheduleIdleFlush() {
+      if (idleFlushTask == null || idleFlushTask.isDone()) {
+        idleFlushTask = scheduler.schedule(new Runnable() {
+          @Override public void run() {
+            flushIfIdle();
+          }
+        }, idleFlushNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    private synchronized void flushIfIdle() {
+      if (finished || released || failure != null) {
+        return;
+      }
+
+      long idleNanos = System.nanoTime() - lastWriteNanos;
+      if (idleNanos < idleFlushNanos) {
+        idleFlushTask = scheduler.schedule(new Runnable() {
+          @Override public void run() {
+            flushIfIdle();
+          }
+        }, idleFlushNanos - idleNanos, TimeUnit.NANOSECONDS);
+        return;
+      }
+
+      try {
+        drain();
+        out.flush();
+        flushed = true;
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+
+    private synchronized void commitIfIdle() {
+      if (finished || released || failure != null || flushed) {
+        return;
+      }
+
+      try {
+        response.flushBuffer();
+        flushed = true;
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+
+    private void cancelTimers() {
+      commitTask.cancel(false);
+      if (idleFlushTask != null) {
+        idleFlushTask.cancel(false);
+      }
+    }
+
+    private void rethrowFailure() throws IOException {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package com.squareup.rack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ByteBufferBodyTest {
+  @Test public void writeToAStreamWritesHeapAndDirectBuffers() throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    newBody().writeTo(outputStream);
+    assertThat(outputStream.toString()).isEqualTo("heap and direct");
+  }
+
+  @Test public void writeToAChannelWritesHeapAndDirectBuffers() throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    newBody().writeTo(Channels.newChannel(outputStream));
+    assertThat(outputStream.toString()).isEqualTo("heap and direct");
+  }
+
+  @Test public void iteratorYieldsEachBuffer() {
+    StringBuilder chunks = new StringBuilder();
+    for (byte[] chunk : newBody()) {
+      chunks.append(new String(chunk)).append('|');
+    }
+    assertThat(chunks.toString()).isEqualTo("heap |and |direct|");
+  }
+
+  @Test public void getLengthSumsTheRemainingBytes() throws IOException {
+    ByteBufferBody body = newBody();
+    assertThat(body.getLength()).isEqualTo(15);
+    body.writeTo(new ByteArrayOutputStream());
+    assertThat(body.getLength()).isEqualTo(15);
+  }
+
+  @Test public void leavesTheOriginalBuffersUntouched() throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap("contents".getBytes());
+    new ByteBufferBody(buffer).writeTo(new ByteArrayOutputStream());
+    assertThat(buffer.remaining()).isEqualTo(8);
+  }
+
+  private ByteBufferBody newBody() {
+    ByteBuffer heap = ByteBuffer.wrap("xxheap and ".getBytes(), 2, 5).slice();
+    ByteBuffer and = ByteBuffer.wrap("and ".getBytes());
+    ByteBuffer direct = ByteBuffer.allocateDirect(6);
+    direct.put("direct".getBytes()).flip();
+    return new ByteBufferBody(heap, and, direct);
+  }
+}
@@ -0,0 +1,358 @@
+package com.squareup.rack;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CachingRackApplicationTest {
+  private FakeTicker ticker;
+  private CountingRackApplication application;
+  private QueueingExecutor executor;
+  private CachingRackApplication subject;
+
+  @Before public void setUp() {
+    ticker = new FakeTicker();
+    application = new CountingRackApplication();
+    executor = new QueueingExecutor();
+    subject = new CachingRackApplication(application, 1024 * 1024, executor,
+        ImmutableList.of("Accept-Encoding"), false, ticker);
+  }
+
+  @Test public void servesFreshResponsesFromTheCache() throws IOException {
+    application.cacheControl = "public, max-age=60";
+
+    assertThat(bodyOf(subject.call(get("/a")))).isEqualTo("response 1");
+    ticker.advance(59, TimeUnit.SECONDS);
+    RackResponse cached = subject.call(get("/a"));
+
+    assertThat(bodyOf(cached)).isEqualTo("response 1");
+    assertThat(cached.getHeaders().get("Age")).isEqualTo("59");
+    assertThat(application.calls).isEqualTo(1);
+    assertThat(subject.getHitCount()).isEqualTo(1);
+    assertThat(subject.getMissCount()).isEqualTo(1);
+  }
+
+  @Test public void fetchesAgainOnceExpired() throws IOException {
+    application.cacheControl = "max-age=60";
+
+    subject.call(get("/a"));
+    ticker.advance(60, TimeUnit.SECONDS);
+
+    assertThat(bodyOf(subject.call(get("/a")))).isEqualTo("response 2");
+    assertThat(subject.getMissCount()).isEqualTo(2);
+  }
+
+  @Test public void sharedMaxAgeTakesPrecedence() throws IOException {
+    application.cacheControl = "max-age=0, s-maxage=60";
+
+    subject.call(get("/a"));
+    ticker.advance(30, TimeUnit.SECONDS);
+
+    assertThat(bodyOf(subject.call(get("/a")))).isEqualTo("response 1");
+  }
+
+  @Test public void keysOnPathQueryMethodAndVaryHeaders() throws IOException {
+    application.cacheControl = "max-age=60";
+
+    subject.call(get("/a"));
+    subject.call(get("/b"));
+    subject.call(get("/a", "QUERY_STRING", "page=2"));
+    subject.call(get("/a", "REQUEST_METHOD", "HEAD"));
+    subject.call(get("/a", "HTTP_ACCEPT_ENCODING", "gzip"));
+    assertThat(application.calls).isEqualTo(5);
+
+    subject.call(get("/a", "HTTP_ACCEPT_ENCODING", "gzip"));
+    assertThat(application.calls).isEqualTo(5);
+  }
+
+  @Test public void keysOnSchemeHostAndPort() throws IOException {
+    application.cacheControl = "max-age=60";
+
+    subject.call(get("/a"));
+    subject.call(get("/a", "rack.url_scheme", "https"));
+    subject.call(get("/a", "HTTP_HOST", "other.example.com"));
+    subject.call(get("/a", "SERVER_NAME", "other.example.com"));
+    subject.call(get("/a", "SERVER_PORT", "8443"));
+    assertThat(application.calls).isEqualTo(5);
+
+    subject.call(get("/a", "rack.url_scheme", "https"));
+    assertThat(application.calls).isEqualTo(5);
+  }
+
+  @Test public void bypassesTheCacheForOtherRequests() {
+    application.cacheControl = "max-age=60";
+
+    subject.call(get("/a", "REQUEST_METHOD", "POST"));
+    subject.call(get("/a", "REQUEST_METHOD", "POST"));
+    subject.call(get("/a", "HTTP_AUTHORIZATION", "Basic Zm9vOmJhcg=="));
+    subject.call(get("/a", "HTTP_AUTHORIZATION", "Basic Zm9vOmJhcg=="));
+
+    assertThat(application.calls).isEqualTo(4);
+    assertThat(subject.getMissCount()).isEqualTo(0);
+  }
+
+  @Test public void doesNotStoreUncacheableResponses() {
+    for (String cacheControl : new String[] {null, "private, max-age=60", "no-store, max-age=60",
+        "no-cache, max-age=60", "max-age=0", "public"}) {
+      application.cacheControl = cacheControl;
+      subject.call(get("/a"));
+      subject.call(get("/a"));
+    }
+
+    assertThat(application.calls).isEqualTo(12);
+    assertThat(subject.getEntryCount()).isEqualTo(0);
+  }
+
+  @Test public void doesNotStoreResponsesSettingCookies() {
+    application.cacheControl = "max-age=60";
+    application.extraHeaders.put("Set-Cookie", "session=1");
+
+    subject.call(get("/a"));
+    subject.call(get("/a"));
+
+    assertThat(application.calls).isEqualTo(2);
+  }
+
+  @Test public void doesNotStoreResponsesVaryingOnUnkeyedHeaders() {
+    application.cacheControl = "max-age=60";
+    application.extraHeaders.put("Vary", "Accept-Encoding, Cookie");
+
+    subject.call(get("/a"));
+    subject.call(get("/a"));
+    assertThat(application.calls).isEqualTo(2);
+
+    application.extraHeaders.put("Vary", "accept-encoding");
+    subject.call(get("/a"));
+    subject.call(get("/a"));
+    assertThat(application.calls).isEqualTo(3);
+  }
+
+  @Test public void servesStaleResponsesWhileRevalidating() throws IOException {
+    application.cacheControl = "max-age=60, stale-while-revalidate=30";
+
+    subject.call(get("/a"));
+    ticker.advance(70, TimeUnit.SECONDS);
+
+    assertThat(bodyOf(subject.call(get("/a")))).isEqualTo("response 1");
+    assertThat(bodyOf(subject.call(get("/a")))).isEqualTo("response 1");
+    assertThat(subject.getStaleHitCount()).isEqualTo(2);
+    assertThat(executor.tasks).hasSize(1);
+
+    executor.runAll();
+
+    assertThat(subject.getRevalidationCount()).isEqualTo(1);
+    assertThat(bodyOf(subject.call(get("/a")))).isEqualTo("response 2");
+    assertThat(application.calls).isEqualTo(2);
+  }
+
+  @Test public void revalidatesWithADetachedEnvironment() {
+    application.cacheControl = "max-age=60, stale-while-revalidate=30";
+    subject.call(get("/a"));
+    ticker.advance(70, TimeUnit.SECONDS);
+
+    RackEnvironment environment = get("/a");
+    environment.put(RackEnvironment.MINECART_HTTP_SERVLET_REQUEST, new Object());
+    subject.call(environment);
+    executor.runAll();
+
+    RackEnvironment revalidated = application.lastEnvironment;
+    assertThat(revalidated).isNotSameAs(environment);
+    assertThat(revalidated.get(RackEnvironment.PATH_INFO)).isEqualTo("/a");
+    assertThat(revalidated.containsKey(RackEnvironment.MINECART_HTTP_SERVLET_REQUEST)).isFalse();
+    assertThat(revalidated.get(RackEnvironment.RACK_INPUT))
+        .isNotSameAs(environment.get(RackEnvironment.RACK_INPUT));
+  }
+
+  @Test public void evictsToStayWithinItsSize() {
+    subject = new CachingRackApplication(application, 160, MoreExecutors.sameThreadExecutor(),
+        ImmutableList.<String>of(), true, ticker);
+    application.cacheControl = "max-age=60";
+
+    for (int i = 0; i < 20; i++) {
+      subject.call(get("/" + i));
+    }
+
+    assertThat(subject.getEntryCount()).isLessThan(20);
+    assertThat(subject.getEvictionCount()).isEqualTo(20 - subject.getEntryCount());
+  }
+
+  @Test public void weighsEmptyResponsesByTheirKeysAndHeaders() {
+    subject = new CachingRackApplication(application, 1024, MoreExecutors.sameThreadExecutor(),
+        ImmutableList.<String>of(), false, ticker);
+    application.cacheControl = "max-age=60";
+    application.chunks = 0;
+
+    for (int i = 0; i < 100; i++) {
+      subject.call(get("/", RackEnvironment.QUERY_STRING, "x=" + i));
+    }
+
+    assertThat(subject.getEntryCount()).isLessThan(100);
+    assertThat(subject.getEvictionCount()).isEqualTo(100 - subject.getEntryCount());
+  }
+
+  @Test public void keepsNoResponseForLongerThanADay() {
+    application.cacheControl = "max-age=31536000";
+    subject.call(get("/a"));
+
+    ticker.advance(24 * 60 * 60 - 1, TimeUnit.SECONDS);
+    subject.call(get("/a"));
+    assertThat(application.calls).isEqualTo(1);
+
+    ticker.advance(1, TimeUnit.SECONDS);
+    subject.call(get("/a"));
+    assertThat(application.calls).isEqualTo(2);
+  }
+
+  @Test public void dropsResponsesOnceTooStaleToServe() {
+    application.cacheControl = "max-age=60";
+    subject.call(get("/a"));
+    ticker.advance(60, TimeUnit.SECONDS);
+
+    application.failing = true;
+    try {
+      subject.call(get("/a"));
+    } catch (IllegalStateException expected) {
+    }
+    assertThat(subject.getEntryCount()).isEqualTo(0);
+  }
+
+  @Test public void doesNotStoreLargeBodies() throws IOException {
+    subject = new CachingRackApplication(application, 64, MoreExecutors.sameThreadExecutor(),
+        ImmutableList.<String>of(), false, ticker);
+    application.cacheControl = "max-age=60";
+
+    assertThat(bodyOf(subject.call(get("/a")))).isEqualTo("response 1");
+    assertThat(subject.getEntryCount()).isEqualTo(0);
+  }
+
+  @Test public void streamsLargeBodiesOfUnknownLengthWithoutReadingThemWhole()
+      throws IOException {
+    subject = new CachingRackApplication(application, 64, MoreExecutors.sameThreadExecutor(),
+        ImmutableList.<String>of(), false, ticker);
+    application.cacheControl = "max-age=60";
+    application.chunks = 100;
+
+    RackResponse response = subject.call(get("/a"));
+    assertThat(application.chunksPulled).isEqualTo(1);
+
+    assertThat(bodyOf(response)).hasSize(100 * "response 1".length());
+    assertThat(application.chunksPulled).isEqualTo(100);
+    assertThat(subject.getEntryCount()).isEqualTo(0);
+  }
+
+  @Test public void freshness() {
+    CachingRackApplication.Freshness freshness =
+        CachingRackApplication.Freshness.parse("public, max-age=60, stale-while-revalidate=30");
+    assertThat(freshness.maxAgeSeconds).isEqualTo(60);
+    assertThat(freshness.staleWhileRevalidateSeconds).isEqualTo(30);
+
+    assertThat(CachingRackApplication.Freshness.parse("S-MAXAGE=10").maxAgeSeconds).isEqualTo(10);
+    assertThat(CachingRackApplication.Freshness.parse("max-age=nonsense")).isNull();
+    assertThat(CachingRackApplication.Freshness.parse("private=\"Set-Cookie\", max-age=5"))
+        .isNull();
+  }
+
+  private static RackEnvironment get(String path, String... extra) {
+    Map<String, Object> contents = new HashMap<String, Object>();
+    contents.put(RackEnvironment.REQUEST_METHOD, "GET");
+    contents.put(RackEnvironment.SCRIPT_NAME, "");
+    contents.put(RackEnvironment.PATH_INFO, path);
+    contents.put(RackEnvironment.QUERY_STRING, "");
+    contents.put(RackEnvironment.RACK_URL_SCHEME, "http");
+    contents.put("HTTP_HOST", "example.com");
+    contents.put(RackEnvironment.SERVER_NAME, "example.com");
+    contents.put(RackEnvironment.SERVER_PORT, "80");
+    contents.put(RackEnvironment.RACK_INPUT, new RackInput(new ByteArrayInputStream(new byte[0])));
+    for (int i = 0; i < extra.length; i += 2) {
+      contents.put(extra[i], extra[i + 1]);
+    }
+    return new RackEnvironment(contents);
+  }
+
+  private static String bodyOf(RackResponse response) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    response.getRackBody().writeTo(bytes);
+    return bytes.toString();
+  }
+
+  private static class CountingRackApplication implements RackApplication {
+    private final Map<String, String> extraHeaders = new HashMap<String, String>();
+    private String cacheControl;
+    private int chunks = 1;
+    private int chunksPulled;
+    private int calls;
+    private boolean failing;
+    private RackEnvironment lastEnvironment;
+
+    @Override public RackResponse call(RackEnvironment environment) {
+      if (failing) {
+        throw new IllegalStateException("Boom");
+      }
+      calls++;
+      lastEnvironment = environment;
+
+      ImmutableMap.Builder<String, String> headers = ImmutableMap.builder();
+      headers.put("Content-Type", "text/plain");
+      if (cacheControl != null) {
+        headers.put("Cache-Control", cacheControl);
+      }
+      headers.putAll(extraHeaders);
+
+      final byte[] body = ("response " + calls).getBytes();
+      return new RackResponse(200, headers.build(), new AbstractIterator<byte[]>() {
+        private int pulled;
+
+        @Override protected byte[] computeNext() {
+          if (pulled == chunks) {
+            return endOfData();
+          }
+          pulled++;
+          chunksPulled++;
+          return body;
+        }
+      });
+    }
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override public long read() {
+      return nanos;
+    }
+
+    public void advance(long duration, TimeUnit unit) {
+      nanos += unit.toNanos(duration);
+    }
+  }
+
+  private static class QueueingExecutor implements Executor {
+    private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    @Override public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    public void runAll() {
+      for (Runnable task : tasks) {
+        task.run();
+      }
+      tasks.clear();
+    }
+  }
+}
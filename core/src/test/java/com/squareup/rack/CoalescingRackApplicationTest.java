@@ -0,0 +1,268 @@
+package com.squareup.rack;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class CoalescingRackApplicationTest {
+  private static final int FOLLOWERS = 4;
+
+  private BlockingRackApplication application;
+  private ExecutorService executor;
+  private CoalescingRackApplication subject;
+
+  @Before public void setUp() {
+    application = new BlockingRackApplication();
+    executor = Executors.newCachedThreadPool();
+    subject = new CoalescingRackApplication(application, 10, TimeUnit.SECONDS, 1024);
+  }
+
+  @After public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test public void followersShareTheLeadersResponse() throws Exception {
+    List<Future<String>> responses = callConcurrently(get("/a"));
+
+    for (Future<String> response : responses) {
+      assertThat(response.get()).isEqualTo("response 1");
+    }
+    assertThat(application.calls.get()).isEqualTo(1);
+    assertThat(subject.getLeaderCount()).isEqualTo(1);
+    assertThat(subject.getCoalescedCount()).isEqualTo(FOLLOWERS);
+  }
+
+  @Test public void callsOnceTheLeaderHasLandedAreNotCoalesced() throws IOException {
+    application.release.countDown();
+
+    assertThat(bodyOf(subject.call(get("/a")))).isEqualTo("response 1");
+    assertThat(bodyOf(subject.call(get("/a")))).isEqualTo("response 2");
+    assertThat(subject.getCoalescedCount()).isEqualTo(0);
+  }
+
+  @Test public void leavesUnkeyedRequestsAlone() throws Exception {
+    application.release.countDown();
+
+    subject.call(get("/a", "REQUEST_METHOD", "POST"));
+    subject.call(get("/a", "HTTP_COOKIE", "session=1"));
+    subject.call(get("/a", "HTTP_AUTHORIZATION", "Basic Zm9vOmJhcg=="));
+
+    assertThat(application.calls.get()).isEqualTo(3);
+    assertThat(subject.getLeaderCount()).isEqualTo(0);
+  }
+
+  @Test public void usesTheGivenKeyFunction() throws Exception {
+    subject = new CoalescingRackApplication(application, new Function<RackEnvironment, String>() {
+      @Override public String apply(RackEnvironment environment) {
+        return "everything";
+      }
+    }, 10, TimeUnit.SECONDS, 1024);
+
+    List<Future<String>> responses = callConcurrently(get("/a", "REQUEST_METHOD", "POST"));
+
+    for (Future<String> response : responses) {
+      assertThat(response.get()).isEqualTo("response 1");
+    }
+  }
+
+  @Test public void followersCallThemselvesWhenTheBodyIsTooLargeToShare() throws Exception {
+    subject = new CoalescingRackApplication(application, 10, TimeUnit.SECONDS, 4);
+
+    List<Future<String>> responses = callConcurrently(get("/a"));
+
+    assertThat(responses.get(0).get()).isEqualTo("response 1");
+    for (Future<String> response : responses) {
+      assertThat(response.get()).startsWith("response ");
+    }
+    assertThat(application.calls.get()).isEqualTo(1 + FOLLOWERS);
+    assertThat(subject.getFallbackCount()).isEqualTo(FOLLOWERS);
+  }
+
+  @Test public void followersCallThemselvesWhenTheResponseSetsCookies() throws Exception {
+    application.headers = ImmutableMap.of("Set-Cookie", "session=1");
+
+    callConcurrently(get("/a"));
+
+    assertThat(application.calls.get()).isEqualTo(1 + FOLLOWERS);
+  }
+
+  @Test public void followersCallThemselvesWhenTheResponseVaries() throws Exception {
+    application.headers = ImmutableMap.of("Vary", "Accept-Encoding");
+
+    callConcurrently(get("/a"));
+
+    assertThat(application.calls.get()).isEqualTo(1 + FOLLOWERS);
+  }
+
+  @Test public void defaultKeyIncludesSchemeAndHost() {
+    Function<RackEnvironment, String> key = CoalescingRackApplication.METHOD_PATH_AND_QUERY;
+    String plain = key.apply(get("/a"));
+
+    assertThat(key.apply(get("/a"))).isEqualTo(plain);
+    assertThat(key.apply(get("/a", "rack.url_scheme", "https"))).isNotEqualTo(plain);
+    assertThat(key.apply(get("/a", "HTTP_HOST", "other.example.com"))).isNotEqualTo(plain);
+    assertThat(key.apply(get("/a", "SERVER_PORT", "8443"))).isNotEqualTo(plain);
+  }
+
+  @Test public void followersCallThemselvesWhenTheLeaderFails() throws Exception {
+    application.failures.set(1);
+
+    List<Future<String>> responses = callConcurrently(get("/a"));
+
+    try {
+      responses.get(0).get();
+      fail("Expected the leader to fail");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).hasMessage("Boom");
+    }
+    for (Future<String> response : responses.subList(1, responses.size())) {
+      assertThat(response.get()).startsWith("response ");
+    }
+    assertThat(subject.getFallbackCount()).isEqualTo(FOLLOWERS);
+  }
+
+  @Test public void followersGiveUpWaiting() throws Exception {
+    subject = new CoalescingRackApplication(application, 0, TimeUnit.SECONDS, 1024);
+    final RackEnvironment environment = get("/a");
+
+    Future<String> leader = executor.submit(bodyOf(environment));
+    application.entered.await();
+    application.blockOnlyFirstCall = true;
+
+    assertThat(bodyOf(subject.call(environment))).isEqualTo("response 2");
+    assertThat(subject.getFallbackCount()).isEqualTo(1);
+
+    application.release.countDown();
+    assertThat(leader.get()).isEqualTo("response 1");
+  }
+
+  /**
+   * Starts a leader, waits for it to block in the application, then starts followers, waits for
+   * them to block waiting for the leader, and lets the leader go.
+   */
+  private List<Future<String>> callConcurrently(RackEnvironment environment) throws Exception {
+    List<Future<String>> responses = new ArrayList<Future<String>>();
+    responses.add(executor.submit(bodyOf(environment)));
+    application.entered.await();
+    application.blockOnlyFirstCall = true;
+
+    final List<Thread> followers = new ArrayList<Thread>();
+    final CountDownLatch started = new CountDownLatch(FOLLOWERS);
+    for (int i = 0; i < FOLLOWERS; i++) {
+      final Callable<String> call = bodyOf(environment);
+      responses.add(executor.submit(new Callable<String>() {
+        @Override public String call() throws Exception {
+          synchronized (followers) {
+            followers.add(Thread.currentThread());
+          }
+          started.countDown();
+          return call.call();
+        }
+      }));
+    }
+
+    started.await();
+    synchronized (followers) {
+      for (Thread follower : followers) {
+        while (follower.getState() != Thread.State.TIMED_WAITING && follower.isAlive()
+            && application.calls.get() == 1) {
+          Thread.yield();
+        }
+      }
+    }
+
+    application.release.countDown();
+    for (Future<String> response : responses) {
+      try {
+        response.get(10, TimeUnit.SECONDS);
+      } catch (ExecutionException ignored) {
+        // Checked by the caller.
+      }
+    }
+    return responses;
+  }
+
+  private Callable<String> bodyOf(final RackEnvironment environment) {
+    return new Callable<String>() {
+      @Override public String call() throws IOException {
+        return bodyOf(subject.call(environment));
+      }
+    };
+  }
+
+  private static RackEnvironment get(String path, String... extra) {
+    Map<String, Object> contents = new HashMap<String, Object>();
+    contents.put(RackEnvironment.REQUEST_METHOD, "GET");
+    contents.put(RackEnvironment.SCRIPT_NAME, "");
+    contents.put(RackEnvironment.PATH_INFO, path);
+    contents.put(RackEnvironment.QUERY_STRING, "");
+    contents.put(RackEnvironment.RACK_URL_SCHEME, "http");
+    contents.put("HTTP_HOST", "example.com");
+    contents.put(RackEnvironment.SERVER_NAME, "example.com");
+    contents.put(RackEnvironment.SERVER_PORT, "80");
+    contents.put(RackEnvironment.RACK_INPUT, new RackInput(new ByteArrayInputStream(new byte[0])));
+    for (int i = 0; i < extra.length; i += 2) {
+      contents.put(extra[i], extra[i + 1]);
+    }
+    return new RackEnvironment(contents);
+  }
+
+  private static String bodyOf(RackResponse response) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    response.getRackBody().writeTo(bytes);
+    return bytes.toString();
+  }
+
+  /**
+   * Blocks its first call until released.
+   */
+  private static class BlockingRackApplication implements RackApplication {
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile boolean blockOnlyFirstCall;
+    private volatile Map<String, String> headers = ImmutableMap.of();
+
+    @Override public RackResponse call(RackEnvironment environment) {
+      int call = calls.incrementAndGet();
+      entered.countDown();
+
+      if (!blockOnlyFirstCall || call == 1) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+      if (failures.getAndDecrement() > 0) {
+        throw new RuntimeException("Boom");
+      }
+
+      byte[] body = ("response " + call).getBytes();
+      return new RackResponse(200, headers, ImmutableList.of(body).iterator());
+    }
+  }
+}
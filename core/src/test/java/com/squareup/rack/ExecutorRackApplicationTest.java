@@ -0,0 +1,86 @@
+package com.squareup.rack;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ExecutorRackApplicationTest {
+  private ExecutorRackApplication subject;
+  private QueueingExecutor executor;
+
+  @Mock private RackApplication rackApplication;
+  @Mock private RackEnvironment rackEnvironment;
+  @Mock private RackResponse rackResponse;
+
+  @Before public void setUp() {
+    executor = new QueueingExecutor();
+    subject = new ExecutorRackApplication(rackApplication, executor);
+    when(rackApplication.call(rackEnvironment)).thenReturn(rackResponse);
+  }
+
+  @Test public void callRunsTheApplicationOnTheExecutor() throws Exception {
+    ListenableFuture<RackResponse> future = subject.call(rackEnvironment);
+
+    verify(rackApplication, never()).call(rackEnvironment);
+    assertThat(future.isDone()).isFalse();
+
+    executor.runNext();
+
+    assertThat(future.get()).isSameAs(rackResponse);
+  }
+
+  @Test public void callFailsWhenTheApplicationFails() throws InterruptedException {
+    RuntimeException boom = new RuntimeException("Boom");
+    when(rackApplication.call(rackEnvironment)).thenThrow(boom);
+
+    ListenableFuture<RackResponse> future = subject.call(rackEnvironment);
+    executor.runNext();
+
+    try {
+      future.get();
+      fail("Expected an ExecutionException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isSameAs(boom);
+    }
+  }
+
+  @Test public void callFailsWhenTheExecutorRejects() throws InterruptedException {
+    subject = new ExecutorRackApplication(rackApplication, new Executor() {
+      @Override public void execute(Runnable command) {
+        throw new RejectedExecutionException();
+      }
+    });
+
+    try {
+      subject.call(rackEnvironment).get();
+      fail("Expected an ExecutionException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(RejectedExecutionException.class);
+    }
+  }
+
+  private static class QueueingExecutor implements Executor {
+    private Runnable next;
+
+    @Override public void execute(Runnable command) {
+      next = command;
+    }
+
+    public void runNext() {
+      next.run();
+    }
+  }
+}
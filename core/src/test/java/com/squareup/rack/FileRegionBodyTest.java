@@ -0,0 +1,67 @@
+package com.squareup.rack;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class FileRegionBodyTest {
+  private File file;
+  private FileChannel channel;
+
+  @Before public void setUp() throws IOException {
+    file = File.createTempFile("file-region-body", ".txt");
+    Files.write("Here are the parts.", file, Charsets.UTF_8);
+    channel = new RandomAccessFile(file, "r").getChannel();
+  }
+
+  @After public void tearDown() throws IOException {
+    channel.close();
+    file.delete();
+  }
+
+  @Test public void writeToAChannelTransfersTheRegion() throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    new FileRegionBody(channel, 5, 3).writeTo(Channels.newChannel(outputStream));
+    assertThat(outputStream.toString()).isEqualTo("are");
+  }
+
+  @Test public void writeToAStreamTransfersTheRegion() throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    new FileRegionBody(channel, 0, 4).writeTo(outputStream);
+    assertThat(outputStream.toString()).isEqualTo("Here");
+  }
+
+  @Test public void writeToClosesTheFile() throws IOException {
+    new FileRegionBody(channel, 0, 4).writeTo(new ByteArrayOutputStream());
+    assertThat(channel.isOpen()).isFalse();
+  }
+
+  @Test public void iteratorReadsTheRegion() {
+    StringBuilder contents = new StringBuilder();
+    for (byte[] chunk : new FileRegionBody(channel, 13, 5)) {
+      contents.append(new String(chunk));
+    }
+    assertThat(contents.toString()).isEqualTo("parts");
+    assertThat(channel.isOpen()).isFalse();
+  }
+
+  @Test public void writeToAShortFileFails() {
+    try {
+      new FileRegionBody(channel, 10, 100).writeTo(new ByteArrayOutputStream());
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("short");
+    }
+  }
+}
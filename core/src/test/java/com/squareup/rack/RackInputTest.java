@@ -1,6 +1,10 @@
 package com.squareup.rack;
 
+import com.google.common.io.InputSupplier;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -117,6 +121,43 @@ public class RackInputTest {
     assertThat(subject.read(null)).isEqualTo("456\r\n".getBytes());
   }
 
+  @Test public void opensTheStreamOnFirstRead() throws Exception {
+    CountingInputSupplier supplier = new CountingInputSupplier(BYTES);
+    RackInput subject = new RackInput(supplier);
+    subject.rewind();
+    assertThat(supplier.opened.get()).isZero();
+
+    assertThat(subject.gets()).isEqualTo("Hello,\n".getBytes());
+    assertThat(subject.read(null)).isEqualTo("World!".getBytes());
+    subject.rewind();
+    assertThat(subject.read(null)).isEqualTo(BYTES);
+    assertThat(supplier.opened.get()).isEqualTo(1);
+  }
+
+  @Test public void closingBeforeReadingOpensNothing() throws Exception {
+    CountingInputSupplier supplier = new CountingInputSupplier(BYTES);
+    RackInput subject = new RackInput(supplier);
+    subject.close();
+    assertThat(supplier.opened.get()).isZero();
+  }
+
+  @Test(expected = IOException.class)
+  public void readingAfterClosingFails() throws Exception {
+    RackInput subject = new RackInput(new CountingInputSupplier(BYTES));
+    subject.close();
+    subject.read(null);
+  }
+
+  @Test public void emptyIsAtEof() throws Exception {
+    assertThat(RackInput.EMPTY.gets()).isNull();
+    assertThat(RackInput.EMPTY.read(null)).isEqualTo(EMPTY_BYTES);
+    assertThat(RackInput.EMPTY.read(0)).isEqualTo(EMPTY_BYTES);
+    assertThat(RackInput.EMPTY.read(1)).isNull();
+    RackInput.EMPTY.rewind();
+    RackInput.EMPTY.close();
+    assertThat(RackInput.EMPTY.read(null)).isEqualTo(EMPTY_BYTES);
+  }
+
   private RackInput rackInputFor(String string) throws Exception {
     return rackInputFor(string.getBytes());
   }
@@ -128,4 +169,18 @@ public class RackInputTest {
   private RackInput slowRackInputFor(byte[] bytes) throws Exception {
     return new RackInput(new SlowByteArrayInputStream(bytes));
   }
+
+  private static class CountingInputSupplier implements InputSupplier<InputStream> {
+    private final byte[] bytes;
+    private final AtomicInteger opened = new AtomicInteger();
+
+    public CountingInputSupplier(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override public InputStream getInput() {
+      opened.incrementAndGet();
+      return new ByteArrayInputStream(bytes);
+    }
+  }
 }
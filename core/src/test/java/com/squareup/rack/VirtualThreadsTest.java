@@ -0,0 +1,42 @@
+package com.squareup.rack;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class VirtualThreadsTest {
+  @Test public void isSupportedFromJava21() {
+    assertThat(VirtualThreads.isSupported()).isEqualTo(javaVersion() >= 21);
+  }
+
+  @Test public void newVirtualThreadPerTaskExecutor() throws Exception {
+    if (!VirtualThreads.isSupported()) {
+      try {
+        VirtualThreads.newVirtualThreadPerTaskExecutor();
+        fail("Expected an UnsupportedOperationException");
+      } catch (UnsupportedOperationException expected) {
+        return;
+      }
+    }
+
+    ExecutorService executor = VirtualThreads.newVirtualThreadPerTaskExecutor();
+    try {
+      Boolean isVirtual = executor.submit(new Callable<Boolean>() {
+        @Override public Boolean call() throws Exception {
+          return (Boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread());
+        }
+      }).get();
+      assertThat(isVirtual).isTrue();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static int javaVersion() {
+    String[] parts = System.getProperty("java.specification.version").split("\\.");
+    return Integer.parseInt(parts[0].equals("1") ? parts[1] : parts[0]);
+  }
+}
@@ -0,0 +1,47 @@
+package com.squareup.rack.io;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ByteArrayBufferTest {
+  private final ByteArrayPool pool = new ByteArrayPool(0);
+
+  @Test public void pooledBuffersGrowThroughThePool() {
+    ByteArrayBuffer subject = new ByteArrayBuffer(pool, 0);
+    byte[] initial = subject.getBuffer();
+    subject.write(new byte[1000], 0, 1000);
+    subject.write(new byte[100], 0, 100);
+
+    assertThat(subject.getLength()).isEqualTo(1100);
+    assertThat(subject.getBuffer().length).isEqualTo(2048);
+    assertThat(pool.take(1024)).isSameAs(initial);
+  }
+
+  @Test public void releaseGivesTheBufferBack() {
+    ByteArrayBuffer subject = new ByteArrayBuffer(pool, 0);
+    subject.write('x');
+    byte[] buffer = subject.getBuffer();
+
+    subject.release();
+    subject.release();
+
+    assertThat(subject.getLength()).isZero();
+    assertThat(pool.take(1024)).isSameAs(buffer);
+    assertThat(pool.take(1024)).isNotSameAs(buffer);
+  }
+
+  @Test public void writingAfterReleaseTakesANewBuffer() {
+    ByteArrayBuffer subject = new ByteArrayBuffer(pool, 0);
+    subject.release();
+    subject.write("Hello".getBytes(), 0, 5);
+
+    assertThat(subject.toByteArray()).isEqualTo("Hello".getBytes());
+  }
+
+  @Test public void ensureCapacity() {
+    ByteArrayBuffer subject = new ByteArrayBuffer();
+    subject.ensureCapacity(100);
+    assertThat(subject.getBuffer().length).isGreaterThanOrEqualTo(100);
+  }
+}
@@ -0,0 +1,55 @@
+package com.squareup.rack.io;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ByteArrayPoolTest {
+  private final ByteArrayPool subject = new ByteArrayPool(0);
+
+  @Test public void takeRoundsUpToASizeClass() {
+    assertThat(subject.take(0).length).isEqualTo(1024);
+    assertThat(subject.take(1024).length).isEqualTo(1024);
+    assertThat(subject.take(1025).length).isEqualTo(2048);
+    assertThat(subject.take(1024 * 1024).length).isEqualTo(1024 * 1024);
+  }
+
+  @Test public void takeAllocatesLargeArraysExactly() {
+    assertThat(subject.take(1024 * 1024 + 1).length).isEqualTo(1024 * 1024 + 1);
+  }
+
+  @Test public void givenArraysAreTakenAgain() {
+    byte[] small = subject.take(100);
+    byte[] large = subject.take(512 * 1024);
+    subject.give(small);
+    subject.give(large);
+
+    assertThat(subject.take(1000)).isSameAs(small);
+    assertThat(subject.take(300 * 1024)).isSameAs(large);
+  }
+
+  @Test public void givenArraysAreSharedBetweenThreads() throws InterruptedException {
+    final byte[] first = subject.take(100);
+    final byte[] second = subject.take(100);
+    Thread thread = new Thread() {
+      @Override public void run() {
+        subject.give(first);
+        subject.give(second);
+      }
+    };
+    thread.start();
+    thread.join();
+
+    assertThat(subject.take(100)).isIn(first, second);
+  }
+
+  @Test public void arraysOutsideTheSizeClassesAreNotPooled() {
+    byte[] odd = new byte[1500];
+    byte[] large = new byte[2 * 1024 * 1024];
+    subject.give(odd);
+    subject.give(large);
+
+    assertThat(subject.take(1500)).isNotSameAs(odd);
+    assertThat(subject.take(2 * 1024 * 1024)).isNotSameAs(large);
+  }
+}
@@ -68,6 +68,42 @@ public class TempfileBufferedInputStreamTest {
     assertThat(read(subject)).isEqualTo("56789");
   }
 
+  @Test public void readingAStreamOfKnownLengthTwice() throws IOException {
+    InputStream subject = new TempfileBufferedInputStream(containing("Hello!"), 10, 6);
+    subject.mark(10);
+    assertThat(read(subject)).isEqualTo("Hello!");
+    subject.reset();
+    assertThat(read(subject)).isEqualTo("Hello!");
+  }
+
+  @Test public void readingAStreamLongerThanItsKnownLength() throws IOException {
+    InputStream subject = new TempfileBufferedInputStream(containing("Hello!"), 10, 2);
+    subject.mark(10);
+    assertThat(read(subject)).isEqualTo("Hello!");
+    subject.reset();
+    assertThat(read(subject)).isEqualTo("Hello!");
+  }
+
+  @Test public void streamsOfKnownLengthOverThresholdGoStraightToDisk() throws Exception {
+    final List<String> log = new ArrayList<String>();
+
+    InputStream subject =
+        new TempfileBufferedInputStream(containing("123456789"), 3, 9) {
+          @Override FileOutputStream createFileOutputStream(File tempFile)
+              throws FileNotFoundException {
+            log.add("created FileOutputStream");
+            return super.createFileOutputStream(tempFile);
+          }
+        };
+    assertThat(log).containsExactly("created FileOutputStream");
+
+    subject.mark(10);
+    assertThat(read(subject)).isEqualTo("123456789");
+    subject.reset();
+    assertThat(read(subject)).isEqualTo("123456789");
+    assertThat(log).containsExactly("created FileOutputStream");
+  }
+
   @Test public void shouldNotLeaveTempFilesLingering() throws Exception {
     String originalTmpdir = System.getProperty("java.io.tmpdir");
     System.setProperty("java.io.tmpdir", tempDir.getRoot().toString());
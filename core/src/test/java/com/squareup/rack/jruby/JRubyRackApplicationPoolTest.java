@@ -0,0 +1,174 @@
+package com.squareup.rack.jruby;
+
+import com.google.common.base.Supplier;
+import com.squareup.rack.RackEnvironment;
+import com.squareup.rack.RackResponse;
+import com.squareup.rack.SizedBody;
+import com.squareup.rack.servlet.RackEnvironmentBuilder;
+import com.squareup.rack.servlet.TestHttpServletRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jruby.embed.LocalContextScope;
+import org.jruby.embed.ScriptingContainer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class JRubyRackApplicationPoolTest {
+  private static final String APPLICATION =
+      "proc { |env| [200, {'Content-Type' => 'text/plain'}, [JRuby.runtime.object_id.to_s]] }";
+
+  private JRubyRackApplicationPool subject;
+  private RackEnvironment env;
+
+  @Before public void setUp() {
+    subject = newPool(2, new SingleThreadContainers());
+    env = new RackEnvironmentBuilder().build(TestHttpServletRequest.newBuilder().build());
+  }
+
+  @After public void tearDown() {
+    subject.terminate();
+  }
+
+  @Test public void bootsEachMemberInItsOwnRuntime() throws IOException {
+    RackResponse first = subject.call(env);
+    RackResponse second = subject.call(env);
+
+    assertThat(bodyOf(first)).isNotEqualTo(bodyOf(second));
+  }
+
+  @Test public void holdsTheRuntimeUntilTheBodyIsWritten() throws IOException {
+    RackResponse response = subject.call(env);
+    assertThat(subject.getAvailableCount()).isEqualTo(1);
+
+    bodyOf(response);
+    assertThat(subject.getAvailableCount()).isEqualTo(2);
+  }
+
+  @Test public void releasesTheRuntimeWhenTheBodyIsClosed() {
+    RackResponse response = subject.call(env);
+    assertThat(subject.getAvailableCount()).isEqualTo(1);
+
+    response.getRackBody().close();
+    response.getRackBody().close();
+    assertThat(subject.getAvailableCount()).isEqualTo(2);
+  }
+
+  @Test public void keepsTheLengthOfSizedBodies() throws IOException {
+    RackResponse response = subject.call(env);
+
+    assertThat(response.getRackBody()).isInstanceOf(SizedBody.class);
+    long length = ((SizedBody) response.getRackBody()).getLength();
+    assertThat(length).isEqualTo(bodyOf(response).length());
+  }
+
+  @Test public void releasesTheRuntimeWhenTheBodyIsIterated() {
+    RackResponse response = subject.call(env);
+
+    while (response.getBody().hasNext()) {
+      response.getBody().next();
+    }
+
+    assertThat(subject.getAvailableCount()).isEqualTo(2);
+  }
+
+  @Test public void timesOutWhenEveryRuntimeIsCheckedOut() {
+    subject.call(env);
+    subject.call(env);
+
+    try {
+      subject.call(env);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).contains("JRuby runtimes");
+    }
+
+    assertThat(subject.getTimeoutCount()).isEqualTo(1);
+    assertThat(subject.getWaitingCount()).isEqualTo(0);
+  }
+
+  @Test public void countsCheckouts() throws IOException {
+    bodyOf(subject.call(env));
+    bodyOf(subject.call(env));
+    bodyOf(subject.call(env));
+
+    assertThat(subject.getSize()).isEqualTo(2);
+    assertThat(subject.getCheckoutCount()).isEqualTo(3);
+    assertThat(subject.getTotalCheckoutTime(TimeUnit.NANOSECONDS)).isGreaterThan(0);
+  }
+
+  @Test public void rejectsContainersThatShareARuntime() {
+    try {
+      newPool(2, new Supplier<ScriptingContainer>() {
+        @Override public ScriptingContainer get() {
+          return new ScriptingContainer(LocalContextScope.SINGLETON);
+        }
+      });
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("SINGLETHREAD");
+    }
+  }
+
+  @Test public void terminatesTheRuntimesThatBootedWhenAnotherFails() {
+    final List<TerminationRecordingContainer> booted =
+        Collections.synchronizedList(new ArrayList<TerminationRecordingContainer>());
+    final AtomicInteger created = new AtomicInteger();
+    try {
+      newPool(3, new Supplier<ScriptingContainer>() {
+        @Override public ScriptingContainer get() {
+          if (created.incrementAndGet() == 3) {
+            throw new IllegalStateException("Boom");
+          }
+          TerminationRecordingContainer container = new TerminationRecordingContainer();
+          booted.add(container);
+          return container;
+        }
+      });
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+
+    assertThat(booted).hasSize(2);
+    for (TerminationRecordingContainer container : booted) {
+      assertThat(container.terminated).isTrue();
+    }
+  }
+
+  private JRubyRackApplicationPool newPool(int size, Supplier<ScriptingContainer> containers) {
+    return new JRubyRackApplicationPool(size, containers, APPLICATION, 10, TimeUnit.MILLISECONDS);
+  }
+
+  private String bodyOf(RackResponse response) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    response.getRackBody().writeTo(buffer);
+    return buffer.toString();
+  }
+
+  private static class TerminationRecordingContainer extends ScriptingContainer {
+    private volatile boolean terminated;
+
+    TerminationRecordingContainer() {
+      super(LocalContextScope.SINGLETHREAD);
+    }
+
+    @Override public void terminate() {
+      terminated = true;
+      super.terminate();
+    }
+  }
+
+  private static class SingleThreadContainers implements Supplier<ScriptingContainer> {
+    @Override public ScriptingContainer get() {
+      return new ScriptingContainer(LocalContextScope.SINGLETHREAD);
+    }
+  }
+}
@@ -5,6 +5,7 @@ import com.google.common.collect.ImmutableList;
 import com.squareup.rack.RackApplication;
 import com.squareup.rack.RackEnvironment;
 import com.squareup.rack.RackResponse;
+import com.squareup.rack.SizedBody;
 import com.squareup.rack.servlet.RackEnvironmentBuilder;
 import com.squareup.rack.servlet.TestHttpServletRequest;
 import java.util.Iterator;
@@ -63,4 +64,32 @@ public class JRubyRackApplicationTest {
     RackResponse response = app.call(env);
     assertThat(response.getStatus()).isEqualTo(201);
   }
+
+  @Test public void callWalksArrayBodiesDirectly() {
+    IRubyObject callable = Ruby.getGlobalRuntime()
+        .evalScriptlet("proc { |env| [200, {}, ['Hello, ', 'World!']] }");
+    app = new JRubyRackApplication(callable);
+
+    RackResponse response = app.call(env);
+    assertThat(response.getRackBody()).isInstanceOf(JRubyRackArrayBody.class);
+    assertThat(((SizedBody) response.getRackBody()).getLength()).isEqualTo(13);
+  }
+
+  @Test public void callLeavesArraySubclassBodiesToEach() {
+    IRubyObject callable = Ruby.getGlobalRuntime()
+        .evalScriptlet("class Chunks < Array; end; proc { |env| [200, {}, Chunks['a', 'b']] }");
+    app = new JRubyRackApplication(callable);
+
+    RackResponse response = app.call(env);
+    assertThat(response.getRackBody()).isNotInstanceOf(SizedBody.class);
+  }
+
+  @Test public void callAcceptsArrayHeaderValues() {
+    IRubyObject callable = Ruby.getGlobalRuntime()
+        .evalScriptlet("proc { |env| [200, {'Set-Cookie' => ['a=1', 'b=2']}, []] }");
+    app = new JRubyRackApplication(callable);
+
+    RackResponse response = app.call(env);
+    assertThat(response.getHeaders()).contains(entry("Set-Cookie", "a=1\nb=2"));
+  }
 }
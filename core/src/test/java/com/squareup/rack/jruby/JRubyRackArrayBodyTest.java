@@ -0,0 +1,47 @@
+package com.squareup.rack.jruby;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class JRubyRackArrayBodyTest {
+  @Test public void getLength_shouldSumTheChunkLengths() {
+    assertThat(newBody("['first', \"s\\xC3\\xA9cond\", '']").getLength()).isEqualTo(12);
+  }
+
+  @Test public void getLength_shouldBeUnknownForChunksThatArentStrings() {
+    assertThat(newBody("['first', :second]").getLength()).isEqualTo(-1);
+  }
+
+  @Test public void writeTo_shouldWriteEachChunk() throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    newBody("%w(first second third)").writeTo(outputStream);
+    assertThat(outputStream.toString()).isEqualTo("firstsecondthird");
+  }
+
+  @Test public void writeTo_shouldWriteOnlyTheSliceOfASharedString() throws IOException {
+    JRubyRackArrayBody subject =
+        newBody("s = 'xxfirst second thirdxx'; [s[2, 5], s[7, 7], s[14, 6]]");
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    subject.writeTo(outputStream);
+
+    assertThat(subject.getLength()).isEqualTo(18);
+    assertThat(outputStream.toString()).isEqualTo("first second third");
+  }
+
+  @Test public void writeToAChannel_shouldWriteEachChunk() throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    newBody("%w(first second third)").writeTo(Channels.newChannel(outputStream));
+    assertThat(outputStream.toString()).isEqualTo("firstsecondthird");
+  }
+
+  private static JRubyRackArrayBody newBody(String script) {
+    return new JRubyRackArrayBody((RubyArray) Ruby.getGlobalRuntime().evalScriptlet(script));
+  }
+}
@@ -1,5 +1,8 @@
 package com.squareup.rack.jruby;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.jruby.embed.PathType;
 import org.jruby.embed.ScriptingContainer;
 import org.jruby.runtime.builtin.IRubyObject;
@@ -38,6 +41,30 @@ public class JRubyRackBodyIteratorTest {
     }
   }
 
+  @Test public void iteratingOnAnotherThread_shouldIterateAndCloseTheThing() throws Exception {
+    IRubyObject body = scriptingContainer.parse("EnumerableWithClose.new(%w(first second third))").run();
+    final JRubyRackBodyIterator subject = new JRubyRackBodyIterator(body);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      String chunks = executor.submit(new Callable<String>() {
+        @Override public String call() {
+          StringBuilder chunks = new StringBuilder();
+          while (subject.hasNext()) {
+            chunks.append(new String(subject.next()));
+          }
+          return chunks.toString();
+        }
+      }).get();
+
+      assertThat(chunks).isEqualTo("firstsecondthird");
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(isOpen(body)).isEqualTo(false);
+  }
+
   private Boolean isOpen(IRubyObject body) {
     return (Boolean) body.callMethod(body.getRuntime().getCurrentContext(), "open").toJava(Boolean.class);
   }
@@ -0,0 +1,129 @@
+package com.squareup.rack.jruby;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import org.jruby.embed.PathType;
+import org.jruby.embed.ScriptingContainer;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class JRubyRackBodyTest {
+  private ScriptingContainer scriptingContainer;
+
+  @Before public void setUp() {
+    scriptingContainer = new ScriptingContainer();
+    scriptingContainer.runScriptlet(PathType.CLASSPATH, "enumerable_with_close.rb");
+  }
+
+  @Test public void writeTo_shouldWriteEachChunk() throws IOException {
+    JRubyRackBody subject = new JRubyRackBody(
+        scriptingContainer.parse("%w(first second third)").run());
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    subject.writeTo(outputStream);
+
+    assertThat(outputStream.toString()).isEqualTo("firstsecondthird");
+  }
+
+  @Test public void writeTo_shouldWriteOnlyTheSliceOfASharedString() throws IOException {
+    JRubyRackBody subject = new JRubyRackBody(
+        scriptingContainer.parse("s = 'xxfirst second thirdxx'; [s[2, 5], s[7, 7], s[14, 6]]").run());
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    subject.writeTo(outputStream);
+
+    assertThat(outputStream.toString()).isEqualTo("first second third");
+  }
+
+  @Test public void writeToAChannel_shouldWriteEachChunk() throws IOException {
+    IRubyObject body = scriptingContainer.parse("EnumerableWithClose.new(%w(first second third))").run();
+    JRubyRackBody subject = new JRubyRackBody(body);
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    subject.writeTo(Channels.newChannel(outputStream));
+
+    assertThat(outputStream.toString()).isEqualTo("firstsecondthird");
+    assertThat(isOpen(body)).isEqualTo(false);
+  }
+
+  @Test public void writeToAThingThatRespondsToClose_shouldCloseTheThing() throws IOException {
+    IRubyObject body = scriptingContainer.parse("EnumerableWithClose.new(%w(first second third))").run();
+    JRubyRackBody subject = new JRubyRackBody(body);
+
+    assertThat(isOpen(body)).isEqualTo(true);
+
+    subject.writeTo(new ByteArrayOutputStream());
+
+    assertThat(isOpen(body)).isEqualTo(false);
+  }
+
+  @Test public void writeToAThingThatDoesNotRespondToClose_shouldNotBlowUp() throws IOException {
+    JRubyRackBody subject = new JRubyRackBody(
+        scriptingContainer.parse("%w(first second third)").run());
+
+    subject.writeTo(new ByteArrayOutputStream());
+  }
+
+  @Test public void writeToAFailingStream_shouldRethrowAndCloseTheThing() {
+    IRubyObject body = scriptingContainer.parse("EnumerableWithClose.new(%w(first second third))").run();
+    JRubyRackBody subject = new JRubyRackBody(body);
+
+    try {
+      subject.writeTo(new OutputStream() {
+        @Override public void write(int b) throws IOException {
+          throw new IOException("Broken pipe");
+        }
+      });
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      assertThat(e.getMessage()).isEqualTo("Broken pipe");
+    }
+
+    assertThat(isOpen(body)).isEqualTo(false);
+  }
+
+  @Test public void closeWithoutConsuming_shouldCloseTheThing() {
+    IRubyObject body = scriptingContainer.parse("EnumerableWithClose.new(%w(first second third))").run();
+    JRubyRackBody subject = new JRubyRackBody(body);
+
+    subject.close();
+
+    assertThat(isOpen(body)).isEqualTo(false);
+  }
+
+  @Test public void closeAfterConsuming_shouldNotCloseTheThingAgain() throws IOException {
+    IRubyObject body = scriptingContainer.parse("EnumerableWithClose.new(%w(first second third))").run();
+    JRubyRackBody subject = new JRubyRackBody(body);
+
+    subject.writeTo(new ByteArrayOutputStream());
+    subject.close();
+
+    assertThat(closeCount(body)).isEqualTo(1);
+  }
+
+  @Test public void iterator_shouldIterateEachChunk() {
+    JRubyRackBody subject = new JRubyRackBody(
+        scriptingContainer.parse("%w(first second third)").run());
+
+    StringBuilder chunks = new StringBuilder();
+    for (byte[] chunk : subject) {
+      chunks.append(new String(chunk));
+    }
+
+    assertThat(chunks.toString()).isEqualTo("firstsecondthird");
+  }
+
+  private Long closeCount(IRubyObject body) {
+    return (Long) body.callMethod(body.getRuntime().getCurrentContext(), "close_count").toJava(Long.class);
+  }
+
+  private Boolean isOpen(IRubyObject body) {
+    return (Boolean) body.callMethod(body.getRuntime().getCurrentContext(), "open").toJava(Boolean.class);
+  }
+}
@@ -0,0 +1,66 @@
+package com.squareup.rack.jruby;
+
+import com.google.common.collect.ImmutableList;
+import com.squareup.rack.RackInput;
+import java.io.ByteArrayInputStream;
+import org.jruby.Ruby;
+import org.jruby.RubyString;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class JRubyRackEnvironmentConverterTest {
+  private Ruby runtime;
+  private JRubyRackEnvironmentConverter subject;
+
+  @Before public void setUp() {
+    runtime = Ruby.getGlobalRuntime();
+    subject = JRubyRackEnvironmentConverter.forRuntime(runtime);
+  }
+
+  @Test public void oneConverterPerRuntime() {
+    assertThat(JRubyRackEnvironmentConverter.forRuntime(runtime)).isSameAs(subject);
+  }
+
+  @Test public void keysAreFrozenAndShared() {
+    RubyString key = subject.convertKey("HTTP_ACCEPT");
+    assertThat(key.isFrozen()).isTrue();
+    assertThat(subject.convertKey("HTTP_ACCEPT")).isSameAs(key);
+  }
+
+  @Test public void repetitiveValuesAreEqualButSeparatelyModifiable() {
+    IRubyObject first = subject.convertValue("HTTP_HOST", "example.com");
+    IRubyObject second = subject.convertValue("HTTP_HOST", "example.com");
+
+    assertThat(first).isNotSameAs(second);
+    assertThat(first.isFrozen()).isFalse();
+    assertThat(first.asJavaString()).isEqualTo("example.com");
+
+    ((RubyString) first).cat("!".getBytes());
+    assertThat(first.asJavaString()).isEqualTo("example.com!");
+    assertThat(second.asJavaString()).isEqualTo("example.com");
+  }
+
+  @Test public void booleans() {
+    assertThat(subject.convertValue("rack.multithread", true)).isSameAs(runtime.getTrue());
+    assertThat(subject.convertValue("rack.run_once", false)).isSameAs(runtime.getFalse());
+  }
+
+  @Test public void rackVersionIsFrozenAndShared() {
+    IRubyObject version = subject.convertValue("rack.version", ImmutableList.of(1, 2));
+    assertThat(version.isFrozen()).isTrue();
+    assertThat(version.inspect().asJavaString()).isEqualTo("[1, 2]");
+    assertThat(subject.convertValue("rack.version", ImmutableList.of(1, 2))).isSameAs(version);
+  }
+
+  @Test public void emptyRackInputIsFrozenAndShared() {
+    IRubyObject input = subject.convertValue("rack.input", RackInput.EMPTY);
+    assertThat(input.isFrozen()).isTrue();
+    assertThat(subject.convertValue("rack.input", RackInput.EMPTY)).isSameAs(input);
+
+    RackInput body = new RackInput(new ByteArrayInputStream(new byte[1]));
+    assertThat(subject.convertValue("rack.input", body)).isNotSameAs(input);
+  }
+}
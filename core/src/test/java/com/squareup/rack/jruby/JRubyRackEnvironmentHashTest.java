@@ -0,0 +1,74 @@
+package com.squareup.rack.jruby;
+
+import com.squareup.rack.RackEnvironment;
+import com.squareup.rack.servlet.RackEnvironmentBuilder;
+import com.squareup.rack.servlet.TestHttpServletRequest;
+import org.jruby.Ruby;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+public class JRubyRackEnvironmentHashTest {
+  private Ruby runtime;
+  private RackEnvironment env;
+
+  @Before public void setUp() {
+    runtime = Ruby.getGlobalRuntime();
+    env = new RackEnvironmentBuilder().build(TestHttpServletRequest.newBuilder()
+        .header("Accept", "text/plain")
+        .header("X-Forwarded-For", "192.168.0.1")
+        .build());
+  }
+
+  @Test public void lookupsOnlyConvertTheEntryAskedFor() {
+    env = spy(env);
+    assertThat(eval("env['HTTP_ACCEPT']")).isEqualTo("text/plain");
+    assertThat(eval("env.fetch('REQUEST_METHOD')")).isEqualTo("GET");
+    assertThat(eval("env.key?('HTTP_X_FORWARDED_FOR')")).isEqualTo("true");
+    assertThat(eval("env.key?('HTTP_X_MISSING')")).isEqualTo("false");
+    verify(env, never()).entrySet();
+  }
+
+  @Test public void otherMethodsSeeEveryEntry() {
+    assertThat(eval("env['HTTP_ACCEPT']; env.keys.sort == " + rubyKeys() + ".sort"))
+        .isEqualTo("true");
+    assertThat(eval("env.size")).isEqualTo(String.valueOf(env.size()));
+    assertThat(eval("env.dup.size")).isEqualTo(String.valueOf(env.size()));
+    assertThat(eval("{}.merge(env).size")).isEqualTo(String.valueOf(env.size()));
+  }
+
+  @Test public void assignedValuesWin() {
+    assertThat(eval("env['HTTP_ACCEPT'] = 'text/html'; env.to_a.assoc('HTTP_ACCEPT').last"))
+        .isEqualTo("text/html");
+  }
+
+  @Test public void deletedValuesStayDeleted() {
+    assertThat(eval("env.delete('HTTP_ACCEPT'); env.key?('HTTP_ACCEPT')")).isEqualTo("false");
+  }
+
+  @Test public void convertsRackSpecificValues() {
+    assertThat(eval("env['rack.version']")).isEqualTo("[1, 2]");
+    assertThat(eval("env['rack.input'].class.name")).isEqualTo("RackServlet::RackInput");
+  }
+
+  private String rubyKeys() {
+    StringBuilder keys = new StringBuilder("[");
+    for (String key : env.keySet()) {
+      keys.append('\'').append(key).append("',");
+    }
+    return keys.append(']').toString();
+  }
+
+  private String eval(String script) {
+    IRubyObject proc = runtime.evalScriptlet("proc { |env| (" + script + ").inspect }");
+    JRubyRackEnvironmentHash hash =
+        new JRubyRackEnvironmentHash(JRubyRackEnvironmentConverter.forRuntime(runtime), env);
+    String inspected = proc.callMethod(runtime.getCurrentContext(), "call", hash).asJavaString();
+    return inspected.replaceAll("^\"|\"$", "");
+  }
+}
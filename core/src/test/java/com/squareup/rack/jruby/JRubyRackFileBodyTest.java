@@ -0,0 +1,105 @@
+package com.squareup.rack.jruby;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.squareup.rack.RackResponse;
+import com.squareup.rack.servlet.RackEnvironmentBuilder;
+import com.squareup.rack.servlet.TestHttpServletRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import org.jruby.embed.PathType;
+import org.jruby.embed.ScriptingContainer;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class JRubyRackFileBodyTest {
+  private ScriptingContainer scriptingContainer;
+  private File file;
+
+  @Before public void setUp() throws IOException {
+    scriptingContainer = new ScriptingContainer();
+    scriptingContainer.runScriptlet(PathType.CLASSPATH, "enumerable_with_close.rb");
+    file = File.createTempFile("jruby-rack-file-body", ".txt");
+    Files.write("file contents", file, Charsets.UTF_8);
+  }
+
+  @After public void tearDown() {
+    file.delete();
+  }
+
+  @Test public void writeTo_shouldSendTheFileWithoutCallingEach() throws IOException {
+    IRubyObject body = bodyWithPath(file.getAbsolutePath());
+    JRubyRackFileBody subject = new JRubyRackFileBody(body, file);
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    subject.writeTo(outputStream);
+
+    assertThat(outputStream.toString()).isEqualTo("file contents");
+    assertThat(closeCount(body)).isEqualTo(1);
+  }
+
+  @Test public void writeToAChannel_shouldSendTheFileWithoutCallingEach() throws IOException {
+    JRubyRackFileBody subject =
+        new JRubyRackFileBody(bodyWithPath(file.getAbsolutePath()), file);
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    subject.writeTo(Channels.newChannel(outputStream));
+
+    assertThat(outputStream.toString()).isEqualTo("file contents");
+  }
+
+  @Test public void writeToAMissingFile_shouldFallBackToEach() throws IOException {
+    IRubyObject body = scriptingContainer.parse(
+        "b = EnumerableWithClose.new(%w(from each)); def b.to_path; '/no/such/file'; end; b").run();
+    JRubyRackFileBody subject = new JRubyRackFileBody(body, new File("/no/such/file"));
+
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    subject.writeTo(outputStream);
+
+    assertThat(outputStream.toString()).isEqualTo("fromeach");
+    assertThat(closeCount(body)).isEqualTo(1);
+  }
+
+  @Test public void applicationsReturningToPathBodies_shouldGetAFileBody() {
+    IRubyObject body = bodyWithPath(file.getAbsolutePath());
+    scriptingContainer.put("$body", body);
+    IRubyObject application = scriptingContainer.parse("proc { |env| [200, {}, $body] }").run();
+
+    RackResponse response = new JRubyRackApplication(application).call(
+        new RackEnvironmentBuilder().build(TestHttpServletRequest.newBuilder().build()));
+
+    assertThat(response.getRackBody()).isInstanceOf(JRubyRackFileBody.class);
+    assertThat(((JRubyRackFileBody) response.getRackBody()).getFile())
+        .isEqualTo(file.getAbsoluteFile());
+  }
+
+  @Test public void partialResponsesWithToPathBodies_shouldNotGetAFileBody() {
+    IRubyObject body = scriptingContainer.parse("b = EnumerableWithClose.new(%w(part)); "
+        + "def b.to_path; '" + file.getAbsolutePath() + "'; end; b").run();
+    scriptingContainer.put("$body", body);
+    IRubyObject application = scriptingContainer.parse("proc { |env| [206, {}, $body] }").run();
+
+    RackResponse response = new JRubyRackApplication(application).call(
+        new RackEnvironmentBuilder().build(TestHttpServletRequest.newBuilder().build()));
+
+    assertThat(response.getRackBody()).isNotInstanceOf(JRubyRackFileBody.class);
+    assertThat(new String(response.getBody().next())).isEqualTo("part");
+  }
+
+  private IRubyObject bodyWithPath(String path) {
+    return scriptingContainer.parse("b = EnumerableWithClose.new([]); "
+        + "def b.each; raise 'each should not be called'; end; "
+        + "def b.to_path; '" + path + "'; end; b").run();
+  }
+
+  private Long closeCount(IRubyObject body) {
+    return (Long) body.callMethod(body.getRuntime().getCurrentContext(), "close_count")
+        .toJava(Long.class);
+  }
+}
@@ -0,0 +1,51 @@
+package com.squareup.rack.jruby;
+
+import com.google.common.collect.ImmutableList;
+import com.squareup.rack.RackHeaders;
+import java.util.List;
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.data.MapEntry.entry;
+
+public class JRubyRackHeadersTest {
+  @Test public void visitPassesOnStringValues() {
+    assertThat(visit("{'Content-Type' => 'text/plain'}")).containsExactly("Content-Type: text/plain");
+  }
+
+  @Test public void visitSplitsNewlineSeparatedValues() {
+    assertThat(visit("{'Set-Cookie' => \"foo=bar\\nbar=foo\\n\"}"))
+        .containsExactly("Set-Cookie: foo=bar", "Set-Cookie: bar=foo");
+  }
+
+  @Test public void visitPassesOnEachElementOfArrayValues() {
+    assertThat(visit("{'Set-Cookie' => ['foo=bar', 'bar=foo']}"))
+        .containsExactly("Set-Cookie: foo=bar", "Set-Cookie: bar=foo");
+  }
+
+  @Test public void visitPassesOnEmptyValues() {
+    assertThat(visit("{'X-Empty' => ''}")).containsExactly("X-Empty: ");
+  }
+
+  @Test public void mapViewJoinsValuesWithNewlines() {
+    JRubyRackHeaders subject = headers("{'Set-Cookie' => ['foo=bar', 'bar=foo'], 'Age' => '1'}");
+    assertThat(subject).hasSize(2);
+    assertThat(subject).contains(entry("Set-Cookie", "foo=bar\nbar=foo"), entry("Age", "1"));
+  }
+
+  private List<String> visit(String hash) {
+    final ImmutableList.Builder<String> headers = ImmutableList.builder();
+    headers(hash).visit(new RackHeaders.Visitor() {
+      @Override public void header(String name, String value) {
+        headers.add(name + ": " + value);
+      }
+    });
+    return headers.build();
+  }
+
+  private JRubyRackHeaders headers(String hash) {
+    return new JRubyRackHeaders((RubyHash) Ruby.getGlobalRuntime().evalScriptlet(hash));
+  }
+}
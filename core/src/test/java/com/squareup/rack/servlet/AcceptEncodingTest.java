@@ -0,0 +1,24 @@
+package com.squareup.rack.servlet;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class AcceptEncodingTest {
+  @Test public void accepts() {
+    assertThat(AcceptEncoding.accepts(null, "gzip")).isFalse();
+    assertThat(AcceptEncoding.accepts("gzip", "gzip")).isTrue();
+    assertThat(AcceptEncoding.accepts("deflate, gzip", "gzip")).isTrue();
+    assertThat(AcceptEncoding.accepts("GZIP;q=0.5", "gzip")).isTrue();
+    assertThat(AcceptEncoding.accepts("gzip;q=0", "gzip")).isFalse();
+    assertThat(AcceptEncoding.accepts("gzip;q=nonsense", "gzip")).isFalse();
+    assertThat(AcceptEncoding.accepts("deflate", "gzip")).isFalse();
+  }
+
+  @Test public void acceptsWildcards() {
+    assertThat(AcceptEncoding.accepts("*", "gzip")).isTrue();
+    assertThat(AcceptEncoding.accepts("*;q=0", "gzip")).isFalse();
+    assertThat(AcceptEncoding.accepts("*, gzip;q=0", "gzip")).isFalse();
+    assertThat(AcceptEncoding.accepts("gzip;q=0, *", "gzip")).isFalse();
+  }
+}
@@ -0,0 +1,104 @@
+package com.squareup.rack.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ConditionalGetTest {
+  private static final String HELLO_WORLD_ETAG = "\"65a8e27d8879283831b664bd8b7f0ad4\"";
+
+  @Mock private HttpServletRequest request;
+  private ConditionalGet subject;
+
+  @Before public void setUp() {
+    subject = new ConditionalGet(16);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getDateHeader(anyString())).thenReturn(-1L);
+  }
+
+  @Test public void appliesToSuccessfulGetsAndHeads() {
+    assertThat(subject.appliesTo(request, 200)).isTrue();
+    assertThat(subject.appliesTo(request, 404)).isFalse();
+    assertThat(subject.appliesTo(null, 200)).isFalse();
+
+    when(request.getMethod()).thenReturn("HEAD");
+    assertThat(subject.appliesTo(request, 200)).isTrue();
+
+    when(request.getMethod()).thenReturn("POST");
+    assertThat(subject.appliesTo(request, 200)).isFalse();
+  }
+
+  @Test public void shouldTag() {
+    assertThat(subject.shouldTag("application/json", null)).isTrue();
+    assertThat(subject.shouldTag(null, "private, max-age=0")).isTrue();
+    assertThat(subject.shouldTag("application/json", "no-store")).isFalse();
+    assertThat(subject.shouldTag("text/event-stream; charset=utf-8", null)).isFalse();
+  }
+
+  @Test public void isNotModifiedByETag() {
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\", W/\"abc\"");
+    assertThat(ConditionalGet.isNotModified(request, "\"abc\"", -1)).isTrue();
+    assertThat(ConditionalGet.isNotModified(request, "\"xyz\"", -1)).isFalse();
+    assertThat(ConditionalGet.isNotModified(request, null, -1)).isFalse();
+
+    when(request.getHeader("If-None-Match")).thenReturn("*");
+    assertThat(ConditionalGet.isNotModified(request, null, -1)).isTrue();
+  }
+
+  @Test public void isNotModifiedByDate() {
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(1372680000000L);
+    assertThat(ConditionalGet.isNotModified(request, null, 1372680000500L)).isTrue();
+    assertThat(ConditionalGet.isNotModified(request, null, 1372680001000L)).isFalse();
+    assertThat(ConditionalGet.isNotModified(request, null, -1)).isFalse();
+  }
+
+  @Test public void ifNoneMatchTakesPrecedenceOverIfModifiedSince() {
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\"");
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(1372680000000L);
+    assertThat(ConditionalGet.isNotModified(request, "\"abc\"", 1372680000000L)).isFalse();
+  }
+
+  @Test public void tagsBufferedBodies() throws IOException {
+    ConditionalGet.TaggingOutputStream tagging = subject.newTaggingOutputStream(null);
+    tagging.write("Hello, ".getBytes());
+    tagging.write("World!".getBytes());
+
+    assertThat(tagging.isOverflowed()).isFalse();
+    assertThat(tagging.size()).isEqualTo(13);
+    assertThat(tagging.etag()).isEqualTo(HELLO_WORLD_ETAG);
+
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    tagging.writeBufferTo(buffer);
+    assertThat(buffer.toString()).isEqualTo("Hello, World!");
+  }
+
+  @Test public void passesLargeBodiesThrough() throws IOException {
+    final ByteArrayOutputStream passedThrough = new ByteArrayOutputStream();
+    ConditionalGet.TaggingOutputStream tagging = subject.newTaggingOutputStream(
+        new SpillingOutputStream.Overflow() {
+          @Override public OutputStream overflow() {
+            return passedThrough;
+          }
+        });
+
+    tagging.write("Hello, World!".getBytes());
+    assertThat(passedThrough.size()).isEqualTo(0);
+
+    tagging.write(" Goodbye.".getBytes());
+    tagging.write('!');
+
+    assertThat(tagging.isOverflowed()).isTrue();
+    assertThat(passedThrough.toString()).isEqualTo("Hello, World! Goodbye.!");
+  }
+}
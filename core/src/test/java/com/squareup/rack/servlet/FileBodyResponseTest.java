@@ -0,0 +1,177 @@
+package com.squareup.rack.servlet;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.squareup.rack.RackBody;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FileBodyResponseTest {
+  private static final String ETAG = "\"737060cd8c284d8af7ad3082f209582d\"";
+  private static final String LAST_MODIFIED = "Mon, 01 Jul 2013 12:00:00 GMT";
+  private static final long LAST_MODIFIED_MILLIS = 1372680000000L;
+
+  @Mock private HttpServletRequest request;
+  @Mock private HttpServletResponse response;
+  private File file;
+
+  @Before public void setUp() throws IOException {
+    file = File.createTempFile("file-body-response", ".txt");
+    Files.write("0123456789", file, Charsets.UTF_8);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(-1L);
+  }
+
+  @After public void tearDown() {
+    file.delete();
+  }
+
+  @Test public void sendsTheWholeFile() throws IOException {
+    assertThat(respond(200)).isEqualTo("0123456789");
+    verify(response).setHeader("Content-Length", "10");
+    verify(response).setHeader("Accept-Ranges", "bytes");
+    verify(response, never()).setStatus(anyInt());
+  }
+
+  @Test public void headSendsNothing() throws IOException {
+    when(request.getMethod()).thenReturn("HEAD");
+    assertThat(respond(200)).isEmpty();
+    verify(response).setHeader("Content-Length", "10");
+  }
+
+  @Test public void ifNoneMatchMatching() throws IOException {
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\", W/" + ETAG);
+    assertThat(respond(200)).isEmpty();
+    verify(response).setStatus(304);
+  }
+
+  @Test public void ifNoneMatchNotMatching() throws IOException {
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\"");
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(LAST_MODIFIED_MILLIS);
+    assertThat(respond(200)).isEqualTo("0123456789");
+  }
+
+  @Test public void ifModifiedSinceNotModified() throws IOException {
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(LAST_MODIFIED_MILLIS);
+    assertThat(respond(200)).isEmpty();
+    verify(response).setStatus(304);
+  }
+
+  @Test public void ifModifiedSinceModified() throws IOException {
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(LAST_MODIFIED_MILLIS - 1000);
+    assertThat(respond(200)).isEqualTo("0123456789");
+  }
+
+  @Test public void ifModifiedSinceWithoutALastModifiedIsModified() throws IOException {
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(file.lastModified() + 60000);
+    RackBody body = new FileBodyResponse(file, null, null, "text/plain", null)
+        .respond(request, response, 200);
+    assertThat(contents(body)).isEqualTo("0123456789");
+    verify(response, never()).setStatus(304);
+  }
+
+  @Test public void singleRange() throws IOException {
+    when(request.getHeader("Range")).thenReturn("bytes=2-4");
+    assertThat(respond(200)).isEqualTo("234");
+    verify(response).setStatus(206);
+    verify(response).setHeader("Content-Range", "bytes 2-4/10");
+    verify(response).setHeader("Content-Length", "3");
+  }
+
+  @Test public void openEndedAndSuffixRanges() throws IOException {
+    when(request.getHeader("Range")).thenReturn("bytes=7-");
+    assertThat(respond(200)).isEqualTo("789");
+
+    when(request.getHeader("Range")).thenReturn("bytes=-2");
+    assertThat(respond(200)).isEqualTo("89");
+
+    when(request.getHeader("Range")).thenReturn("bytes=8-100");
+    assertThat(respond(200)).isEqualTo("89");
+  }
+
+  @Test public void multipleRanges() throws IOException {
+    when(request.getHeader("Range")).thenReturn("bytes=0-1, 8-");
+    String body = respond(200);
+
+    ArgumentCaptor<String> contentType = ArgumentCaptor.forClass(String.class);
+    verify(response).setStatus(206);
+    verify(response).setHeader(eq("Content-Type"), contentType.capture());
+    assertThat(contentType.getValue()).startsWith("multipart/byteranges; boundary=");
+    String boundary = contentType.getValue().substring("multipart/byteranges; boundary=".length());
+
+    assertThat(body).isEqualTo(""
+        + "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-1/10\r\n\r\n01"
+        + "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 8-9/10\r\n\r\n89"
+        + "\r\n--" + boundary + "--\r\n");
+    verify(response).setHeader("Content-Length", String.valueOf(body.length()));
+  }
+
+  @Test public void unsatisfiableRange() throws IOException {
+    when(request.getHeader("Range")).thenReturn("bytes=20-30");
+    assertThat(respond(200)).isEmpty();
+    verify(response).setStatus(416);
+    verify(response).setHeader("Content-Range", "bytes */10");
+  }
+
+  @Test public void malformedRangeIsIgnored() throws IOException {
+    when(request.getHeader("Range")).thenReturn("bytes=5-2");
+    assertThat(respond(200)).isEqualTo("0123456789");
+  }
+
+  @Test public void ifRangeMatching() throws IOException {
+    when(request.getHeader("Range")).thenReturn("bytes=0-0");
+    when(request.getHeader("If-Range")).thenReturn(ETAG);
+    assertThat(respond(200)).isEqualTo("0");
+
+    when(request.getHeader("If-Range")).thenReturn(LAST_MODIFIED);
+    assertThat(respond(200)).isEqualTo("0");
+  }
+
+  @Test public void ifRangeNotMatching() throws IOException {
+    when(request.getHeader("Range")).thenReturn("bytes=0-0");
+    when(request.getHeader("If-Range")).thenReturn("\"other\"");
+    assertThat(respond(200)).isEqualTo("0123456789");
+  }
+
+  @Test public void rangesOnlyApplyToGets() throws IOException {
+    when(request.getMethod()).thenReturn("POST");
+    when(request.getHeader("Range")).thenReturn("bytes=0-0");
+    assertThat(respond(200)).isEqualTo("0123456789");
+  }
+
+  @Test public void partialContentWithAContentRangeSendsThatRange() throws IOException {
+    RackBody body = new FileBodyResponse(file, null, null, null, "bytes 3-5/10")
+        .respond(request, response, 206);
+    assertThat(contents(body)).isEqualTo("345");
+    verify(response).setHeader("Content-Length", "3");
+  }
+
+  private String respond(int status) throws IOException {
+    return contents(new FileBodyResponse(file, ETAG, LAST_MODIFIED, "text/plain", null)
+        .respond(request, response, status));
+  }
+
+  private String contents(RackBody body) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    body.writeTo(outputStream);
+    return outputStream.toString();
+  }
+}
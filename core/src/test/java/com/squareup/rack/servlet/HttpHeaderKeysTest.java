@@ -0,0 +1,31 @@
+package com.squareup.rack.servlet;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class HttpHeaderKeysTest {
+  @Test public void standardHeaders() {
+    assertThat(HttpHeaderKeys.rackKey("User-Agent")).isEqualTo("HTTP_USER_AGENT");
+    assertThat(HttpHeaderKeys.rackKey("X-Forwarded-For")).isEqualTo("HTTP_X_FORWARDED_FOR");
+  }
+
+  @Test public void standardHeadersInLowercaseShareTheirKey() {
+    assertThat(HttpHeaderKeys.rackKey("user-agent")).isSameAs(HttpHeaderKeys.rackKey("User-Agent"));
+  }
+
+  @Test public void contentLengthAndContentTypeHaveNoPrefix() {
+    assertThat(HttpHeaderKeys.rackKey("Content-Length")).isEqualTo("CONTENT_LENGTH");
+    assertThat(HttpHeaderKeys.rackKey("CONTENT-TYPE")).isEqualTo("CONTENT_TYPE");
+  }
+
+  @Test public void customHeaders() {
+    assertThat(HttpHeaderKeys.rackKey("X-Widget-Count")).isEqualTo("HTTP_X_WIDGET_COUNT");
+    assertThat(HttpHeaderKeys.rackKey("x-widget-count")).isEqualTo("HTTP_X_WIDGET_COUNT");
+    assertThat(HttpHeaderKeys.rackKey("X-Widget_Count")).isEqualTo("HTTP_X_WIDGET_COUNT");
+  }
+
+  @Test public void customHeadersAreCached() {
+    assertThat(HttpHeaderKeys.rackKey("X-Gadget")).isSameAs(HttpHeaderKeys.rackKey("X-Gadget"));
+  }
+}
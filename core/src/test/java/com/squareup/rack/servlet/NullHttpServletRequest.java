@@ -5,13 +5,22 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.Principal;
 import java.util.Enumeration;
+import java.util.Collection;
 import java.util.Locale;
 import java.util.Map;
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
 import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpUpgradeHandler;
+import javax.servlet.http.Part;
 
 class NullHttpServletRequest implements HttpServletRequest {
   @Override public String getAuthType() {
@@ -98,6 +107,10 @@ class NullHttpServletRequest implements HttpServletRequest {
     return null;
   }
 
+  @Override public String changeSessionId() {
+    return null;
+  }
+
   @Override public boolean isRequestedSessionIdValid() {
     return false;
   }
@@ -132,6 +145,10 @@ class NullHttpServletRequest implements HttpServletRequest {
     return 0;
   }
 
+  @Override public long getContentLengthLong() {
+    return 0;
+  }
+
   @Override public String getContentType() {
     return null;
   }
@@ -223,4 +240,55 @@ class NullHttpServletRequest implements HttpServletRequest {
   @Override public int getLocalPort() {
     return 0;
   }
+
+  @Override public <T extends HttpUpgradeHandler> T upgrade(Class<T> handlerClass) {
+    return null;
+  }
+
+  @Override public boolean authenticate(HttpServletResponse response) {
+    return false;
+  }
+
+  @Override public void login(String username, String password) {
+  }
+
+  @Override public void logout() {
+  }
+
+  @Override public Collection<Part> getParts() {
+    return null;
+  }
+
+  @Override public Part getPart(String name) {
+    return null;
+  }
+
+  @Override public ServletContext getServletContext() {
+    return null;
+  }
+
+  @Override public AsyncContext startAsync() {
+    return null;
+  }
+
+  @Override public AsyncContext startAsync(ServletRequest servletRequest,
+      ServletResponse servletResponse) {
+    return null;
+  }
+
+  @Override public boolean isAsyncStarted() {
+    return false;
+  }
+
+  @Override public boolean isAsyncSupported() {
+    return false;
+  }
+
+  @Override public AsyncContext getAsyncContext() {
+    return null;
+  }
+
+  @Override public DispatcherType getDispatcherType() {
+    return null;
+  }
 }
@@ -13,7 +13,12 @@ import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
 import static org.fest.assertions.data.MapEntry.entry;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
 public class RackEnvironmentBuilderTest {
@@ -122,6 +127,25 @@ public class RackEnvironmentBuilderTest {
     assertThat(environment()).contains(entry("HTTP_X_FORWARDED_FOR", "192.168.0.1,10.0.1.1"));
   }
 
+  @Test public void httpHeadersLookedUpDirectly() {
+    request.header("X-Forwarded-For", "192.168.0.1");
+    request.header("X-Forwarded_For", "10.0.1.1");
+    Map<String, Object> environment = environment();
+    assertThat(environment.get("HTTP_X_FORWARDED_FOR")).isEqualTo("192.168.0.1,10.0.1.1");
+    assertThat(environment.get("HTTP_X_MISSING")).isNull();
+    assertThat(environment).contains(entry("HTTP_X_FORWARDED_FOR", "192.168.0.1,10.0.1.1"));
+  }
+
+  @Test public void httpHeadersAndAttributesNotReadUntilAskedFor() {
+    HttpServletRequest spy = spy(request.header("Accept", "text/plain").build());
+    Map<String, Object> environment = new RackEnvironmentBuilder().build(spy);
+    verify(spy, never()).getHeaderNames();
+    verify(spy, never()).getAttributeNames();
+
+    assertThat(environment.get("HTTP_ACCEPT")).isEqualTo("text/plain");
+    verify(spy, never()).getAttributeNames();
+  }
+
   @Test public void rackVersion() {
     assertThat(environment()).contains(entry("rack.version", ImmutableList.of(1, 2)));
   }
@@ -147,6 +171,57 @@ public class RackEnvironmentBuilderTest {
     assertThat(environment().get("rack.input")).isInstanceOf(RackInput.class);
   }
 
+  @Test public void rackInputWithoutABodyIsShared() {
+    assertThat(environment().get("rack.input")).isSameAs(RackInput.EMPTY);
+  }
+
+  @Test public void rackInputWithAChunkedBody() {
+    request.method("POST").header("Transfer-Encoding", "chunked");
+    assertThat(environment().get("rack.input")).isNotSameAs(RackInput.EMPTY);
+  }
+
+  @Test public void rackInputWithABodyOfUnknownLength() throws IOException {
+    HttpServletRequest unknownLength = spy(request.method("POST").body("foo=42").build());
+    when(unknownLength.getContentLengthLong()).thenReturn(-1L);
+
+    RackInput rackInput = (RackInput) new RackEnvironmentBuilder().build(unknownLength)
+        .get("rack.input");
+    assertThat(rackInput).isNotSameAs(RackInput.EMPTY);
+    assertThat(rackInput.read(null)).isEqualTo("foo=42".getBytes());
+  }
+
+  @Test public void rejectsBodiesLargerThanTheMaximumBodySize() {
+    RackEnvironmentBuilder subject = new RackEnvironmentBuilder(4, 8);
+    assertThat(subject.rejects(request.method("POST").body("12345678").build())).isFalse();
+    assertThat(subject.rejects(request.method("POST").body("123456789").build())).isTrue();
+  }
+
+  @Test public void failsToReadBodiesOfUnknownLengthLargerThanTheMaximumBodySize()
+      throws IOException {
+    RackEnvironmentBuilder subject = new RackEnvironmentBuilder(4, 8);
+    HttpServletRequest unknownLength = spy(request.method("POST").body("123456789").build());
+    when(unknownLength.getContentLengthLong()).thenReturn(-1L);
+
+    assertThat(subject.rejects(unknownLength)).isFalse();
+    RackInput rackInput = (RackInput) subject.build(unknownLength).get("rack.input");
+    try {
+      rackInput.read(null);
+      fail("Expected an IOException");
+    } catch (IOException expected) {
+    }
+    assertThat(subject.exceededMaximumBodySize(unknownLength)).isTrue();
+  }
+
+  @Test public void readsBodiesOfUnknownLengthUpToTheMaximumBodySize() throws IOException {
+    RackEnvironmentBuilder subject = new RackEnvironmentBuilder(4, 8);
+    HttpServletRequest unknownLength = spy(request.method("POST").body("12345678").build());
+    when(unknownLength.getContentLengthLong()).thenReturn(-1L);
+
+    RackInput rackInput = (RackInput) subject.build(unknownLength).get("rack.input");
+    assertThat(rackInput.read(null)).isEqualTo("12345678".getBytes());
+    assertThat(subject.exceededMaximumBodySize(unknownLength)).isFalse();
+  }
+
   @Test public void rackErrors() {
     assertThat(environment()).containsKey("rack.errors");
     assertThat(environment().get("rack.errors")).isInstanceOf(RackErrors.class);
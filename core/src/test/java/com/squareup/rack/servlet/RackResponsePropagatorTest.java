@@ -1,10 +1,28 @@
 package com.squareup.rack.servlet;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.squareup.rack.ByteBufferBody;
+import com.squareup.rack.FileBackedBody;
+import com.squareup.rack.RackBody;
 import com.squareup.rack.RackResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.junit.Before;
 import org.junit.Test;
@@ -13,9 +31,15 @@ import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -27,6 +51,7 @@ public class RackResponsePropagatorTest {
 
   @Mock private HttpServletResponse response;
   @Mock private ServletOutputStream outputStream;
+  @Mock private RackBody rackBody;
 
   @Before public void setUp() throws IOException {
     subject = new RackResponsePropagator();
@@ -59,6 +84,16 @@ public class RackResponsePropagatorTest {
     verify(response).addHeader("Set-Cookie", "bar=foo");
   }
 
+  @Test public void propagateHeadersMultipleValuesIgnoresTrailingNewlines() {
+    rackResponse.header("Set-Cookie", "foo=bar\n\nbar=foo\n");
+    subject.propagate(rackResponse.build(), response);
+    InOrder order = inOrder(response);
+    order.verify(response).addHeader("Set-Cookie", "foo=bar");
+    order.verify(response).addHeader("Set-Cookie", "");
+    order.verify(response).addHeader("Set-Cookie", "bar=foo");
+    verify(response, never()).addHeader(eq("Set-Cookie"), eq("bar=foo\n"));
+  }
+
   @Test public void propagateBody() throws IOException {
     rackResponse.body("Here ".getBytes(), "are ".getBytes(), "the ".getBytes(), "parts.".getBytes());
 
@@ -72,6 +107,330 @@ public class RackResponsePropagatorTest {
     inOrder.verify(outputStream).flush();
   }
 
+  @Test public void propagateBodyCoalescingChunks() throws IOException {
+    subject = new RackResponsePropagator(null, null,
+        new WritePolicy(1, 1024, 1, TimeUnit.HOURS));
+    rackResponse.body("Here ".getBytes(), "are ".getBytes(), "the ".getBytes(), "parts.".getBytes());
+
+    subject.propagate(rackResponse.build(), response);
+
+    InOrder inOrder = inOrder(outputStream);
+    inOrder.verify(outputStream).write(any(byte[].class), eq(0), eq(19));
+    inOrder.verify(outputStream).flush();
+    verify(response, never()).flushBuffer();
+  }
+
+  @Test public void propagateClosesTheBody() {
+    subject.propagate(new RackResponse(200, ImmutableMap.<String, String>of(), rackBody), response);
+    verify(rackBody).close();
+  }
+
+  @Test public void propagateClosesTheBodyEvenWhenFlushingHeadersFails() throws IOException {
+    doThrow(new IOException("Broken pipe")).when(response).flushBuffer();
+
+    try {
+      subject.propagate(new RackResponse(200, ImmutableMap.<String, String>of(), rackBody), response);
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) {
+      verify(rackBody, never()).writeTo(outputStream);
+      verify(rackBody).close();
+    }
+  }
+
+  @Test public void propagateSendfileSendsTheFileInsteadOfTheBody() throws IOException {
+    File file = File.createTempFile("sendfile", ".txt");
+    try {
+      Files.write("file contents", file, Charsets.UTF_8);
+      ByteArrayServletOutputStream fileOutputStream = new ByteArrayServletOutputStream();
+      when(response.getOutputStream()).thenReturn(fileOutputStream);
+
+      subject.propagate(new RackResponse(200, ImmutableMap.of(
+          "X-Sendfile", file.getAbsolutePath(), "Content-Length", "0"), rackBody), response);
+
+      assertThat(fileOutputStream.toString()).isEqualTo("file contents");
+      verify(response).setHeader("Content-Length", "13");
+      verify(response, never()).addHeader(eq("X-Sendfile"), anyString());
+      verify(response, never()).addHeader(eq("Content-Length"), anyString());
+      verify(rackBody, never()).writeTo(any(OutputStream.class));
+      verify(rackBody).close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test public void propagateSendfileOfAMissingFileFails() {
+    try {
+      subject.propagate(new RackResponse(200, ImmutableMap.of(
+          "X-Sendfile", "/no/such/file"), rackBody), response);
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) {
+      assertThat(e.getCause()).isInstanceOf(FileNotFoundException.class);
+      verify(rackBody).close();
+    }
+  }
+
+  @Test public void propagateFileBackedBodyAnswersRangeRequests() throws IOException {
+    File file = File.createTempFile("file-backed-body", ".txt");
+    try {
+      Files.write("file contents", file, Charsets.UTF_8);
+      ByteArrayServletOutputStream fileOutputStream = new ByteArrayServletOutputStream();
+      when(response.getOutputStream()).thenReturn(fileOutputStream);
+      HttpServletRequest request = mock(HttpServletRequest.class);
+      when(request.getMethod()).thenReturn("GET");
+      when(request.getDateHeader(anyString())).thenReturn(-1L);
+      when(request.getHeader("Range")).thenReturn("bytes=5-");
+      FileBackedBody body = mock(FileBackedBody.class);
+      when(body.getFile()).thenReturn(file);
+
+      subject.propagate(new RackResponse(200, ImmutableMap.of("Content-Length", "13"), body),
+          request, response);
+
+      assertThat(fileOutputStream.toString()).isEqualTo("contents");
+      verify(response).setStatus(206);
+      verify(response).setHeader("Content-Range", "bytes 5-12/13");
+      verify(body, never()).writeTo(any(OutputStream.class));
+      verify(body).close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test public void propagateCompressesEligibleBodies() throws IOException {
+    subject = new RackResponsePropagator(new ResponseCompression());
+    ByteArrayServletOutputStream compressedOutputStream = new ByteArrayServletOutputStream();
+    when(response.getOutputStream()).thenReturn(compressedOutputStream);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+    rackResponse.header("Content-Type", "text/plain")
+        .header("Content-Length", "2048")
+        .header("ETag", "\"abc\"")
+        .body(new byte[1024], new byte[1024]);
+
+    subject.propagate(rackResponse.build(), request, response);
+
+    byte[] inflated = ByteStreams.toByteArray(new GZIPInputStream(
+        new ByteArrayInputStream(compressedOutputStream.toByteArray())));
+    assertThat(inflated).isEqualTo(new byte[2048]);
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).addHeader("Vary", "Accept-Encoding");
+    verify(response).setHeader("ETag", "W/\"abc\"");
+    verify(response, never()).addHeader(eq("Content-Length"), anyString());
+  }
+
+  @Test public void propagateVariesOnAcceptEncodingWhenNotCompressing() throws IOException {
+    subject = new RackResponsePropagator(new ResponseCompression());
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    rackResponse.header("Content-Type", "text/plain")
+        .header("Content-Length", "2048")
+        .header("Vary", "Cookie");
+
+    subject.propagate(rackResponse.build(), request, response);
+
+    verify(response).addHeader("Vary", "Cookie");
+    verify(response).addHeader("Vary", "Accept-Encoding");
+    verify(response).addHeader("Content-Length", "2048");
+    verify(response, never()).setHeader(eq("Content-Encoding"), anyString());
+  }
+
+  @Test public void propagateLeavesSmallBodiesAlone() throws IOException {
+    subject = new RackResponsePropagator(new ResponseCompression());
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+    rackResponse.header("Content-Type", "text/plain")
+        .header("Content-Length", "5")
+        .body("small".getBytes());
+
+    subject.propagate(rackResponse.build(), request, response);
+
+    verify(outputStream).write("small".getBytes());
+    verify(response).addHeader("Content-Length", "5");
+    verify(response, never()).setHeader(eq("Content-Encoding"), anyString());
+    verify(response, never()).addHeader(eq("Vary"), anyString());
+  }
+
+  @Test public void propagateTagsBodiesWithETags() throws IOException {
+    subject = new RackResponsePropagator(null, new ConditionalGet());
+    ByteArrayServletOutputStream bodyOutputStream = new ByteArrayServletOutputStream();
+    when(response.getOutputStream()).thenReturn(bodyOutputStream);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    rackResponse.header("Content-Length", "13").body("Hello, ".getBytes(), "World!".getBytes());
+
+    subject.propagate(rackResponse.build(), request, response);
+
+    assertThat(bodyOutputStream.toString()).isEqualTo("Hello, World!");
+    InOrder order = inOrder(response);
+    order.verify(response).setHeader("ETag", "\"65a8e27d8879283831b664bd8b7f0ad4\"");
+    order.verify(response).addHeader("Content-Length", "13");
+    order.verify(response).flushBuffer();
+  }
+
+  @Test public void propagateAnswersMatchingConditionalGetsWithNotModified() throws IOException {
+    subject = new RackResponsePropagator(null, new ConditionalGet());
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getHeader("If-None-Match")).thenReturn("\"65a8e27d8879283831b664bd8b7f0ad4\"");
+    rackResponse.header("Content-Length", "13").body("Hello, World!".getBytes());
+
+    subject.propagate(rackResponse.build(), request, response);
+
+    verify(response).setStatus(304);
+    verify(response, never()).addHeader(eq("Content-Length"), anyString());
+    verify(outputStream, never()).write(any(byte[].class), anyInt(), anyInt());
+  }
+
+  @Test public void propagateAnswersConditionalGetsWithoutReadingTaggedBodies()
+      throws IOException {
+    subject = new RackResponsePropagator(null, new ConditionalGet());
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("HEAD");
+    when(request.getHeader("If-None-Match")).thenReturn("\"v1\"");
+
+    subject.propagate(new RackResponse(200, ImmutableMap.of("ETag", "\"v1\""), rackBody),
+        request, response);
+
+    verify(response).setStatus(304);
+    verify(rackBody, never()).writeTo(any(OutputStream.class));
+    verify(rackBody).close();
+  }
+
+  @Test public void propagateSendsLargeBodiesUntagged() throws IOException {
+    subject = new RackResponsePropagator(null, new ConditionalGet(8));
+    ByteArrayServletOutputStream bodyOutputStream = new ByteArrayServletOutputStream();
+    when(response.getOutputStream()).thenReturn(bodyOutputStream);
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    rackResponse.body("Hello, ".getBytes(), "World!".getBytes());
+
+    subject.propagate(rackResponse.build(), request, response);
+
+    assertThat(bodyOutputStream.toString()).isEqualTo("Hello, World!");
+    verify(response, never()).setHeader(eq("ETag"), anyString());
+  }
+
+  @Test public void propagateDoesNotTagEmptyHeadResponses() throws IOException {
+    subject = new RackResponsePropagator(null, new ConditionalGet());
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("HEAD");
+
+    subject.propagate(rackResponse.build(), request, response);
+
+    verify(response, never()).setHeader(eq("ETag"), anyString());
+    verify(response).setStatus(200);
+    verify(response, never()).setStatus(304);
+  }
+
+  @Test public void propagateDescribesSizedBodies() throws IOException {
+    RackBody body = new ByteBufferBody(ByteBuffer.wrap("Hello, World!".getBytes()));
+
+    subject.propagate(new RackResponse(200, ImmutableMap.<String, String>of(), body), response);
+
+    InOrder order = inOrder(response);
+    order.verify(response).addHeader("Content-Length", "13");
+    order.verify(response).flushBuffer();
+  }
+
+  @Test public void propagateDoesNotDescribeSizedBodiesForHeadRequests() throws IOException {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("HEAD");
+    RackBody body = new ByteBufferBody();
+
+    subject.propagate(new RackResponse(200, ImmutableMap.<String, String>of(), body), request,
+        response);
+
+    verify(response, never()).addHeader(eq("Content-Length"), anyString());
+  }
+
+  @Test public void propagateDescribesTaggedBodies() throws IOException {
+    subject = new RackResponsePropagator(null, new ConditionalGet());
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getMethod()).thenReturn("GET");
+    rackResponse.body("Hello, ".getBytes(), "World!".getBytes());
+
+    subject.propagate(rackResponse.build(), request, response);
+
+    verify(response).addHeader("Content-Length", "13");
+  }
+
+  @Test public void propagateMeasuresSmallBodies() throws IOException {
+    subject = new RackResponsePropagator(null, null, WritePolicy.IMMEDIATE, 16);
+    ByteArrayServletOutputStream bodyOutputStream = new ByteArrayServletOutputStream();
+    when(response.getOutputStream()).thenReturn(bodyOutputStream);
+    rackResponse.body("Hello, ".getBytes(), "World!".getBytes());
+
+    subject.propagate(rackResponse.build(), response);
+
+    assertThat(bodyOutputStream.toString()).isEqualTo("Hello, World!");
+    InOrder order = inOrder(response);
+    order.verify(response).addHeader("Content-Length", "13");
+    order.verify(response).flushBuffer();
+  }
+
+  @Test public void propagateStreamsBodiesTooLargeToMeasure() throws IOException {
+    subject = new RackResponsePropagator(null, null, WritePolicy.IMMEDIATE, 8);
+    ByteArrayServletOutputStream bodyOutputStream = new ByteArrayServletOutputStream();
+    when(response.getOutputStream()).thenReturn(bodyOutputStream);
+    rackResponse.body("Hello, ".getBytes(), "World!".getBytes());
+
+    subject.propagate(rackResponse.build(), response);
+
+    assertThat(bodyOutputStream.toString()).isEqualTo("Hello, World!");
+    verify(response, never()).addHeader(eq("Content-Length"), anyString());
+  }
+
+  @Test public void propagateDoesNotMeasureEventStreams() throws IOException {
+    subject = new RackResponsePropagator(null, null, WritePolicy.IMMEDIATE, 16);
+    rackResponse.header("Content-Type", "text/event-stream").body("data: 1\n\n".getBytes());
+
+    subject.propagate(rackResponse.build(), response);
+
+    verify(response, never()).addHeader(eq("Content-Length"), anyString());
+  }
+
+  @Test public void propagateWritesThroughAPipeline() throws IOException {
+    ExecutorService writers = Executors.newSingleThreadExecutor();
+    try {
+      subject = new RackResponsePropagator(null, null, WritePolicy.IMMEDIATE, 0,
+          new ResponsePipeline(writers));
+      ByteArrayServletOutputStream bodyOutputStream = new ByteArrayServletOutputStream();
+      when(response.getOutputStream()).thenReturn(bodyOutputStream);
+      rackResponse.body("Hello, ".getBytes(), "World!".getBytes());
+
+      subject.propagate(rackResponse.build(), response);
+
+      assertThat(bodyOutputStream.toString()).isEqualTo("Hello, World!");
+    } finally {
+      writers.shutdown();
+    }
+  }
+
+  private static class ByteArrayServletOutputStream extends ServletOutputStream {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    @Override public void write(int b) {
+      bytes.write(b);
+    }
+
+    @Override public boolean isReady() {
+      return true;
+    }
+
+    @Override public void setWriteListener(WriteListener writeListener) {
+      throw new UnsupportedOperationException();
+    }
+
+    public byte[] toByteArray() {
+      return bytes.toByteArray();
+    }
+
+    @Override public String toString() {
+      return bytes.toString();
+    }
+  }
+
   private static class RackResponseBuilder {
     private int status;
     private final ImmutableMap.Builder<String, String> headers;
@@ -1,20 +1,36 @@
 package com.squareup.rack.servlet;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.squareup.rack.AsyncRackApplication;
 import com.squareup.rack.RackApplication;
 import com.squareup.rack.RackEnvironment;
 import com.squareup.rack.RackResponse;
+import com.squareup.rack.io.TempfileBufferedInputStream;
 import java.io.IOException;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -28,6 +44,8 @@ public class RackServletTest {
   @Mock private RackEnvironment rackEnvironment;
   @Mock private RackResponse rackResponse;
   @Mock private RackResponsePropagator rackResponsePropagator;
+  @Mock private AsyncRackApplication asyncRackApplication;
+  @Mock private AsyncContext asyncContext;
 
   @Before public void setUp() {
     subject = new RackServlet(rackEnvironmentBuilder, rackApplication, rackResponsePropagator);
@@ -40,7 +58,179 @@ public class RackServletTest {
     subject.service(request, response);
 
     InOrder inOrder = inOrder(rackResponsePropagator, rackEnvironment);
-    inOrder.verify(rackResponsePropagator).propagate(rackResponse, response);
+    inOrder.verify(rackResponsePropagator).propagate(rackResponse, request, response);
     inOrder.verify(rackEnvironment).closeRackInput();
   }
+
+  @Test public void serviceAsynchronously() throws ServletException, IOException {
+    SettableFuture<RackResponse> future = SettableFuture.create();
+    when(asyncRackApplication.call(rackEnvironment)).thenReturn(future);
+    startAsync();
+
+    subject.service(request, response);
+
+    verify(rackResponsePropagator, never()).propagate(rackResponse, request, response);
+    verify(asyncContext, never()).complete();
+
+    future.set(rackResponse);
+
+    InOrder inOrder = inOrder(rackResponsePropagator, rackEnvironment, asyncContext);
+    inOrder.verify(rackResponsePropagator).propagate(rackResponse, request, response);
+    inOrder.verify(rackEnvironment).closeRackInput();
+    inOrder.verify(asyncContext).complete();
+  }
+
+  @Test public void serviceAsynchronouslyWhenTheApplicationFails()
+      throws ServletException, IOException {
+    when(asyncRackApplication.call(rackEnvironment))
+        .thenReturn(Futures.<RackResponse>immediateFailedFuture(new RuntimeException("Boom")));
+    startAsync();
+
+    subject.service(request, response);
+
+    InOrder inOrder = inOrder(response, rackEnvironment, asyncContext);
+    inOrder.verify(response).sendError(500);
+    inOrder.verify(rackEnvironment).closeRackInput();
+    inOrder.verify(asyncContext).complete();
+  }
+
+  @Test public void serviceAsynchronouslyWhenPropagatingFails()
+      throws ServletException, IOException {
+    when(asyncRackApplication.call(rackEnvironment))
+        .thenReturn(Futures.immediateFuture(rackResponse));
+    doThrow(new RuntimeException("Broken pipe"))
+        .when(rackResponsePropagator).propagate(rackResponse, request, response);
+    when(response.isCommitted()).thenReturn(true);
+    startAsync();
+
+    subject.service(request, response);
+
+    verify(response, never()).sendError(500);
+    verify(rackEnvironment).closeRackInput();
+    verify(asyncContext).complete();
+  }
+
+  @Test public void serviceAsynchronouslyWithoutContainerSupport()
+      throws ServletException, IOException {
+    when(asyncRackApplication.call(rackEnvironment))
+        .thenReturn(Futures.immediateFuture(rackResponse));
+    subject = new RackServlet(rackEnvironmentBuilder, asyncRackApplication, rackResponsePropagator);
+
+    subject.service(request, response);
+
+    verify(request, never()).startAsync(request, response);
+    InOrder inOrder = inOrder(rackResponsePropagator, rackEnvironment);
+    inOrder.verify(rackResponsePropagator).propagate(rackResponse, request, response);
+    inOrder.verify(rackEnvironment).closeRackInput();
+  }
+
+  @Test public void serviceAfterReadingTheBody() throws ServletException, IOException {
+    subject = new RackServlet(rackEnvironmentBuilder, rackApplication, rackResponsePropagator,
+        new RequestBodyPreReader());
+    when(request.isAsyncSupported()).thenReturn(true);
+    when(request.startAsync(request, response)).thenReturn(asyncContext);
+    when(asyncContext.getResponse()).thenReturn(response);
+    when(request.getContentLengthLong()).thenReturn(5L);
+    ServletInputStream inputStream = mock(ServletInputStream.class);
+    when(request.getInputStream()).thenReturn(inputStream);
+    when(rackEnvironmentBuilder.bufferBody(request, inputStream))
+        .thenReturn(new TempfileBufferedInputStream(inputStream));
+    when(rackEnvironmentBuilder.build(eq(request), any(TempfileBufferedInputStream.class)))
+        .thenReturn(rackEnvironment);
+    when(rackApplication.call(rackEnvironment)).thenReturn(rackResponse);
+
+    subject.service(request, response);
+
+    ArgumentCaptor<ReadListener> readListener = ArgumentCaptor.forClass(ReadListener.class);
+    verify(inputStream).setReadListener(readListener.capture());
+    verify(rackApplication, never()).call(any(RackEnvironment.class));
+
+    readListener.getValue().onAllDataRead();
+
+    InOrder inOrder = inOrder(rackResponsePropagator, rackEnvironment, asyncContext);
+    inOrder.verify(rackResponsePropagator).propagate(rackResponse, request, response);
+    inOrder.verify(rackEnvironment).closeRackInput();
+    inOrder.verify(asyncContext).complete();
+  }
+
+  @Test public void serviceLeavesLargeBodiesToTheApplication()
+      throws ServletException, IOException {
+    subject = new RackServlet(rackEnvironmentBuilder, rackApplication, rackResponsePropagator,
+        new RequestBodyPreReader(4));
+    when(request.isAsyncSupported()).thenReturn(true);
+    when(request.getContentLengthLong()).thenReturn(5L);
+    when(rackApplication.call(rackEnvironment)).thenReturn(rackResponse);
+
+    subject.service(request, response);
+
+    verify(request, never()).startAsync(request, response);
+    verify(rackResponsePropagator).propagate(rackResponse, request, response);
+  }
+
+  @Test public void serviceRejectsBodiesLargerThanTheMaximum()
+      throws ServletException, IOException {
+    when(rackEnvironmentBuilder.rejects(request)).thenReturn(true);
+
+    subject.service(request, response);
+
+    verify(response).sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+    verify(rackEnvironmentBuilder, never()).build(request);
+    verify(rackApplication, never()).call(any(RackEnvironment.class));
+  }
+
+  @Test public void serviceRejectsBodiesOfUnknownLengthThatOutgrowTheMaximum()
+      throws ServletException, IOException {
+    when(rackApplication.call(rackEnvironment)).thenThrow(new RuntimeException("Boom"));
+    when(rackEnvironmentBuilder.exceededMaximumBodySize(request)).thenReturn(true);
+
+    subject.service(request, response);
+
+    verify(response).sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+    verify(rackEnvironment).closeRackInput();
+  }
+
+  @Test public void serviceAsynchronouslyRejectsBodiesOfUnknownLengthThatOutgrowTheMaximum()
+      throws ServletException, IOException {
+    when(asyncRackApplication.call(rackEnvironment))
+        .thenReturn(Futures.<RackResponse>immediateFailedFuture(new RuntimeException("Boom")));
+    when(rackEnvironmentBuilder.exceededMaximumBodySize(request)).thenReturn(true);
+    startAsync();
+
+    subject.service(request, response);
+
+    verify(response).sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+    verify(response, never()).sendError(500);
+    verify(asyncContext).complete();
+  }
+
+  @Test public void serviceDrainingTheResponse() throws ServletException, IOException {
+    subject = new RackServlet(rackEnvironmentBuilder, rackApplication, rackResponsePropagator,
+        null, new ResponseDrain());
+    when(request.isAsyncSupported()).thenReturn(true);
+    when(request.startAsync(request, response)).thenReturn(asyncContext);
+    when(request.getMethod()).thenReturn("GET");
+    when(response.getStatus()).thenReturn(200);
+    ServletOutputStream outputStream = mock(ServletOutputStream.class);
+    when(outputStream.isReady()).thenReturn(true);
+    when(response.getOutputStream()).thenReturn(outputStream);
+    when(rackApplication.call(rackEnvironment)).thenReturn(rackResponse);
+
+    subject.service(request, response);
+
+    ArgumentCaptor<WriteListener> writeListener = ArgumentCaptor.forClass(WriteListener.class);
+    verify(outputStream).setWriteListener(writeListener.capture());
+    verify(rackEnvironment).closeRackInput();
+    verify(asyncContext, never()).complete();
+
+    writeListener.getValue().onWritePossible();
+
+    verify(asyncContext).complete();
+  }
+
+  private void startAsync() {
+    subject = new RackServlet(rackEnvironmentBuilder, asyncRackApplication, rackResponsePropagator);
+    when(request.isAsyncSupported()).thenReturn(true);
+    when(request.startAsync(request, response)).thenReturn(asyncContext);
+    when(asyncContext.getResponse()).thenReturn(response);
+  }
 }
@@ -0,0 +1,153 @@
+package com.squareup.rack.servlet;
+
+import com.google.common.io.ByteStreams;
+import com.squareup.rack.io.TempfileBufferedInputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RequestBodyPreReaderTest {
+  private RequestBodyPreReader subject;
+  private TrickleServletInputStream inputStream;
+  private RecordingCallback callback;
+  private RackEnvironmentBuilder rackEnvironmentBuilder;
+
+  @Mock private HttpServletRequest request;
+
+  @Before public void setUp() throws IOException {
+    subject = new RequestBodyPreReader(16);
+    inputStream = new TrickleServletInputStream();
+    callback = new RecordingCallback();
+    rackEnvironmentBuilder = spy(new RackEnvironmentBuilder(4, Long.MAX_VALUE));
+    when(request.getInputStream()).thenReturn(inputStream);
+  }
+
+  @Test public void appliesToBodiesUpToTheMaximumSize() {
+    when(request.getContentLengthLong()).thenReturn(16L);
+    assertThat(subject.appliesTo(request)).isTrue();
+  }
+
+  @Test public void doesNotApplyToLargerBodies() {
+    when(request.getContentLengthLong()).thenReturn(17L);
+    assertThat(subject.appliesTo(request)).isFalse();
+  }
+
+  @Test public void doesNotApplyToEmptyBodiesOrBodiesOfUnknownLength() {
+    when(request.getContentLengthLong()).thenReturn(0L);
+    assertThat(subject.appliesTo(request)).isFalse();
+    when(request.getContentLengthLong()).thenReturn(-1L);
+    assertThat(subject.appliesTo(request)).isFalse();
+  }
+
+  @Test public void readsTheBodyAsItArrives() throws IOException {
+    subject.read(request, rackEnvironmentBuilder, callback);
+
+    inputStream.arrive("Hello, ");
+    assertThat(callback.body).isNull();
+    inputStream.arrive("World!");
+    assertThat(callback.body).isNull();
+    inputStream.end();
+
+    assertThat(new String(ByteStreams.toByteArray(callback.body))).isEqualTo("Hello, World!");
+  }
+
+  @Test public void buffersTheBodyAsTheEnvironmentBuilderWould() throws IOException {
+    when(request.getContentLengthLong()).thenReturn(13L);
+    subject.read(request, rackEnvironmentBuilder, callback);
+
+    inputStream.arrive("Hello, World!");
+    inputStream.end();
+
+    verify(rackEnvironmentBuilder).bufferBody(request, inputStream);
+    assertThat(new String(ByteStreams.toByteArray(callback.body))).isEqualTo("Hello, World!");
+  }
+
+  @Test public void reportsFailures() throws IOException {
+    subject.read(request, rackEnvironmentBuilder, callback);
+
+    inputStream.arrive("Hello, ");
+    IOException failure = new IOException("Connection reset");
+    inputStream.listener.onError(failure);
+
+    assertThat(callback.body).isNull();
+    assertThat(callback.failure).isSameAs(failure);
+  }
+
+  /**
+   * Hands out only the bytes that have arrived, and fails reads when none have, as non-blocking
+   * servlet input streams do.
+   */
+  private static class TrickleServletInputStream extends ServletInputStream {
+    private final LinkedList<Byte> arrived = new LinkedList<Byte>();
+    private boolean ended;
+    private ReadListener listener;
+
+    public void arrive(String bytes) throws IOException {
+      for (byte b : bytes.getBytes()) {
+        arrived.add(b);
+      }
+      listener.onDataAvailable();
+    }
+
+    public void end() throws IOException {
+      ended = true;
+      listener.onAllDataRead();
+    }
+
+    @Override public int read() {
+      if (!arrived.isEmpty()) {
+        return arrived.removeFirst() & 0xff;
+      }
+      if (ended) {
+        return -1;
+      }
+      throw new IllegalStateException("Not ready");
+    }
+
+    @Override public int read(byte[] b, int off, int len) {
+      int count = 0;
+      while (count < len && !arrived.isEmpty()) {
+        b[off + count++] = arrived.removeFirst();
+      }
+      return (count > 0 || len == 0) ? count : read();
+    }
+
+    @Override public boolean isFinished() {
+      return ended && arrived.isEmpty();
+    }
+
+    @Override public boolean isReady() {
+      return !arrived.isEmpty() || ended;
+    }
+
+    @Override public void setReadListener(ReadListener readListener) {
+      this.listener = readListener;
+    }
+  }
+
+  private static class RecordingCallback implements RequestBodyPreReader.Callback {
+    private TempfileBufferedInputStream body;
+    private Throwable failure;
+
+    @Override public void read(TempfileBufferedInputStream body) {
+      this.body = body;
+    }
+
+    @Override public void failed(Throwable t) {
+      this.failure = t;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package com.squareup.rack.servlet;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ResponseCompressionTest {
+  @Mock private HttpServletRequest request;
+  private ResponseCompression subject;
+
+  @Before public void setUp() {
+    subject = new ResponseCompression();
+    when(request.getMethod()).thenReturn("GET");
+  }
+
+  @Test public void compressesTextualResponses() {
+    assertThat(compressible(200, "text/html; charset=utf-8", null, null, null)).isTrue();
+    assertThat(compressible(404, "application/json", null, "2048", null)).isTrue();
+    assertThat(compressible(200, "image/svg+xml", null, null, null)).isTrue();
+  }
+
+  @Test public void skipsResponsesWithoutABody() {
+    assertThat(compressible(204, "text/html", null, null, null)).isFalse();
+    assertThat(compressible(304, "text/html", null, null, null)).isFalse();
+    assertThat(compressible(206, "text/html", null, null, null)).isFalse();
+
+    when(request.getMethod()).thenReturn("HEAD");
+    assertThat(compressible(200, "text/html", null, null, null)).isFalse();
+  }
+
+  @Test public void skipsCompressedContentTypes() {
+    assertThat(compressible(200, "image/png", null, null, null)).isFalse();
+    assertThat(compressible(200, "VIDEO/mp4", null, null, null)).isFalse();
+    assertThat(compressible(200, "application/zip", null, null, null)).isFalse();
+    assertThat(compressible(200, "font/woff2", null, null, null)).isFalse();
+    assertThat(compressible(200, "text/event-stream", null, null, null)).isFalse();
+    assertThat(compressible(200, null, null, null, null)).isFalse();
+  }
+
+  @Test public void skipsEncodedAndUntransformableResponses() {
+    assertThat(compressible(200, "text/html", "gzip", null, null)).isFalse();
+    assertThat(compressible(200, "text/html", "identity", null, null)).isTrue();
+    assertThat(compressible(200, "text/html", null, null, "public, no-transform")).isFalse();
+  }
+
+  @Test public void skipsSmallBodies() {
+    assertThat(compressible(200, "text/html", null, "1023", null)).isFalse();
+    assertThat(compressible(200, "text/html", null, "1024", null)).isTrue();
+  }
+
+  @Test public void negotiatesGzipOverDeflate() {
+    when(request.getHeader("Accept-Encoding")).thenReturn("deflate, gzip");
+    assertThat(subject.negotiate(request)).isEqualTo("gzip");
+
+    when(request.getHeader("Accept-Encoding")).thenReturn("deflate, gzip;q=0");
+    assertThat(subject.negotiate(request)).isEqualTo("deflate");
+
+    when(request.getHeader("Accept-Encoding")).thenReturn("br");
+    assertThat(subject.negotiate(request)).isNull();
+  }
+
+  @Test public void gzip() throws IOException {
+    byte[] compressed = compress("gzip", "Hello, ", "World!");
+    assertThat(new String(ByteStreams.toByteArray(
+        new GZIPInputStream(new ByteArrayInputStream(compressed))))).isEqualTo("Hello, World!");
+  }
+
+  @Test public void deflate() throws IOException {
+    byte[] compressed = compress("deflate", "Hello, ", "World!");
+    assertThat(new String(ByteStreams.toByteArray(
+        new InflaterInputStream(new ByteArrayInputStream(compressed))))).isEqualTo("Hello, World!");
+  }
+
+  @Test public void flushMakesWhatWasWrittenDecodable() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ResponseCompression.CompressingOutputStream compressed = subject.compress(bytes, "deflate");
+    compressed.write("Hello, ".getBytes());
+    compressed.flush();
+
+    Inflater inflater = new Inflater();
+    inflater.setInput(bytes.toByteArray());
+    byte[] inflated = new byte[64];
+    int length;
+    try {
+      length = inflater.inflate(inflated);
+    } catch (DataFormatException e) {
+      throw new AssertionError(e);
+    } finally {
+      inflater.end();
+    }
+    assertThat(new String(inflated, 0, length)).isEqualTo("Hello, ");
+
+    compressed.write("World!".getBytes());
+    compressed.finish();
+    compressed.release();
+    assertThat(new String(ByteStreams.toByteArray(new InflaterInputStream(
+        new ByteArrayInputStream(bytes.toByteArray()))))).isEqualTo("Hello, World!");
+  }
+
+  @Test public void reusesDeflatersCleanly() throws IOException {
+    byte[] large = new byte[100000];
+    Arrays.fill(large, (byte) 'a');
+
+    compress("gzip", new String(large));
+    byte[] compressed = compress("gzip", "second");
+
+    InputStream inflated = new GZIPInputStream(new ByteArrayInputStream(compressed));
+    assertThat(new String(ByteStreams.toByteArray(inflated))).isEqualTo("second");
+  }
+
+  @Test public void releasesAfterAbandonedStreams() throws IOException {
+    ResponseCompression.CompressingOutputStream abandoned =
+        subject.compress(new ByteArrayOutputStream(), "gzip");
+    abandoned.write("half a body".getBytes());
+    abandoned.release();
+    abandoned.release();
+
+    byte[] compressed = compress("gzip", "whole");
+    InputStream inflated = new GZIPInputStream(new ByteArrayInputStream(compressed));
+    assertThat(new String(ByteStreams.toByteArray(inflated))).isEqualTo("whole");
+  }
+
+  private boolean compressible(int status, String contentType, String contentEncoding,
+      String contentLength, String cacheControl) {
+    return subject.isCompressible(request, status, contentType, contentEncoding, contentLength,
+        cacheControl);
+  }
+
+  private byte[] compress(String encoding, String... chunks) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ResponseCompression.CompressingOutputStream compressed = subject.compress(bytes, encoding);
+    for (String chunk : chunks) {
+      compressed.write(chunk.getBytes());
+    }
+    compressed.finish();
+    compressed.release();
+    return bytes.toByteArray();
+  }
+}
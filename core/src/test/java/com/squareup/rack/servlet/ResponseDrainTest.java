@@ -0,0 +1,222 @@
+package com.squareup.rack.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ResponseDrainTest {
+  private ResponseDrain subject;
+  private SlowServletOutputStream outputStream;
+  private CountingRunnable done;
+
+  @Mock private HttpServletRequest request;
+  @Mock private HttpServletResponse response;
+
+  @Before public void setUp() throws IOException {
+    subject = new ResponseDrain(64 * 1024, 64 * 1024);
+    outputStream = new SlowServletOutputStream();
+    done = new CountingRunnable();
+    when(request.getMethod()).thenReturn("GET");
+    when(response.getStatus()).thenReturn(200);
+    when(response.getOutputStream()).thenReturn(outputStream);
+  }
+
+  @Test public void holdsTheBodyUntilDrained() throws IOException {
+    ResponseDrain.HeldResponse held = subject.hold(response);
+    held.getOutputStream().write("Hello, World!".getBytes());
+    held.getOutputStream().flush();
+    held.flushBuffer();
+
+    assertThat(held.isHolding()).isTrue();
+    assertThat(outputStream.written.size()).isZero();
+    assertThat(subject.getBytesInFlight()).isEqualTo(16 * 1024);
+    verify(response, never()).flushBuffer();
+  }
+
+  @Test public void drainsWhenTheClientIsReady() throws IOException {
+    ResponseDrain.HeldResponse held = subject.hold(response);
+    held.getOutputStream().write(new byte[20 * 1024]);
+    held.getOutputStream().write("Hello".getBytes());
+
+    outputStream.ready = false;
+    held.drain(request, done);
+    verify(response).setHeader("Content-Length", Integer.toString(20 * 1024 + 5));
+    outputStream.listener.onWritePossible();
+    assertThat(outputStream.written.size()).isZero();
+
+    outputStream.ready = true;
+    outputStream.readyWrites = 1;
+    outputStream.listener.onWritePossible();
+    assertThat(outputStream.written.size()).isEqualTo(16 * 1024);
+    assertThat(done.count.get()).isZero();
+
+    outputStream.ready = true;
+    outputStream.listener.onWritePossible();
+    assertThat(outputStream.written.size()).isEqualTo(20 * 1024 + 5);
+    assertThat(done.count.get()).isEqualTo(1);
+    assertThat(subject.getBytesInFlight()).isZero();
+  }
+
+  @Test public void drainLeavesExistingContentLengthsAlone() throws IOException {
+    when(response.containsHeader("Content-Length")).thenReturn(true);
+    ResponseDrain.HeldResponse held = subject.hold(response);
+    held.getOutputStream().write("Hello".getBytes());
+
+    held.drain(request, done);
+
+    verify(response, never()).setHeader("Content-Length", "5");
+  }
+
+  @Test public void drainDoesNotDescribeHeadResponses() throws IOException {
+    when(request.getMethod()).thenReturn("HEAD");
+    ResponseDrain.HeldResponse held = subject.hold(response);
+
+    held.drain(request, done);
+    outputStream.listener.onWritePossible();
+
+    verify(response, never()).setHeader("Content-Length", "0");
+    assertThat(done.count.get()).isEqualTo(1);
+  }
+
+  @Test public void drainReleasesTheBodyOnError() throws IOException {
+    ResponseDrain.HeldResponse held = subject.hold(response);
+    held.getOutputStream().write("Hello".getBytes());
+
+    held.drain(request, done);
+    outputStream.listener.onError(new IOException("Broken pipe"));
+    outputStream.listener.onError(new IOException("Broken pipe"));
+
+    assertThat(done.count.get()).isEqualTo(1);
+    assertThat(subject.getBytesInFlight()).isZero();
+  }
+
+  @Test public void writesBodiesLargerThanTheMaximumBodySizeStraightThrough()
+      throws IOException {
+    subject = new ResponseDrain(8, 64 * 1024);
+    ResponseDrain.HeldResponse held = subject.hold(response);
+    held.getOutputStream().write("Hello".getBytes());
+    held.getOutputStream().write(", World!".getBytes());
+
+    assertThat(held.isHolding()).isFalse();
+    assertThat(new String(outputStream.written.toByteArray())).isEqualTo("Hello, World!");
+    assertThat(subject.getBytesInFlight()).isZero();
+
+    held.drain(request, done);
+    assertThat(outputStream.listener).isNull();
+    assertThat(done.count.get()).isEqualTo(1);
+  }
+
+  @Test public void writesStraightThroughOnceTheBytesInFlightAreSpent() throws IOException {
+    subject = new ResponseDrain(64 * 1024, 16 * 1024);
+    ResponseDrain.HeldResponse first = subject.hold(response);
+    first.getOutputStream().write("Hello".getBytes());
+
+    ResponseDrain.HeldResponse second = subject.hold(response);
+    second.getOutputStream().write("World".getBytes());
+
+    assertThat(first.isHolding()).isTrue();
+    assertThat(second.isHolding()).isFalse();
+    assertThat(new String(outputStream.written.toByteArray())).isEqualTo("World");
+
+    first.release();
+    assertThat(subject.getBytesInFlight()).isZero();
+  }
+
+  @Test public void writeListenersAreRefusedWhileHolding() throws IOException {
+    ResponseDrain.HeldResponse held = subject.hold(response);
+    try {
+      held.getOutputStream().setWriteListener(new NoOpWriteListener());
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    assertThat(outputStream.listener).isNull();
+  }
+
+  @Test public void writeListenersGoToTheResponseOnceNotHolding() throws IOException {
+    subject = new ResponseDrain(8, 64 * 1024);
+    ResponseDrain.HeldResponse held = subject.hold(response);
+    held.getOutputStream().write("Hello, World!".getBytes());
+
+    WriteListener listener = new NoOpWriteListener();
+    held.getOutputStream().setWriteListener(listener);
+
+    assertThat(outputStream.listener).isSameAs(listener);
+    outputStream.ready = false;
+    assertThat(held.getOutputStream().isReady()).isFalse();
+  }
+
+  @Test public void resetDiscardsTheHeldBody() throws IOException {
+    ResponseDrain.HeldResponse held = subject.hold(response);
+    held.getOutputStream().write("Hello".getBytes());
+
+    held.resetBuffer();
+
+    assertThat(subject.getBytesInFlight()).isZero();
+    verify(response).resetBuffer();
+  }
+
+  /**
+   * Accepts writes only while ready, as non-blocking servlet output streams do.
+   */
+  private static class SlowServletOutputStream extends ServletOutputStream {
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private WriteListener listener;
+    private boolean ready = true;
+    private int readyWrites = Integer.MAX_VALUE;
+
+    @Override public void write(int b) {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override public void write(byte[] b, int off, int len) {
+      if (!ready) {
+        throw new IllegalStateException("Not ready");
+      }
+      written.write(b, off, len);
+      if (--readyWrites == 0) {
+        ready = false;
+        readyWrites = Integer.MAX_VALUE;
+      }
+    }
+
+    @Override public boolean isReady() {
+      return ready;
+    }
+
+    @Override public void setWriteListener(WriteListener writeListener) {
+      this.listener = writeListener;
+    }
+  }
+
+  private static class NoOpWriteListener implements WriteListener {
+    @Override public void onWritePossible() {
+    }
+
+    @Override public void onError(Throwable t) {
+    }
+  }
+
+  private static class CountingRunnable implements Runnable {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override public void run() {
+      count.incrementAndGet();
+    }
+  }
+}
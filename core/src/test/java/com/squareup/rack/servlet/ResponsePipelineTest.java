@@ -0,0 +1,182 @@
+package com.squareup.rack.servlet;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.squareup.rack.RackBody;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class ResponsePipelineTest {
+  private ExecutorService writers;
+  private ExecutorService producers;
+
+  @Before public void setUp() {
+    writers = Executors.newCachedThreadPool();
+    producers = Executors.newCachedThreadPool();
+  }
+
+  @After public void tearDown() {
+    writers.shutdownNow();
+    producers.shutdownNow();
+  }
+
+  @Test public void writesEachChunkInOrder() throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    new ResponsePipeline(writers, 4).writeTo(new ChunkedBody("Hello", ", ", "World!"),
+        outputStream);
+
+    assertThat(outputStream.toString()).isEqualTo("Hello, World!");
+  }
+
+  @Test public void writesOnAnotherThread() throws IOException {
+    final List<Thread> threads = new ArrayList<Thread>();
+    OutputStream outputStream = new OutputStream() {
+      @Override public void write(int b) {
+        threads.add(Thread.currentThread());
+      }
+    };
+
+    new ResponsePipeline(writers).writeTo(new ChunkedBody("x"), outputStream);
+
+    assertThat(threads).hasSize(1);
+    assertThat(threads.get(0)).isNotSameAs(Thread.currentThread());
+  }
+
+  @Test public void waitsForTheWriterOnceTheQueueIsFull() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    final OutputStream outputStream = new OutputStream() {
+      @Override public void write(int b) {
+      }
+
+      @Override public void write(byte[] b, int off, int len) throws IOException {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e.toString());
+        }
+        written.write(b, off, len);
+      }
+    };
+    final ChunkedBody body = new ChunkedBody("1234", "5678", "9abc", "def0");
+
+    Future<?> producer = producers.submit(new Callable<Void>() {
+      @Override public Void call() throws IOException {
+        new ResponsePipeline(writers, 8).writeTo(body, outputStream);
+        return null;
+      }
+    });
+
+    // The writer holds the first chunk, the queue the second; the third must wait.
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (body.yielded < 2 && System.nanoTime() < deadline) {
+      Thread.yield();
+    }
+    Thread.sleep(50);
+    assertThat(body.yielded).isEqualTo(2);
+    assertThat(producer.isDone()).isFalse();
+
+    release.countDown();
+    producer.get(10, TimeUnit.SECONDS);
+    assertThat(written.toString()).isEqualTo("123456789abcdef0");
+  }
+
+  @Test public void failsTheBodyWhenWritingFails() {
+    OutputStream outputStream = new OutputStream() {
+      @Override public void write(int b) throws IOException {
+        throw new IOException("Broken pipe");
+      }
+    };
+    String[] chunks = new String[100];
+    Arrays.fill(chunks, "x");
+    ChunkedBody body = new ChunkedBody(chunks);
+
+    try {
+      new ResponsePipeline(writers, 1).writeTo(body, outputStream);
+      fail("expected IOException");
+    } catch (IOException e) {
+      assertThat(e).hasMessage("Broken pipe");
+      assertThat(body.yielded).isLessThan(100);
+    }
+  }
+
+  @Test public void discardsQueuedChunksWhenTheBodyFails() throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    RackBody body = new ChunkedBody("Hello", null);
+
+    try {
+      new ResponsePipeline(writers).writeTo(body, outputStream);
+      fail("expected RuntimeException");
+    } catch (RuntimeException e) {
+      assertThat(e).hasMessage("Boom");
+    }
+
+    assertThat(outputStream.toString()).isIn("", "Hello");
+  }
+
+  @Test public void writesOnTheRequestThreadWhenRejected() throws IOException {
+    ExecutorService shutDown = MoreExecutors.sameThreadExecutor();
+    shutDown.shutdown();
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    new ResponsePipeline(shutDown).writeTo(new ChunkedBody("Hello"), outputStream);
+
+    assertThat(outputStream.toString()).isEqualTo("Hello");
+  }
+
+  /**
+   * Yields each chunk; a null chunk fails with "Boom". Chunks are written from a shared buffer, as
+   * JRuby bodies may.
+   */
+  private static class ChunkedBody implements RackBody {
+    private final String[] chunks;
+    private volatile int yielded;
+
+    public ChunkedBody(String... chunks) {
+      this.chunks = chunks;
+    }
+
+    @Override public Iterator<byte[]> iterator() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public void writeTo(OutputStream outputStream) throws IOException {
+      byte[] shared = new byte[64];
+      for (String chunk : chunks) {
+        if (chunk == null) {
+          throw new RuntimeException("Boom");
+        }
+        byte[] bytes = chunk.getBytes();
+        System.arraycopy(bytes, 0, shared, 0, bytes.length);
+        outputStream.write(shared, 0, bytes.length);
+        Arrays.fill(shared, (byte) 0);
+        yielded++;
+      }
+    }
+
+    @Override public void writeTo(WritableByteChannel channel) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public void close() {
+    }
+  }
+}
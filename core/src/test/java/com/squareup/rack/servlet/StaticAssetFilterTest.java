@@ -0,0 +1,228 @@
+package com.squareup.rack.servlet;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StaticAssetFilterTest {
+  @Mock private HttpServletRequest request;
+  @Mock private HttpServletResponse response;
+  @Mock private FilterChain chain;
+  @Mock private FilterConfig filterConfig;
+  @Mock private ServletContext servletContext;
+
+  private File directory;
+  private File script;
+  private ByteArrayOutputStream body;
+  private StaticAssetFilter subject;
+
+  @Before public void setUp() throws IOException {
+    directory = Files.createTempDir();
+    new File(directory, "assets").mkdir();
+    script = new File(directory, "assets/app.js");
+    Files.write("alert('hi');", script, Charsets.UTF_8);
+    Files.write("secret", new File(directory, "secret.txt"), Charsets.UTF_8);
+
+    body = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override public void write(int b) {
+        body.write(b);
+      }
+
+      @Override public boolean isReady() {
+        return true;
+      }
+
+      @Override public void setWriteListener(WriteListener writeListener) {
+        throw new UnsupportedOperationException();
+      }
+    });
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getContextPath()).thenReturn("");
+    when(request.getDateHeader(anyString())).thenReturn(-1L);
+    when(filterConfig.getServletContext()).thenReturn(servletContext);
+    when(servletContext.getMimeType("app.js")).thenReturn("application/javascript");
+
+    subject = new StaticAssetFilter(directory, "/assets/");
+    subject.init(filterConfig);
+  }
+
+  @After public void tearDown() {
+    subject.destroy();
+    delete(directory);
+  }
+
+  @Test public void servesFilesUnderAPrefix() throws IOException, ServletException {
+    get("/assets/app.js");
+
+    assertThat(body.toString()).isEqualTo("alert('hi');");
+    verify(response).setHeader("Content-Type", "application/javascript");
+    verify(response).setHeader("Content-Length", "12");
+    verify(response).setHeader(eq("ETag"), anyString());
+    verify(response).setHeader(eq("Last-Modified"), anyString());
+    verify(response, never()).setHeader(eq("Vary"), anyString());
+    verifyZeroInteractions(chain);
+  }
+
+  @Test public void fallsThroughOnAMiss() throws IOException, ServletException {
+    get("/assets/missing.js");
+    verify(chain).doFilter(request, response);
+  }
+
+  @Test public void fallsThroughForDirectories() throws IOException, ServletException {
+    get("/assets/");
+    verify(chain).doFilter(request, response);
+  }
+
+  @Test public void fallsThroughOutsideThePrefixes() throws IOException, ServletException {
+    get("/secret.txt");
+    verify(chain).doFilter(request, response);
+  }
+
+  @Test public void refusesToLeaveTheDirectory() throws IOException, ServletException {
+    get("/assets/../secret.txt");
+    verify(chain).doFilter(request, response);
+
+    get("/assets/%2E%2E/secret.txt");
+    verify(chain, times(2)).doFilter(request, response);
+    assertThat(body.toString()).isEmpty();
+  }
+
+  @Test public void refusesVariantsThatLeaveTheDirectory() throws IOException, ServletException {
+    File outside = File.createTempFile("static-asset-filter", ".gz");
+    try {
+      java.nio.file.Files.createSymbolicLink(new File(directory, "assets/app.js.gz").toPath(),
+          outside.toPath());
+      when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+
+      get("/assets/app.js");
+
+      assertThat(body.toString()).isEqualTo("alert('hi');");
+      verify(response, never()).setHeader(eq("Content-Encoding"), anyString());
+    } finally {
+      outside.delete();
+    }
+  }
+
+  @Test public void fallsThroughForOtherMethods() throws IOException, ServletException {
+    when(request.getMethod()).thenReturn("POST");
+    get("/assets/app.js");
+    verify(chain).doFilter(request, response);
+  }
+
+  @Test public void servesPrecompressedVariants() throws IOException, ServletException {
+    Files.write("gzipped", new File(directory, "assets/app.js.gz"), Charsets.UTF_8);
+    Files.write("brotlied", new File(directory, "assets/app.js.br"), Charsets.UTF_8);
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate, br");
+
+    get("/assets/app.js");
+
+    assertThat(body.toString()).isEqualTo("brotlied");
+    verify(response).setHeader("Content-Type", "application/javascript");
+    verify(response).setHeader("Content-Encoding", "br");
+    verify(response).setHeader("Vary", "Accept-Encoding");
+  }
+
+  @Test public void servesGzipWhenBrotliIsNotAccepted() throws IOException, ServletException {
+    Files.write("gzipped", new File(directory, "assets/app.js.gz"), Charsets.UTF_8);
+    Files.write("brotlied", new File(directory, "assets/app.js.br"), Charsets.UTF_8);
+    when(request.getHeader("Accept-Encoding")).thenReturn("br;q=0, *");
+
+    get("/assets/app.js");
+
+    assertThat(body.toString()).isEqualTo("gzipped");
+    verify(response).setHeader("Content-Encoding", "gzip");
+  }
+
+  @Test public void servesTheIdentityWhenNoVariantIsAccepted() throws IOException, ServletException {
+    Files.write("gzipped", new File(directory, "assets/app.js.gz"), Charsets.UTF_8);
+
+    get("/assets/app.js");
+
+    assertThat(body.toString()).isEqualTo("alert('hi');");
+    verify(response, never()).setHeader(eq("Content-Encoding"), anyString());
+    verify(response).setHeader("Vary", "Accept-Encoding");
+  }
+
+  @Test public void answersConditionalRequests() throws IOException, ServletException {
+    when(request.getHeader("If-None-Match")).thenReturn(etagOf(script, ""));
+
+    get("/assets/app.js");
+
+    assertThat(body.toString()).isEmpty();
+    verify(response).setStatus(304);
+  }
+
+  @Test public void answersRangeRequests() throws IOException, ServletException {
+    when(request.getHeader("Range")).thenReturn("bytes=0-4");
+
+    get("/assets/app.js");
+
+    assertThat(body.toString()).isEqualTo("alert");
+    verify(response).setStatus(206);
+  }
+
+  @Test public void reloadsChangedFiles() throws IOException, ServletException {
+    get("/assets/app.js");
+    Files.write("alert('bye');", script, Charsets.UTF_8);
+    script.setLastModified(script.lastModified() + 2000);
+    body.reset();
+
+    get("/assets/app.js");
+
+    assertThat(body.toString()).isEqualTo("alert('bye');");
+  }
+
+  @Test public void servesLargeFilesFromDisk() throws IOException, ServletException {
+    subject = new StaticAssetFilter(directory, ImmutableList.of("/assets/"), 1024, 4);
+    get("/assets/app.js");
+    assertThat(body.toString()).isEqualTo("alert('hi');");
+  }
+
+  private void get(String path) throws IOException, ServletException {
+    when(request.getRequestURI()).thenReturn(path);
+    subject.doFilter(request, response, chain);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static String etagOf(File file, String suffix) {
+    return "\"" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(file.length())
+        + suffix + "\"";
+  }
+}
@@ -5,13 +5,14 @@ import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ListMultimap;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletInputStream;
 
 import static com.google.common.base.Strings.emptyToNull;
@@ -92,7 +93,7 @@ public class TestHttpServletRequest extends NullHttpServletRequest {
     this.uri = uri;
     this.headers = headers;
     this.body = body;
-    this.attributes = attributes;
+    this.attributes = new HashMap<String, Object>(attributes);
   }
 
   @Override public String getMethod() {
@@ -125,13 +126,33 @@ public class TestHttpServletRequest extends NullHttpServletRequest {
     return uri.getScheme();
   }
 
+  @Override public int getContentLength() {
+    return (int) getContentLengthLong();
+  }
+
+  @Override public long getContentLengthLong() {
+    return headers.containsKey("Transfer-Encoding") ? -1 : body.getBytes().length;
+  }
+
   @Override public ServletInputStream getInputStream() throws IOException {
-    final InputStream stream = new ByteArrayInputStream(body.getBytes());
+    final ByteArrayInputStream stream = new ByteArrayInputStream(body.getBytes());
 
     return new ServletInputStream() {
       @Override public int read() throws IOException {
         return stream.read();
       }
+
+      @Override public boolean isFinished() {
+        return stream.available() == 0;
+      }
+
+      @Override public boolean isReady() {
+        return true;
+      }
+
+      @Override public void setReadListener(ReadListener readListener) {
+        throw new UnsupportedOperationException();
+      }
     };
   }
 
@@ -139,6 +160,11 @@ public class TestHttpServletRequest extends NullHttpServletRequest {
     return Collections.enumeration(headers.keySet());
   }
 
+  @Override public String getHeader(String name) {
+    List<String> values = headers.get(name);
+    return values.isEmpty() ? null : values.get(0);
+  }
+
   @Override public Enumeration<String> getHeaders(String name) {
     return Collections.enumeration(headers.get(name));
   }
@@ -147,6 +173,10 @@ public class TestHttpServletRequest extends NullHttpServletRequest {
     return attributes.get(name);
   }
 
+  @Override public void setAttribute(String name, Object o) {
+    attributes.put(name, o);
+  }
+
   @Override public Enumeration<String> getAttributeNames() {
     final Iterator<String> iterator = attributes.keySet().iterator();
 
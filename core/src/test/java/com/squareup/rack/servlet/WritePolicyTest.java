@@ -0,0 +1,188 @@
+package com.squareup.rack.servlet;
+
+import com.google.common.base.Charsets;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class WritePolicyTest {
+  private ScheduledExecutorService scheduler;
+  private RecordingOutputStream out;
+
+  @Mock private HttpServletResponse response;
+
+  @Before public void setUp() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    out = new RecordingOutputStream();
+  }
+
+  @After public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  @Test public void immediate() {
+    assertThat(WritePolicy.IMMEDIATE.isImmediate()).isTrue();
+    assertThat(policy(1, 16, 1, TimeUnit.HOURS).isImmediate()).isFalse();
+  }
+
+  @Test public void coalescesSmallChunks() throws IOException {
+    WritePolicy.PolicyOutputStream stream =
+        policy(1, 16, 1, TimeUnit.HOURS).newOutputStream(out, response);
+
+    stream.write(bytes("Hello"));
+    stream.write(bytes(", "));
+    stream.write(bytes("World!"));
+    assertThat(out.writes).isEmpty();
+
+    stream.finish();
+    stream.release();
+    assertThat(out.writes).containsExactly("Hello, World!");
+  }
+
+  @Test public void writesOutFullBuffers() throws IOException {
+    WritePolicy.PolicyOutputStream stream =
+        policy(1, 8, 1, TimeUnit.HOURS).newOutputStream(out, response);
+
+    stream.write(bytes("Hello"));
+    stream.write(bytes(", W"));
+    stream.write(bytes("orld!"));
+    assertThat(out.writes).containsExactly("Hello, W");
+
+    stream.finish();
+    stream.release();
+    assertThat(out.writes).containsExactly("Hello, W", "orld!");
+  }
+
+  @Test public void writesLargeChunksStraightThrough() throws IOException {
+    WritePolicy.PolicyOutputStream stream =
+        policy(1, 4, 1, TimeUnit.HOURS).newOutputStream(out, response);
+
+    stream.write(bytes("Hi"));
+    stream.write(bytes("Hello, World!"));
+    assertThat(out.writes).containsExactly("Hi", "Hello, World!");
+
+    stream.finish();
+    stream.release();
+    assertThat(out.writes).containsExactly("Hi", "Hello, World!");
+  }
+
+  @Test public void flushesWhenIdle() throws Exception {
+    WritePolicy.PolicyOutputStream stream =
+        policy(1, 16, 10, TimeUnit.MILLISECONDS).newOutputStream(out, response);
+
+    stream.write(bytes("dary!"));
+    assertThat(out.awaitFlush()).isTrue();
+    assertThat(out.writes).containsExactly("dary!");
+
+    stream.finish();
+    stream.release();
+  }
+
+  @Test public void commitsHeadersWhenTheBodyIsSlow() throws IOException {
+    WritePolicy.PolicyOutputStream stream =
+        policy(10, 16, 1, TimeUnit.MILLISECONDS).newOutputStream(out, response);
+
+    verify(response, timeout(1000)).flushBuffer();
+
+    stream.finish();
+    stream.release();
+  }
+
+  @Test public void doesNotCommitHeadersOnceReleased() throws Exception {
+    WritePolicy.PolicyOutputStream stream =
+        policy(10, 16, 1, TimeUnit.MILLISECONDS).newOutputStream(out, response);
+    stream.finish();
+    stream.release();
+
+    Thread.sleep(50);
+    verify(response, never()).flushBuffer();
+  }
+
+  @Test public void timersWaitingOnTheStreamDoNothingOnceFinished() throws Exception {
+    WritePolicy.PolicyOutputStream stream =
+        policy(20, 16, 20, TimeUnit.MILLISECONDS).newOutputStream(out, response);
+
+    synchronized (stream) {
+      stream.write(bytes("x"));
+      // Both timers come due, and wait for the lock.
+      Thread.sleep(100);
+      stream.finish();
+    }
+
+    Thread.sleep(50);
+    verify(response, never()).flushBuffer();
+    assertThat(out.flushed).isFalse();
+    assertThat(out.writes).containsExactly("x");
+    stream.release();
+  }
+
+  @Test public void rethrowsFailedFlushes() throws Exception {
+    doThrow(new IOException("Broken pipe")).when(response).flushBuffer();
+    WritePolicy.PolicyOutputStream stream =
+        policy(1, 16, 1000000, TimeUnit.MILLISECONDS).newOutputStream(out, response);
+    verify(response, timeout(1000)).flushBuffer();
+
+    try {
+      long deadline = System.currentTimeMillis() + 1000;
+      while (System.currentTimeMillis() < deadline) {
+        stream.write(bytes("x"));
+        Thread.sleep(1);
+      }
+      fail("expected IOException");
+    } catch (IOException e) {
+      assertThat(e).hasMessage("Broken pipe");
+    } finally {
+      stream.release();
+    }
+  }
+
+  private WritePolicy policy(long commitDelay, int coalescingThreshold, long idleFlush,
+      TimeUnit unit) {
+    return new WritePolicy(commitDelay, coalescingThreshold, idleFlush, unit, scheduler);
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(Charsets.UTF_8);
+  }
+
+  private static class RecordingOutputStream extends ByteArrayOutputStream {
+    private final List<String> writes = new ArrayList<String>();
+    private boolean flushed;
+
+    @Override public synchronized void write(byte[] b, int off, int len) {
+      writes.add(new String(b, off, len, Charsets.UTF_8));
+    }
+
+    @Override public synchronized void flush() {
+      flushed = true;
+      notifyAll();
+    }
+
+    public synchronized boolean awaitFlush() throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 1000;
+      while (!flushed && System.currentTimeMillis() < deadline) {
+        wait(10);
+      }
+      return flushed;
+    }
+  }
+}
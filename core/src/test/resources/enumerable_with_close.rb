@@ -1,8 +1,9 @@
 class EnumerableWithClose
-  attr_reader :open
+  attr_reader :open, :close_count
   def initialize(list)
     @list = list
     @open = true
+    @close_count = 0
   end
 
   include Enumerable
@@ -13,5 +14,6 @@ class EnumerableWithClose
 
   def close
     @open = false
+    @close_count += 1
   end
 end
\ No newline at end of file